@@ -0,0 +1,111 @@
+package com.multi.delivery.planner;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Minimal benchmark harness for the main-method benchmarks.
+ *
+ * An operation is timed on its own after a warm-up phase, so latency percentiles come
+ * from individual invocations. Allocation is read from the per-thread allocation counter
+ * of the JVM, and GC activity from the garbage collector beans, both over the measured
+ * invocations only.
+ */
+public class BenchmarkRunner {
+
+    // Benchmarked code, returns a value that is consumed so it cannot be optimized away
+    public interface Operation {
+        long run();
+    }
+
+    // Time spent warming up and measuring each operation
+    private final long warmupNanos;
+    private final long measureNanos;
+    // Upper bound on the measured invocations (latency samples kept)
+    private final int maxSamples;
+    // Consumes results of the operations
+    private long sink;
+
+    public BenchmarkRunner(long warmupMillis, long measureMillis, int maxSamples) {
+        this.warmupNanos = warmupMillis * 1_000_000;
+        this.measureNanos = measureMillis * 1_000_000;
+        this.maxSamples = maxSamples;
+    }
+
+    public static String header() {
+        return String.format("%-44s %10s %10s %10s %10s %10s %14s %8s", "benchmark", "ops/s", "p50 us",
+                "p90 us", "p99 us", "max us", "alloc B/op", "gc ms");
+    }
+
+    // Warms up and measures the operation, returns a row for the report
+    public String run(String name, Operation operation) {
+        long deadline = System.nanoTime() + this.warmupNanos;
+        do {
+            this.sink += operation.run();
+        } while (System.nanoTime() < deadline);
+
+        long[] samples = new long[this.maxSamples];
+        com.sun.management.ThreadMXBean threadBean = allocationBean();
+        long threadID = Thread.currentThread().getId();
+        long gcMillis = gcMillis();
+        long allocated = threadBean != null ? threadBean.getThreadAllocatedBytes(threadID) : 0;
+
+        int sampleCount = 0;
+        long start = System.nanoTime();
+        deadline = start + this.measureNanos;
+        long now = start;
+        while (sampleCount < samples.length && (sampleCount == 0 || now < deadline)) {
+            long before = now;
+            this.sink += operation.run();
+            now = System.nanoTime();
+            samples[sampleCount++] = now - before;
+        }
+        long elapsed = now - start;
+
+        allocated = threadBean != null ? threadBean.getThreadAllocatedBytes(threadID) - allocated : -1;
+        gcMillis = gcMillis() - gcMillis;
+
+        Arrays.sort(samples, 0, sampleCount);
+        return String.format("%-44s %10.1f %10.1f %10.1f %10.1f %10.1f %14s %8d", name,
+                sampleCount * 1e9 / elapsed,
+                percentile(samples, sampleCount, 0.50) / 1e3,
+                percentile(samples, sampleCount, 0.90) / 1e3,
+                percentile(samples, sampleCount, 0.99) / 1e3,
+                samples[sampleCount - 1] / 1e3,
+                allocated < 0 ? "n/a" : String.valueOf(allocated / sampleCount),
+                gcMillis);
+    }
+
+    // Keeps the results of the operations observable
+    public long getSink() {
+        return this.sink;
+    }
+
+    private static long percentile(long[] sortedSamples, int sampleCount, double fraction) {
+        int idx = (int) Math.ceil(fraction * sampleCount) - 1;
+        return sortedSamples[Math.max(0, Math.min(idx, sampleCount - 1))];
+    }
+
+    // Allocation counter of the current thread, or null if the JVM does not provide it
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        if (!allocationBean.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+        return allocationBean;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gcBean.getCollectionTime());
+        }
+        return millis;
+    }
+}
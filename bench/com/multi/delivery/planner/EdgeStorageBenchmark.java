@@ -0,0 +1,200 @@
+package com.multi.delivery.planner;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Compares the layouts of the edge costs: nested hash maps (node ID -> node ID -> cost), the
+ * dense cost matrix and compressed sparse rows (SparseEdgeCosts). Random graphs give every node
+ * the same number of edges to random other nodes; all three layouts are checked to return the
+ * same costs, their memory is reported (measured on the heap for the hash maps) and lookups are
+ * timed in batches, half of them for existing edges. Solver.computeTotalDuration is then timed
+ * on synthetic instances with their edge costs in the matrix and in sparse rows.
+ *
+ * Usage: EdgeStorageBenchmark [measureMillis] [nodes,edgesPerNode ...]
+ */
+public class EdgeStorageBenchmark {
+
+    // Graphs measured when none are given: nodes, edges per node
+    private static final String[] DEFAULT_CONFIGS = {"1000,900", "1000,50", "5000,50", "20000,40", "100000,20"};
+    // Largest graph whose matrix and hash maps are built
+    private static final int MAX_DENSE_NODES = 20000;
+    private static final int MAX_MAP_EDGES = 2_000_000;
+    // Lookups per timed batch
+    private static final int BATCH = 4096;
+    // Synthetic instances for the evaluation: routes, stops per route, nodes, capacity, edge density
+    private static final String[] SOLVER_CONFIGS = {"1000,8,1000,2,0.02", "10000,8,1000,4,0.02"};
+
+    public static void main(String[] args) {
+        long measureMillis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        String[] configs = args.length > 1 ? Arrays.copyOfRange(args, 1, args.length) : DEFAULT_CONFIGS;
+        BenchmarkRunner runner = new BenchmarkRunner(measureMillis / 2, measureMillis, 100_000);
+
+        System.out.println(BenchmarkRunner.header());
+        for (String config : configs) {
+            String[] values = config.split(",");
+            benchmark(runner, Integer.parseInt(values[0]), Integer.parseInt(values[1]));
+        }
+        for (String config : SOLVER_CONFIGS) {
+            String[] values = config.split(",");
+            benchmarkSolver(runner, Integer.parseInt(values[0]), Integer.parseInt(values[1]),
+                    Integer.parseInt(values[2]), Integer.parseInt(values[3]), Double.parseDouble(values[4]));
+        }
+        if (runner.getSink() == 42) {
+            System.out.println();
+        }
+    }
+
+    private static void benchmark(BenchmarkRunner runner, int nodeCount, int edgesPerNode) {
+        Random random = new Random(42);
+        int edgeCount = nodeCount * edgesPerNode;
+        int[] fromNodes = new int[edgeCount];
+        int[] toNodes = new int[edgeCount];
+        int[] costs = new int[edgeCount];
+        for (int e = 0; e < edgeCount; e++) {
+            fromNodes[e] = e / edgesPerNode;
+            int toNode = random.nextInt(nodeCount - 1);
+            toNodes[e] = toNode < fromNodes[e] ? toNode : toNode + 1;
+            costs[e] = 30 + random.nextInt(570);
+        }
+        // Lookups: half of them existing edges, half random node pairs
+        int[] lookupFrom = new int[BATCH];
+        int[] lookupTo = new int[BATCH];
+        for (int k = 0; k < BATCH; k++) {
+            if (k % 2 == 0) {
+                int e = random.nextInt(edgeCount);
+                lookupFrom[k] = fromNodes[e];
+                lookupTo[k] = toNodes[e];
+            } else {
+                lookupFrom[k] = random.nextInt(nodeCount);
+                lookupTo[k] = random.nextInt(nodeCount);
+            }
+        }
+        String name = "n=" + nodeCount + " e=" + edgeCount;
+
+        SparseEdgeCosts sparse = SparseEdgeCosts.of(nodeCount, fromNodes, toNodes, costs, edgeCount);
+        int[] matrix = null;
+        if (nodeCount <= MAX_DENSE_NODES) {
+            matrix = new int[nodeCount * nodeCount];
+            Arrays.fill(matrix, TestInstance.NO_EDGE);
+            for (int i = 0; i < nodeCount; i++) {
+                matrix[i * nodeCount + i] = 0;
+            }
+            for (int e = 0; e < edgeCount; e++) {
+                matrix[fromNodes[e] * nodeCount + toNodes[e]] = costs[e];
+            }
+        }
+        HashMap<Integer, HashMap<Integer, Integer>> maps = null;
+        long mapBytes = -1;
+        if (edgeCount <= MAX_MAP_EDGES) {
+            long before = usedHeap();
+            maps = new HashMap<>();
+            for (int e = 0; e < edgeCount; e++) {
+                maps.computeIfAbsent(fromNodes[e], k -> new HashMap<>()).put(toNodes[e], costs[e]);
+            }
+            mapBytes = usedHeap() - before;
+        }
+        System.out.printf("%s: sparse rows %d KB, matrix %s, hash maps %s%n", name, sparse.memoryBytes() >> 10,
+                matrix == null ? "n/a" : (4L * matrix.length >> 10) + " KB", mapBytes < 0 ? "n/a" : (mapBytes >> 10) + " KB");
+
+        for (int k = 0; k < BATCH; k++) {
+            int cost = sparse.get(lookupFrom[k], lookupTo[k]);
+            if (matrix != null && matrix[lookupFrom[k] * nodeCount + lookupTo[k]] != cost
+                    || maps != null && mapCost(maps, lookupFrom[k], lookupTo[k]) != cost) {
+                throw new IllegalStateException("Edge layouts differ on " + name);
+            }
+        }
+
+        System.out.println(runner.run("lookup x" + BATCH + " sparse " + name, () -> {
+            long sum = 0;
+            for (int k = 0; k < BATCH; k++) {
+                sum += sparse.get(lookupFrom[k], lookupTo[k]);
+            }
+            return sum;
+        }));
+        if (matrix != null) {
+            int[] costMatrix = matrix;
+            System.out.println(runner.run("lookup x" + BATCH + " matrix " + name, () -> {
+                long sum = 0;
+                for (int k = 0; k < BATCH; k++) {
+                    sum += costMatrix[lookupFrom[k] * nodeCount + lookupTo[k]];
+                }
+                return sum;
+            }));
+        }
+        if (maps != null) {
+            HashMap<Integer, HashMap<Integer, Integer>> costMaps = maps;
+            System.out.println(runner.run("lookup x" + BATCH + " hash maps " + name, () -> {
+                long sum = 0;
+                for (int k = 0; k < BATCH; k++) {
+                    sum += mapCost(costMaps, lookupFrom[k], lookupTo[k]);
+                }
+                return sum;
+            }));
+        }
+    }
+
+    private static int mapCost(HashMap<Integer, HashMap<Integer, Integer>> maps, int fromNode, int toNode) {
+        if (fromNode == toNode) {
+            return 0;
+        }
+        HashMap<Integer, Integer> map = maps.get(fromNode);
+        Integer cost = map == null ? null : map.get(toNode);
+        return cost == null ? TestInstance.NO_EDGE : cost;
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memoryBean.getHeapMemoryUsage().getUsed();
+    }
+
+    // Evaluates the same instance with its edge costs in the matrix and in sparse rows
+    private static void benchmarkSolver(BenchmarkRunner runner, int routeCount, int stopsPerRoute, int nodeCount,
+                                        int nodeCapacity, double edgeDensity) {
+        TestInstance parsed = TestInstanceParser.parse(ByteBuffer.wrap(SyntheticInstances.csv(
+                routeCount, stopsPerRoute, nodeCount, nodeCapacity, edgeDensity, 42)));
+        int edgeCount = 0;
+        int[] matrix = new int[nodeCount * nodeCount];
+        int[] fromNodes = new int[nodeCount * nodeCount];
+        int[] toNodes = new int[fromNodes.length];
+        int[] costs = new int[fromNodes.length];
+        for (int i = 0; i < nodeCount; i++) {
+            for (int j = 0; j < nodeCount; j++) {
+                matrix[i * nodeCount + j] = parsed.edgeCost(i, j);
+                if (i != j && parsed.edgeCost(i, j) != TestInstance.NO_EDGE) {
+                    fromNodes[edgeCount] = i;
+                    toNodes[edgeCount] = j;
+                    costs[edgeCount++] = parsed.edgeCost(i, j);
+                }
+            }
+        }
+        TestInstance dense = new TestInstance(nodeCount, routeCount, parsed.nodeIDs, parsed.nodeCapacities, matrix,
+                parsed.routes, parsed.deliveryDurations, parsed.routeStarts, parsed.tspRoutes, parsed.complexity);
+        TestInstance sparse = new TestInstance(nodeCount, routeCount, parsed.nodeIDs, parsed.nodeCapacities,
+                SparseEdgeCosts.of(nodeCount, fromNodes, toNodes, costs, edgeCount), parsed.routes,
+                parsed.deliveryDurations, parsed.routeStarts, parsed.tspRoutes, parsed.complexity);
+        String name = "r=" + routeCount + " s=" + stopsPerRoute + " n=" + nodeCount + " d=" + edgeDensity;
+
+        Solver denseSolver = new Solver(dense);
+        Solver sparseSolver = new Solver(sparse);
+        if (!Arrays.equals(denseSolver.currentRouteTravelTimes, sparseSolver.currentRouteTravelTimes)
+                || !Arrays.equals(denseSolver.currentRouteWaitTimes, sparseSolver.currentRouteWaitTimes)) {
+            throw new IllegalStateException("Solver results differ on " + name);
+        }
+        System.out.println(runner.run("evaluate matrix " + name, () -> {
+            denseSolver.computeTotalDuration();
+            return denseSolver.currentRouteWaitTimes[0];
+        }));
+        System.out.println(runner.run("evaluate sparse " + name, () -> {
+            sparseSolver.computeTotalDuration();
+            return sparseSolver.currentRouteWaitTimes[0];
+        }));
+    }
+}
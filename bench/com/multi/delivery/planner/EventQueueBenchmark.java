@@ -0,0 +1,140 @@
+package com.multi.delivery.planner;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the EventQueue implementations. Both queues are first checked to poll the same
+ * events on random monotone event streams and to give the same Solver results, then timed on
+ * the hold model (fill the queue, then poll one event and schedule a later one per pending
+ * event) and on Solver.computeTotalDuration
+ * for synthetic instances.
+ *
+ * Usage: EventQueueBenchmark [measureMillis] [routes,stopsPerRoute,nodeCapacity,edgeDensity ...]
+ */
+public class EventQueueBenchmark {
+
+    // Synthetic instances measured when none are given: routes, stops per route, capacity, edge density
+    private static final String[] DEFAULT_CONFIGS = {
+            "1000,8,4,0.2", "10000,8,4,0.2", "20000,8,2,0.2", "50000,8,4,0.2", "50000,16,8,0.2"
+    };
+    // Pending events in the hold model
+    private static final int[] HOLD_SIZES = {1_000, 10_000, 100_000};
+    private static final int MAX_NODES = 1000;
+    private static final int ROUTES_PER_NODE = 10;
+    private static final int[] QUEUE_TYPES = {EventQueue.HEAP, EventQueue.CALENDAR};
+    private static final String[] QUEUE_NAMES = {"heap", "calendar"};
+
+    public static void main(String[] args) {
+        long measureMillis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        String[] configs = args.length > 1 ? Arrays.copyOfRange(args, 1, args.length) : DEFAULT_CONFIGS;
+        BenchmarkRunner runner = new BenchmarkRunner(measureMillis / 2, measureMillis, 100_000);
+
+        for (int seed = 0; seed < 20; seed++) {
+            checkStream(seed);
+        }
+
+        System.out.println(BenchmarkRunner.header());
+        for (int holdSize : HOLD_SIZES) {
+            // Start times and delays are drawn up front, one run fills the queue and holds holdSize times
+            Random random = new Random(42);
+            int[] starts = new int[holdSize];
+            int[] delays = new int[holdSize];
+            for (int j = 0; j < holdSize; j++) {
+                starts[j] = random.nextInt(3600);
+                delays[j] = 60 + random.nextInt(1940);
+            }
+            for (int i = 0; i < QUEUE_TYPES.length; i++) {
+                EventQueue queue = EventQueue.create(QUEUE_TYPES[i], holdSize);
+                System.out.println(runner.run("hold " + QUEUE_NAMES[i] + " n=" + holdSize, () -> {
+                    queue.clear();
+                    for (int j = 0; j < holdSize; j++) {
+                        queue.add(Events.pack(starts[j], Events.ARRIVAL, j, 0));
+                    }
+                    long sum = 0;
+                    for (int j = 0; j < holdSize; j++) {
+                        long event = queue.poll();
+                        queue.add(Events.pack(Events.time(event) + delays[j], Events.ARRIVAL, Events.routeID(event), 1));
+                        sum += event;
+                    }
+                    return sum;
+                }));
+            }
+        }
+
+        for (String config : configs) {
+            String[] values = config.split(",");
+            int routeCount = Integer.parseInt(values[0]);
+            int stopsPerRoute = Integer.parseInt(values[1]);
+            int nodeCapacity = Integer.parseInt(values[2]);
+            double edgeDensity = Double.parseDouble(values[3]);
+            int nodeCount = Math.min(MAX_NODES, Math.max(2 * stopsPerRoute, routeCount / ROUTES_PER_NODE));
+            TestInstance testInstance = TestInstanceParser.parse(ByteBuffer.wrap(SyntheticInstances.csv(
+                    routeCount, stopsPerRoute, nodeCount, nodeCapacity, edgeDensity, 42)));
+            String name = "r=" + routeCount + " s=" + stopsPerRoute + " c=" + nodeCapacity;
+
+            Solver[] solvers = new Solver[QUEUE_TYPES.length];
+            for (int i = 0; i < QUEUE_TYPES.length; i++) {
+                solvers[i] = new Solver(testInstance, QUEUE_TYPES[i]);
+            }
+            checkSolvers(name, solvers[0], solvers[1]);
+            for (int i = 0; i < QUEUE_TYPES.length; i++) {
+                Solver solver = solvers[i];
+                System.out.println(runner.run("evaluate " + QUEUE_NAMES[i] + " " + name, () -> {
+                    solver.computeTotalDuration();
+                    return solver.currentRouteWaitTimes[0];
+                }));
+            }
+        }
+        if (runner.getSink() == 42) {
+            System.out.println();
+        }
+    }
+
+    // Polls a random monotone event stream from both queues, with delays that also reach the overflow
+    private static void checkStream(long seed) {
+        Random random = new Random(seed);
+        EventQueue heap = EventQueue.create(EventQueue.HEAP, 16);
+        EventQueue calendar = EventQueue.create(EventQueue.CALENDAR, 16);
+        for (int round = 0; round < 3; round++) {
+            heap.clear();
+            calendar.clear();
+            int routeID = 0;
+            for (int i = 0; i < 1 + random.nextInt(2000); i++) {
+                long event = Events.pack(random.nextInt(100_000), random.nextInt(2), routeID++, random.nextInt(4));
+                heap.add(event);
+                calendar.add(event);
+            }
+            while (!heap.isEmpty()) {
+                if (heap.size() != calendar.size() || heap.peek() != calendar.peek()) {
+                    throw new IllegalStateException("Queues differ before polling, seed " + seed);
+                }
+                long event = heap.poll();
+                if (calendar.poll() != event) {
+                    throw new IllegalStateException("Polled events differ, seed " + seed);
+                }
+                int time = Events.time(event);
+                for (int k = random.nextInt(3); k > 0 && time < 3_000_000; k--) {
+                    int delay = random.nextInt(10) == 0 ? random.nextInt(5 * CalendarEventQueue.WIDTH)
+                            : random.nextInt(4) == 0 ? 0 : random.nextInt(2000);
+                    long next = Events.pack(time + delay, random.nextInt(2), routeID++ & Events.MAX_ROUTE_ID,
+                            random.nextInt(4));
+                    heap.add(next);
+                    calendar.add(next);
+                }
+            }
+            if (!calendar.isEmpty()) {
+                throw new IllegalStateException("Calendar queue not empty, seed " + seed);
+            }
+        }
+    }
+
+    private static void checkSolvers(String name, Solver expected, Solver actual) {
+        if (!Arrays.equals(expected.currentRouteTravelTimes, actual.currentRouteTravelTimes)
+                || !Arrays.equals(expected.currentRouteWaitTimes, actual.currentRouteWaitTimes)
+                || !Arrays.deepEquals(expected.routeWaitTimesForNodes, actual.routeWaitTimesForNodes)) {
+            throw new IllegalStateException("Solver results differ on " + name);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.multi.delivery.planner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks the hot paths of solving an instance: parsing (TestInstanceParser.parse),
+ * evaluation (Solver.computeTotalDuration) and building an interval tree of all the
+ * visits (RBTree.insert, and IntervalTree by insertion and by bulk build). Runs on the files
+ * in test_instances and on synthetic instances.
+ *
+ * Usage: HotPathBenchmark [measureMillis] [routes,stopsPerRoute,nodeCapacity,edgeDensity ...]
+ */
+public class HotPathBenchmark {
+
+    // Synthetic instances measured when none are given: routes, stops per route, capacity, edge density
+    private static final String[] DEFAULT_CONFIGS = {
+            "100,8,1,0.2", "100,8,4,1.0",
+            "1000,8,1,0.2", "1000,8,4,1.0", "1000,32,2,0.2",
+            "10000,8,1,0.2", "10000,8,4,1.0"
+    };
+    // Synthetic instances have routes / ROUTES_PER_NODE nodes, within the bounds below
+    private static final int ROUTES_PER_NODE = 10;
+    private static final int MAX_NODES = 1000;
+
+    public static void main(String[] args) throws IOException {
+        long measureMillis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        String[] configs = args.length > 1 ? Arrays.copyOfRange(args, 1, args.length) : DEFAULT_CONFIGS;
+        BenchmarkRunner runner = new BenchmarkRunner(measureMillis / 2, measureMillis, 100_000);
+
+        System.out.println(BenchmarkRunner.header());
+        List<Path> filePaths = new ArrayList<>();
+        Path directory = Paths.get("./test_instances");
+        if (Files.isDirectory(directory)) {
+            try (Stream<Path> paths = Files.list(directory)) {
+                filePaths = paths.filter(path -> path.toString().endsWith(".csv")).sorted().collect(Collectors.toList());
+            }
+        }
+        for (Path filePath : filePaths) {
+            benchmark(runner, filePath.getFileName().toString(), Files.readAllBytes(filePath));
+        }
+        for (String config : configs) {
+            String[] values = config.split(",");
+            int routeCount = Integer.parseInt(values[0]);
+            int stopsPerRoute = Integer.parseInt(values[1]);
+            int nodeCapacity = Integer.parseInt(values[2]);
+            double edgeDensity = Double.parseDouble(values[3]);
+            int nodeCount = Math.min(MAX_NODES, Math.max(2 * stopsPerRoute, routeCount / ROUTES_PER_NODE));
+            byte[] csv = SyntheticInstances.csv(routeCount, stopsPerRoute, nodeCount, nodeCapacity, edgeDensity, 42);
+            benchmark(runner, "r=" + routeCount + " s=" + stopsPerRoute + " n=" + nodeCount
+                    + " c=" + nodeCapacity + " d=" + edgeDensity, csv);
+        }
+        if (runner.getSink() == 42) {
+            System.out.println();
+        }
+    }
+
+    private static void benchmark(BenchmarkRunner runner, String name, byte[] csv) {
+        System.out.println(runner.run("parse " + name, () -> TestInstanceParser.parse(ByteBuffer.wrap(csv)).routeCount));
+
+        Solver solver = new Solver(TestInstanceParser.parse(ByteBuffer.wrap(csv)));
+        System.out.println(runner.run("evaluate " + name, () -> {
+            solver.computeTotalDuration();
+            return solver.currentRouteWaitTimes[0];
+        }));
+
+        int[][] visits = visitIntervals(solver);
+        System.out.println(runner.run("rbtree " + name, () -> {
+            RBTree<Float, Float> tree = new RBTree<>();
+            for (int[] visit : visits) {
+                tree.insert(visit[0], true);
+                tree.insert(visit[1], false);
+            }
+            return tree.getMaximumOverlaps();
+        }));
+
+        // The interval tree is reused, as it would be when rebuilt for every evaluation
+        IntervalTree intervalTree = new IntervalTree(2 * visits.length);
+        System.out.println(runner.run("interval tree insert " + name, () -> {
+            intervalTree.clear();
+            for (int[] visit : visits) {
+                intervalTree.insertInterval(visit[0], visit[1]);
+            }
+            return intervalTree.getMaximumOverlaps();
+        }));
+
+        int[] endpoints = new int[2 * visits.length];
+        for (int i = 0; i < visits.length; i++) {
+            endpoints[2 * i] = IntervalTree.endpoint(visits[i][0], true);
+            endpoints[2 * i + 1] = IntervalTree.endpoint(visits[i][1], false);
+        }
+        Arrays.sort(endpoints);
+        System.out.println(runner.run("interval tree build " + name, () -> {
+            intervalTree.build(endpoints, endpoints.length);
+            return intervalTree.getMaximumOverlaps();
+        }));
+    }
+
+    // Arrival and departure time of every visit in the solver's solution
+    private static int[][] visitIntervals(Solver solver) {
+        List<int[]> visits = new ArrayList<>();
+        TestInstance testInstance = solver.testInstance;
+        for (int i = 0; i < solver.currentSolutionRoutes.length; i++) {
+            int[] route = solver.currentSolutionRoutes[i];
+            int time = testInstance.routeStarts[i];
+            for (int j = 0; j < route.length; j++) {
+                int departure = time + solver.routeWaitTimesForNodes[i][j] + solver.currentSolutionDurations[i][j];
+                visits.add(new int[]{time, departure});
+                if (j + 1 < route.length) {
+                    time = departure + testInstance.edgeCost(route[j], route[j + 1]);
+                }
+            }
+        }
+        return visits.toArray(new int[visits.size()][]);
+    }
+}
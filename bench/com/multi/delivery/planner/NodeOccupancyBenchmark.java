@@ -0,0 +1,101 @@
+package com.multi.delivery.planner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Compares NodeOccupancy with the sorted departure list it replaced
+ * (ArrayList + Collections.sort on arrival, remove(Object) on departure)
+ * on a single busy node of increasing capacity.
+ *
+ * Usage: NodeOccupancyBenchmark [arrivals] [rounds]
+ */
+public class NodeOccupancyBenchmark {
+
+    public static void main(String[] args) {
+        int arrivals = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int[] capacities = {4, 32, 256, 2048};
+
+        System.out.println(String.format("%10s %16s %16s %10s", "capacity", "sorted list ns", "occupancy ns", "speedup"));
+        for (int capacity : capacities) {
+            // Arrivals keep the node close to full most of the time
+            int[][] stream = arrivalStream(arrivals, capacity, 42);
+            int[] arrivalTimes = stream[0];
+            int[] durations = stream[1];
+
+            long listWait = 0, occupancyWait = 0;
+            long listNanos = Long.MAX_VALUE, occupancyNanos = Long.MAX_VALUE;
+            // The sorted list is quadratic in the capacity, so it gets fewer arrivals at high capacities
+            int listArrivals = Math.min(arrivals, 50_000_000 / capacity);
+            for (int round = 0; round < rounds; round++) {
+                long start = System.nanoTime();
+                listWait = sortedListWaits(arrivalTimes, durations, listArrivals, capacity);
+                listNanos = Math.min(listNanos, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                occupancyWait = occupancyWaits(arrivalTimes, durations, listArrivals, capacity);
+                occupancyNanos = Math.min(occupancyNanos, System.nanoTime() - start);
+            }
+            if (listWait != occupancyWait) {
+                throw new IllegalStateException("Wait times differ: " + listWait + " != " + occupancyWait);
+            }
+
+            double listPerArrival = (double) listNanos / listArrivals;
+            double occupancyPerArrival = (double) occupancyNanos / listArrivals;
+            System.out.println(String.format("%10d %16.1f %16.1f %9.1fx", capacity, listPerArrival,
+                    occupancyPerArrival, listPerArrival / occupancyPerArrival));
+        }
+    }
+
+    // Generates ascending arrival times and visit durations that keep the node busy
+    private static int[][] arrivalStream(int arrivals, int capacity, long seed) {
+        Random random = new Random(seed);
+        int[] arrivalTimes = new int[arrivals];
+        int[] durations = new int[arrivals];
+        int meanDuration = 600;
+        int time = 0;
+        for (int i = 0; i < arrivals; i++) {
+            // Arrivals use about 90% of what the node can serve, with bursts that build a waiting line
+            time += random.nextInt(Math.max(2 * meanDuration * 11 / (10 * capacity), 1) + 1);
+            arrivalTimes[i] = time;
+            durations[i] = 1 + random.nextInt(2 * meanDuration);
+        }
+        return new int[][]{arrivalTimes, durations};
+    }
+
+    // The node queue as it was kept before NodeOccupancy
+    private static long sortedListWaits(int[] arrivalTimes, int[] durations, int arrivals, int capacity) {
+        ArrayList<Integer> nodeQueue = new ArrayList<>();
+        EventHeap departures = new EventHeap(capacity);
+        long totalWait = 0;
+        for (int i = 0; i < arrivals; i++) {
+            int time = arrivalTimes[i];
+            while (!departures.isEmpty() && departures.peek() <= time) {
+                nodeQueue.remove(Integer.valueOf((int) departures.poll()));
+            }
+            int departureTime;
+            if (nodeQueue.size() < capacity) {
+                departureTime = time + durations[i];
+            } else {
+                int waitUntil = nodeQueue.get(nodeQueue.size() - capacity);
+                departureTime = waitUntil + durations[i];
+                totalWait += waitUntil - time;
+            }
+            nodeQueue.add(departureTime);
+            Collections.sort(nodeQueue);
+            departures.add(departureTime);
+        }
+        return totalWait;
+    }
+
+    private static long occupancyWaits(int[] arrivalTimes, int[] durations, int arrivals, int capacity) {
+        NodeOccupancy nodeOccupancy = new NodeOccupancy(new int[]{capacity});
+        long totalWait = 0;
+        for (int i = 0; i < arrivals; i++) {
+            totalWait += nodeOccupancy.admit(0, arrivalTimes[i], durations[i]) - arrivalTimes[i];
+        }
+        return totalWait;
+    }
+}
@@ -0,0 +1,103 @@
+package com.multi.delivery.planner;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Measures single-route changes of a PlanningSession against simulating the whole day
+ * again (Solver.computeTotalDuration) on synthetic instances. Every timed operation is
+ * one change, alternating between making a change and undoing it on routes spread over
+ * the day: moving a start time by SHIFT_SECONDS and back, and adding a copy of a route
+ * and cancelling it. The session must be back at its initial total after every pair. The
+ * number of visits simulated per change shows how far changes reach on the instance.
+ *
+ * Usage: PlanningSessionBenchmark [measureMillis] [routes,stopsPerRoute,nodes,nodeCapacity ...]
+ */
+public class PlanningSessionBenchmark {
+
+    // Instances measured when none are given: routes, stops per route, nodes, node capacity. All routes
+    // start within two hours, so the fewer nodes and the less capacity, the further a change reaches.
+    private static final String[] DEFAULT_CONFIGS = {"5000,8,5000,2", "5000,8,2000,8", "1000,8,200,2", "5000,8,1000,2"};
+    private static final double EDGE_DENSITY = 0.05;
+    // Start time shift of a route
+    private static final int SHIFT_SECONDS = 600;
+    // Routes added (and cancelled) in the warm-up and the measurement, as cancelled routes keep their IDs
+    private static final int MAX_ADDED_ROUTES = 2000;
+
+    public static void main(String[] args) {
+        long measureMillis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        String[] configs = args.length > 1 ? Arrays.copyOfRange(args, 1, args.length) : DEFAULT_CONFIGS;
+        BenchmarkRunner runner = new BenchmarkRunner(measureMillis / 2, measureMillis, 100_000);
+        BenchmarkRunner addRunner = new BenchmarkRunner(measureMillis / 20, measureMillis, MAX_ADDED_ROUTES);
+
+        System.out.println(BenchmarkRunner.header());
+        for (String config : configs) {
+            String[] values = config.split(",");
+            benchmark(runner, addRunner, Integer.parseInt(values[0]), Integer.parseInt(values[1]),
+                    Integer.parseInt(values[2]), Integer.parseInt(values[3]));
+        }
+        if (runner.getSink() + addRunner.getSink() == 42) {
+            System.out.println();
+        }
+    }
+
+    private static void benchmark(BenchmarkRunner runner, BenchmarkRunner addRunner, int routeCount,
+                                  int stopsPerRoute, int nodeCount, int nodeCapacity) {
+        TestInstance testInstance = TestInstanceParser.parse(ByteBuffer.wrap(SyntheticInstances.csv(
+                routeCount, stopsPerRoute, nodeCount, nodeCapacity, EDGE_DENSITY, 42)));
+        String name = "r=" + routeCount + " s=" + stopsPerRoute + " n=" + nodeCount + " c=" + nodeCapacity;
+        PlanningSession session = new PlanningSession(testInstance);
+        long initialTotal = session.getTotalDuration();
+
+        Solver solver = new Solver(testInstance);
+        System.out.println(runner.run("full simulation " + name, () -> {
+            solver.computeTotalDuration();
+            return solver.currentRouteWaitTimes[0];
+        }));
+
+        // Odd operations undo the change of the one before, on the same route
+        int[] step = new int[1];
+        BenchmarkRunner.Operation shiftStart = () -> {
+            int routeID = (int) ((step[0] >> 1) * 7919L % routeCount);
+            int shift = (step[0] & 1) == 0 ? SHIFT_SECONDS : -SHIFT_SECONDS;
+            session.setRouteStart(routeID, session.getRouteStart(routeID) + shift);
+            checkTotal(session, step[0]++, initialTotal);
+            return session.getTotalWaitTime();
+        };
+        measure(runner, "shift start " + name, shiftStart, session, step);
+
+        BenchmarkRunner.Operation addAndCancel = () -> {
+            int routeID = (int) ((step[0] >> 1) * 7919L % routeCount);
+            if ((step[0] & 1) == 0) {
+                session.addRoute(testInstance.routes[routeID], testInstance.deliveryDurations[routeID],
+                        testInstance.routeStarts[routeID] + SHIFT_SECONDS);
+            } else {
+                session.cancelRoute(session.getRouteCount() - 1);
+            }
+            checkTotal(session, step[0]++, initialTotal);
+            return session.getTotalWaitTime();
+        };
+        measure(addRunner, "add/cancel route " + name, addAndCancel, session, step);
+    }
+
+    // Runs the operation and reports the visits simulated per change. The last change is undone
+    // if the measurement stopped right after it.
+    private static void measure(BenchmarkRunner runner, String name, BenchmarkRunner.Operation operation,
+                                PlanningSession session, int[] step) {
+        step[0] = 0;
+        long simulatedBefore = session.getSimulatedVisits();
+        System.out.println(runner.run(name, operation));
+        System.out.printf("  %.1f visits simulated per change%n",
+                (session.getSimulatedVisits() - simulatedBefore) / (double) step[0]);
+        if ((step[0] & 1) == 1) {
+            operation.run();
+        }
+    }
+
+    private static void checkTotal(PlanningSession session, int step, long initialTotal) {
+        if ((step & 1) == 1 && session.getTotalDuration() != initialTotal) {
+            throw new IllegalStateException("Session total " + session.getTotalDuration()
+                    + " after undoing a change differs from " + initialTotal);
+        }
+    }
+}
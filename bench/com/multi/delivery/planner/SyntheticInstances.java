@@ -0,0 +1,80 @@
+package com.multi.delivery.planner;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Random test instances in the CSV format, for benchmarks.
+ *
+ * Consecutive stops of every route are always connected, any other pair of nodes has an
+ * edge with probability edgeDensity. Routes start between 08:00 and 10:00, so nodes with
+ * a small capacity are congested.
+ */
+public class SyntheticInstances {
+
+    // Returns the CSV text of a random test instance
+    public static byte[] csv(int routeCount, int stopsPerRoute, int nodeCount, int nodeCapacity,
+                             double edgeDensity, long seed) {
+        if (stopsPerRoute > nodeCount) {
+            throw new IllegalArgumentException("Routes cannot have more stops than there are nodes");
+        }
+        Random random = new Random(seed);
+        StringBuilder csv = new StringBuilder(routeCount * stopsPerRoute * 12 + nodeCount * nodeCount * 12);
+        int[] nodeIDs = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            nodeIDs[i] = 10000 + i;
+        }
+
+        // Routes visit distinct nodes
+        boolean[] hasEdge = new boolean[nodeCount * nodeCount];
+        int[][] routes = new int[routeCount][];
+        int[] permutation = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            permutation[i] = i;
+        }
+        csv.append("ROUTES\n");
+        for (int i = 0; i < routeCount; i++) {
+            routes[i] = new int[stopsPerRoute];
+            for (int j = 0; j < stopsPerRoute; j++) {
+                int k = j + random.nextInt(nodeCount - j);
+                int node = permutation[k];
+                permutation[k] = permutation[j];
+                permutation[j] = node;
+                routes[i][j] = node;
+                if (j > 0) {
+                    hasEdge[routes[i][j - 1] * nodeCount + node] = true;
+                }
+            }
+            int start = 8 * 3600 + random.nextInt(2 * 3600);
+            csv.append(String.format("%02d:%02d:%02d", start / 3600, start / 60 % 60, start % 60));
+            for (int j = 0; j < stopsPerRoute; j++) {
+                csv.append(',').append(nodeIDs[routes[i][j]]).append('|').append(60 + random.nextInt(1940));
+            }
+            csv.append('\n');
+        }
+
+        csv.append("NODES\n");
+        for (int i = 0; i < nodeCount; i++) {
+            csv.append(nodeIDs[i]).append(',').append(nodeCapacity).append('\n');
+        }
+
+        csv.append("EDGES\n");
+        for (int i = 0; i < nodeCount; i++) {
+            for (int j = 0; j < nodeCount; j++) {
+                if (i != j && (hasEdge[i * nodeCount + j] || random.nextDouble() < edgeDensity)) {
+                    csv.append(nodeIDs[i]).append(',').append(nodeIDs[j]).append(',')
+                            .append(30 + random.nextInt(570)).append('\n');
+                }
+            }
+        }
+
+        csv.append("COMPLEXITY\n0.5\nTSP SOLUTION\n");
+        for (int i = 0; i < routeCount; i++) {
+            for (int j = 0; j < stopsPerRoute; j++) {
+                csv.append(j > 0 ? "," : "").append(nodeIDs[routes[i][j]]);
+            }
+            csv.append('\n');
+        }
+        return csv.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
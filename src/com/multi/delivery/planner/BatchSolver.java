@@ -0,0 +1,256 @@
+package com.multi.delivery.planner;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Solves all of the test instance files in a directory as a pipeline.
+ *
+ * Files are parsed on a pool of I/O threads while previously parsed instances are solved
+ * on a pool of solver threads. At most maxInFlight instances are between parsing and
+ * being handed to the consumer at any time, so memory stays flat however many files the
+ * directory holds. Results are handed to the consumer in file name order, regardless of
+ * the order in which solving finishes.
+ *
+ * Instances small enough for BranchAndBound (at most exactMaxStops stops) are solved exactly
+ * after the annealing, larger ones fall back to the local search.
+ *
+ * Solving by components splits every solution into independent components of routes (see
+ * Decomposition), which are annealed and locally searched in parallel on the local search
+ * threads, each with a share of the budgets, instead of annealing and searching the whole
+ * solution. The exact search still runs on the whole solution afterwards.
+ *
+ * With shortest paths on, the edge costs of every instance are first replaced by shortest travel
+ * times (see ShortestPaths), which are cached for instances over the same graph.
+ *
+ * With a solution directory set, the timeline of every solution is written there as it is
+ * solved (see SolutionWriter), named after the instance file's path relative to the directory
+ * solved. The name is reserved before the instance is parsed, so an instance that would share a
+ * solution file with another one gets an error result without being solved.
+ */
+public class BatchSolver {
+
+    // Outcome of solving one test instance file
+    public static class Result {
+        final Path filePath;
+        // Null if the instance could not be parsed or solved
+        final Solver solver;
+        // Null if no annealing, local search, exact search or solving by components was run
+        final SimulatedAnnealing annealing;
+        final LocalSearch localSearch;
+        final BranchAndBound branchAndBound;
+        final Decomposition decomposition;
+        // Reason why the instance could not be solved
+        final Throwable error;
+
+        Result(Path filePath, Solver solver, SimulatedAnnealing annealing, LocalSearch localSearch,
+               BranchAndBound branchAndBound, Decomposition decomposition, Throwable error) {
+            this.filePath = filePath;
+            this.solver = solver;
+            this.annealing = annealing;
+            this.localSearch = localSearch;
+            this.branchAndBound = branchAndBound;
+            this.decomposition = decomposition;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            if (this.solver == null) {
+                return this.filePath + ": " + this.error.getMessage();
+            }
+            long travelTime = 0, waitTime = 0;
+            for (int i = 0; i < this.solver.currentRouteTravelTimes.length; i++) {
+                travelTime += this.solver.currentRouteTravelTimes[i];
+                waitTime += this.solver.currentRouteWaitTimes[i];
+            }
+            String result = this.filePath + ": routes = " + this.solver.currentSolutionRoutes.length
+                    + ", travel time = " + travelTime + ", wait time = " + waitTime;
+            if (this.annealing != null) {
+                result += ", " + this.annealing;
+            }
+            if (this.localSearch != null) {
+                result += ", " + this.localSearch;
+            }
+            if (this.branchAndBound != null) {
+                result += ", " + this.branchAndBound;
+            }
+            if (this.decomposition != null) {
+                result += ", " + this.decomposition;
+            }
+            return result;
+        }
+    }
+
+    // Number of parser threads
+    private final int ioThreadCount;
+    // Number of solver threads
+    private final int solverThreadCount;
+    // Maximal number of instances being parsed, solved or waiting to be handed out
+    private final int maxInFlight;
+    // Local search settings, no local search if the time budget is 0
+    private final int localSearchThreadCount;
+    private final long localSearchTimeBudgetMillis;
+    // Simulated annealing time budget, run before the local search unless it is 0
+    private final long annealingTimeBudgetMillis;
+    // Exact search time budget, no exact search if it is 0, and the largest instance searched (in stops)
+    private final long exactTimeBudgetMillis;
+    private final int exactMaxStops;
+    // Whether to solve over shortest travel times instead of the edge costs as given
+    private boolean shortestPaths;
+    // Whether to anneal and search the independent components of a solution in parallel (see Decomposition)
+    private boolean solveByComponents;
+    // Directory the solutions are written to, or null, and their format (see SolutionWriter)
+    private Path solutionDirectory;
+    private int solutionFormat;
+    // Instance file every solution file of solveAll is reserved for, so that two instances never share one
+    private final ConcurrentHashMap<Path, Path> solutionSources = new ConcurrentHashMap<>();
+
+    public BatchSolver(int ioThreadCount, int solverThreadCount, int maxInFlight,
+                       int localSearchThreadCount, long localSearchTimeBudgetMillis, long annealingTimeBudgetMillis,
+                       long exactTimeBudgetMillis, int exactMaxStops) {
+        if (ioThreadCount < 1 || solverThreadCount < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("Thread counts and the number of instances in flight must be positive");
+        }
+        this.ioThreadCount = ioThreadCount;
+        this.solverThreadCount = solverThreadCount;
+        this.maxInFlight = maxInFlight;
+        this.localSearchThreadCount = localSearchThreadCount;
+        this.localSearchTimeBudgetMillis = localSearchTimeBudgetMillis;
+        this.annealingTimeBudgetMillis = annealingTimeBudgetMillis;
+        this.exactTimeBudgetMillis = exactTimeBudgetMillis;
+        this.exactMaxStops = exactMaxStops;
+    }
+
+    public void setShortestPaths(boolean shortestPaths) {
+        this.shortestPaths = shortestPaths;
+    }
+
+    public void setSolveByComponents(boolean solveByComponents) {
+        this.solveByComponents = solveByComponents;
+    }
+
+    // Writes the solutions to the directory, which is created if it does not exist
+    public void setSolutionOutput(Path solutionDirectory, int solutionFormat) throws IOException {
+        if (solutionFormat != SolutionWriter.CSV && solutionFormat != SolutionWriter.BINARY) {
+            throw new IllegalArgumentException("Unknown solution format: " + solutionFormat);
+        }
+        Files.createDirectories(solutionDirectory);
+        this.solutionDirectory = solutionDirectory;
+        this.solutionFormat = solutionFormat;
+    }
+
+    // Solves all of the test instance files under the directory and hands the results to the consumer in file order
+    public void solveAll(Path directory, Consumer<Result> consumer) throws IOException {
+        List<Path> filePaths;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            // Binary copies are picked up through their CSV files, and solutions are no test instances
+            filePaths = paths.filter(path -> Files.isRegularFile(path) && !TestInstanceBinary.isConvertedCopy(path)
+                    && !SolutionWriter.isSolutionFile(path))
+                    .sorted().collect(Collectors.toList());
+        }
+
+        ExecutorService ioExecutor = Executors.newFixedThreadPool(this.ioThreadCount);
+        ExecutorService solverExecutor = Executors.newFixedThreadPool(this.solverThreadCount);
+        try {
+            // Instances in flight, oldest first
+            ArrayDeque<CompletableFuture<Result>> inFlight = new ArrayDeque<>(this.maxInFlight);
+            for (Path filePath : filePaths) {
+                // Back-pressure: hand out the oldest instance before starting a new one
+                if (inFlight.size() == this.maxInFlight) {
+                    consumer.accept(inFlight.poll().join());
+                }
+                Path solutionName = directory.relativize(filePath);
+                try {
+                    this.reserveSolution(filePath, solutionName);
+                } catch (IOException e) {
+                    inFlight.add(CompletableFuture.completedFuture(new Result(filePath, null, null, null, null, null, e)));
+                    continue;
+                }
+                inFlight.add(CompletableFuture
+                        .supplyAsync(() -> TestInstanceBinary.load(filePath), ioExecutor)
+                        .thenApplyAsync(testInstance -> this.solve(filePath, solutionName, testInstance), solverExecutor)
+                        .exceptionally(e -> new Result(filePath, null, null, null, null, null, e.getCause() != null ? e.getCause() : e)));
+            }
+            while (!inFlight.isEmpty()) {
+                consumer.accept(inFlight.poll().join());
+            }
+        } finally {
+            ioExecutor.shutdownNow();
+            solverExecutor.shutdownNow();
+        }
+    }
+
+    public int getSolverThreadCount() {
+        return this.solverThreadCount;
+    }
+
+    public int getMaxInFlight() {
+        return this.maxInFlight;
+    }
+
+    // Reserves the solution file of an instance file for it, failing if another instance file has it
+    private void reserveSolution(Path filePath, Path solutionName) throws IOException {
+        if (this.solutionDirectory == null) {
+            return;
+        }
+        Path solutionPath = SolutionWriter.solutionPath(this.solutionDirectory, solutionName, this.solutionFormat);
+        Path source = filePath.toAbsolutePath().normalize();
+        Path previousSource = this.solutionSources.putIfAbsent(solutionPath, source);
+        if (previousSource != null && !previousSource.equals(source)) {
+            throw new IOException("solution file " + solutionPath + " is already taken by " + previousSource);
+        }
+    }
+
+    // Solves one test instance whose solution file is named after solutionName, a path relative to the
+    // solution directory that the caller keeps apart from those of other instances; the file path only
+    // names the instance in the result
+    Result solve(Path filePath, Path solutionName, TestInstance testInstance) {
+        if (testInstance == null) {
+            return new Result(filePath, null, null, null, null, null, new IOException("could not be parsed"));
+        }
+        if (this.shortestPaths) {
+            testInstance = ShortestPaths.close(testInstance, this.localSearchThreadCount);
+        }
+        Solver solver = new Solver(testInstance);
+        SimulatedAnnealing annealing = null;
+        Decomposition decomposition = null;
+        if (this.solveByComponents) {
+            decomposition = solver.solveByComponents(this.localSearchThreadCount, this.annealingTimeBudgetMillis,
+                    this.localSearchTimeBudgetMillis);
+        } else if (this.annealingTimeBudgetMillis > 0) {
+            annealing = solver.anneal(this.annealingTimeBudgetMillis, filePath.getFileName().toString().hashCode());
+        }
+        LocalSearch localSearch = null;
+        BranchAndBound branchAndBound = null;
+        if (this.exactTimeBudgetMillis > 0 && BranchAndBound.fits(solver.currentSolutionRoutes, this.exactMaxStops)) {
+            branchAndBound = solver.solveExact(this.localSearchThreadCount, this.exactTimeBudgetMillis);
+        } else if (!this.solveByComponents && this.localSearchTimeBudgetMillis > 0) {
+            localSearch = solver.improve(this.localSearchThreadCount, this.localSearchTimeBudgetMillis);
+        }
+        if (this.solutionDirectory != null) {
+            try {
+                this.writeSolution(solutionName, solver);
+            } catch (IOException e) {
+                return new Result(filePath, null, null, null, null, null, e);
+            }
+        }
+        return new Result(filePath, solver, annealing, localSearch, branchAndBound, decomposition, null);
+    }
+
+    private void writeSolution(Path solutionName, Solver solver) throws IOException {
+        Path solutionPath = SolutionWriter.solutionPath(this.solutionDirectory, solutionName, this.solutionFormat);
+        Files.createDirectories(solutionPath.getParent());
+        SolutionWriter.write(solver, solutionPath, this.solutionFormat);
+    }
+}
@@ -0,0 +1,208 @@
+package com.multi.delivery.planner;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Index of the congested nodes of a solution, used to aim moves at the stops involved in waiting.
+ *
+ * The index is built from the wait time and service start of every stop (see
+ * IncrementalEvaluator.getRouteWaitTimesForNodes). Every node where vehicles wait gets a time
+ * window, from the earliest arrival of a waiting vehicle to the latest departure of one. The
+ * weight of a stop is its own wait time plus an equal share of the wait time of its node among
+ * all the visits overlapping that window, so the vehicles occupying the slots that others wait
+ * for are as likely to be moved as the waiting ones. The travel time of a route above its
+ * LowerBound is what reordering can still save on travel, and is shared equally by its stops.
+ * Routes are sampled in proportion to the total weight of their stops and stops within a route in
+ * proportion to their weight; routes that neither wait, block others nor travel more than their
+ * bound have no weight and are never sampled.
+ *
+ * The index is a snapshot: it is not updated by moves and has to be rebuilt to follow the solution.
+ */
+public class BottleneckIndex {
+
+    // Test instance the solution belongs to
+    private final TestInstance testInstance;
+
+    // Total wait time at every node and the window of the waiting visits
+    private final long[] nodeWaits;
+    private final int[] windowStarts;
+    private final int[] windowEnds;
+    // Visits overlapping the window of every node
+    private final int[] windowVisits;
+    // Nodes with waiting, by decreasing wait time
+    private int[] congestedNodes = new int[0];
+
+    // Weight of every stop, and running totals of the route weights for sampling
+    private long[][] stopWeights;
+    private long[] cumulativeRouteWeights;
+
+    public BottleneckIndex(TestInstance testInstance) {
+        this.testInstance = testInstance;
+        int nodeCount = testInstance.nodeCount;
+        this.nodeWaits = new long[nodeCount];
+        this.windowStarts = new int[nodeCount];
+        this.windowEnds = new int[nodeCount];
+        this.windowVisits = new int[nodeCount];
+        this.stopWeights = new long[0][];
+        this.cumulativeRouteWeights = new long[0];
+    }
+
+    // Rebuilds the index for the current solution of an evaluator and the bound on its travel times
+    public void rebuild(IncrementalEvaluator evaluator, LowerBound lowerBound) {
+        int[][] routes = evaluator.getRoutes();
+        int[][] durations = evaluator.getDurations();
+        int[][] waitTimes = evaluator.getRouteWaitTimesForNodes();
+        int[][] serviceStarts = evaluator.getRouteServiceStarts();
+        int[] travelTimes = evaluator.getRouteTravelTimes();
+        int routeCount = routes.length;
+        Arrays.fill(this.nodeWaits, 0);
+        Arrays.fill(this.windowStarts, Integer.MAX_VALUE);
+        Arrays.fill(this.windowEnds, Integer.MIN_VALUE);
+        Arrays.fill(this.windowVisits, 0);
+        if (this.stopWeights.length != routeCount) {
+            this.stopWeights = new long[routeCount][];
+            this.cumulativeRouteWeights = new long[routeCount];
+        }
+
+        // Wait time and window of every node
+        int congestedCount = 0;
+        for (int i = 0; i < routeCount; i++) {
+            for (int j = 0; j < routes[i].length; j++) {
+                int waitTime = waitTimes[i][j];
+                if (waitTime == 0) {
+                    continue;
+                }
+                int node = routes[i][j];
+                if (this.nodeWaits[node] == 0) {
+                    congestedCount++;
+                }
+                this.nodeWaits[node] += waitTime;
+                this.windowStarts[node] = Math.min(this.windowStarts[node], serviceStarts[i][j] - waitTime);
+                this.windowEnds[node] = Math.max(this.windowEnds[node], serviceStarts[i][j] + durations[i][j]);
+            }
+        }
+        for (int i = 0; i < routeCount; i++) {
+            for (int j = 0; j < routes[i].length; j++) {
+                if (this.overlapsWindow(routes[i][j], serviceStarts[i][j] - waitTimes[i][j], serviceStarts[i][j] + durations[i][j])) {
+                    this.windowVisits[routes[i][j]]++;
+                }
+            }
+        }
+
+        // Stop and route weights
+        long total = 0;
+        for (int i = 0; i < routeCount; i++) {
+            int length = routes[i].length;
+            if (this.stopWeights[i] == null || this.stopWeights[i].length != length) {
+                this.stopWeights[i] = new long[length];
+            }
+            long travelShare = length == 0 ? 0 : Math.max(0, travelTimes[i] - lowerBound.getRouteTravelBound(i)) / length;
+            for (int j = 0; j < length; j++) {
+                int node = routes[i][j];
+                long weight = waitTimes[i][j] + travelShare;
+                if (this.overlapsWindow(node, serviceStarts[i][j] - waitTimes[i][j], serviceStarts[i][j] + durations[i][j])) {
+                    weight += this.nodeWaits[node] / this.windowVisits[node];
+                }
+                this.stopWeights[i][j] = weight;
+                total += weight;
+            }
+            this.cumulativeRouteWeights[i] = total;
+        }
+
+        this.congestedNodes = new int[congestedCount];
+        for (int node = 0, k = 0; node < this.nodeWaits.length; node++) {
+            if (this.nodeWaits[node] > 0) {
+                this.congestedNodes[k++] = node;
+            }
+        }
+        this.sortCongestedNodes();
+    }
+
+    // Whether a visit from arrival to departure overlaps the window of a node with waiting
+    private boolean overlapsWindow(int node, int arrival, int departure) {
+        return this.nodeWaits[node] > 0 && arrival < this.windowEnds[node] && departure > this.windowStarts[node];
+    }
+
+    private void sortCongestedNodes() {
+        long[] keys = new long[this.congestedNodes.length];
+        for (int k = 0; k < keys.length; k++) {
+            // Wait times stay far below 2^32 seconds, so the key sorts by decreasing wait, then node
+            keys[k] = (-this.nodeWaits[this.congestedNodes[k]] << 32) | this.congestedNodes[k];
+        }
+        Arrays.sort(keys);
+        for (int k = 0; k < keys.length; k++) {
+            this.congestedNodes[k] = (int) keys[k];
+        }
+    }
+
+    // Total weight of all the stops, 0 if no route waits, blocks or travels more than its bound
+    public long getTotalWeight() {
+        return this.cumulativeRouteWeights.length == 0 ? 0 : this.cumulativeRouteWeights[this.cumulativeRouteWeights.length - 1];
+    }
+
+    public long getRouteWeight(int routeID) {
+        return this.cumulativeRouteWeights[routeID] - (routeID == 0 ? 0 : this.cumulativeRouteWeights[routeID - 1]);
+    }
+
+    public long getStopWeight(int routeID, int position) {
+        return this.stopWeights[routeID][position];
+    }
+
+    // Draws a route in proportion to its weight; the total weight must be positive
+    public int sampleRoute(SplittableRandom random) {
+        long target = random.nextLong(this.getTotalWeight());
+        // First route whose running total exceeds the target
+        int idx = Arrays.binarySearch(this.cumulativeRouteWeights, target + 1);
+        if (idx < 0) {
+            return -idx - 1;
+        }
+        while (idx > 0 && this.cumulativeRouteWeights[idx - 1] == target + 1) {
+            idx--;
+        }
+        return idx;
+    }
+
+    // Draws a stop of a route in proportion to its weight; the weight of the route must be positive
+    public int sampleStop(int routeID, SplittableRandom random) {
+        long[] weights = this.stopWeights[routeID];
+        long target = random.nextLong(this.getRouteWeight(routeID));
+        for (int j = 0; j < weights.length; j++) {
+            target -= weights[j];
+            if (target < 0) {
+                return j;
+            }
+        }
+        throw new IllegalStateException("Route " + routeID + " has no weight");
+    }
+
+    // Nodes with waiting, by decreasing total wait time
+    public int[] getCongestedNodes() {
+        return this.congestedNodes;
+    }
+
+    public long getNodeWait(int node) {
+        return this.nodeWaits[node];
+    }
+
+    // Window of the waiting visits of a congested node: earliest arrival and latest departure
+    public int getWindowStart(int node) {
+        return this.windowStarts[node];
+    }
+
+    public int getWindowEnd(int node) {
+        return this.windowEnds[node];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder("congested nodes = " + this.congestedNodes.length);
+        for (int k = 0; k < Math.min(3, this.congestedNodes.length); k++) {
+            int node = this.congestedNodes[k];
+            result.append(k == 0 ? " (" : ", ").append(this.testInstance.nodeIDs[node]).append(": ")
+                    .append(this.nodeWaits[node]).append(" s waited in ").append(this.windowStarts[node]).append('-')
+                    .append(this.windowEnds[node]);
+        }
+        return result.append(this.congestedNodes.length > 0 ? ")" : "").toString();
+    }
+}
@@ -0,0 +1,491 @@
+package com.multi.delivery.planner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Exact branch-and-bound search over the stop orderings of the routes, for small instances.
+ *
+ * The search runs the event simulation of Solver and branches whenever a vehicle arrives at a
+ * stop, on the stop it goes to next (or, at the start of a route, on the first stop). Events are
+ * polled in the order of the simulation whatever the orderings, so a partial schedule is extended
+ * by one visit per step and undone by restoring the node occupancy. A partial schedule is pruned
+ * when its travel and wait time so far, plus the shortest Hamiltonian path over the remaining
+ * stops of every route (see LowerBound) and the wait for the next slot at the nodes the vehicles
+ * are heading to, is not below the best solution found. It is also pruned when the same state,
+ * the pending arrivals, the remaining stops and the slots occupied after the current time, was
+ * reached before at no higher cost; every worker thread keeps a direct-mapped memo of states by
+ * hash. Stops of a route with the same node and duration are interchangeable and branched on once.
+ *
+ * The first FORK_DEPTH levels of the search tree are forked as tasks of a ForkJoinPool, whose work
+ * stealing balances the uneven subtrees, and all the tasks share the best total for pruning. The
+ * given solution is the first incumbent, so the search returns it unless it finds a shorter one;
+ * the result is proven optimal unless the time budget runs out first.
+ */
+public class BranchAndBound {
+
+    // Longest route searched, stop sets are bitmasks and the path bounds of a route take 2^length * length ints
+    public static final int MAX_ROUTE_LENGTH = 12;
+    // Largest instance, in stops, searched unless set otherwise (see fits)
+    public static final int DEFAULT_MAX_STOPS = 64;
+    // Levels of the search tree forked as separate tasks
+    private static final int FORK_DEPTH = 2;
+    // Entries of the memo of every worker thread
+    private static final int MEMO_BITS = 18;
+    // Search nodes between reading the clock
+    private static final int CLOCK_INTERVAL = 1024;
+
+    // Test instance the solution belongs to
+    private final TestInstance testInstance;
+    private final int threadCount;
+    // Time budget in nanoseconds
+    private final long timeBudget;
+    // Stops of every route, in the given order
+    private final int[][] routes;
+    private final int[][] durations;
+    // Shortest path over a set of stops of a route starting at one of them: [set * length + first]
+    private final int[][] pathBounds;
+    // Bound on the travel time of every whole route
+    private final int[] routeBounds;
+    // Stops of a route with the same node and duration at lower positions, as a bitmask
+    private final int[][] twins;
+    // Start of each node's slot free times in a saved NodeOccupancy state
+    private final int[] slotOffsets;
+
+    // Best solution found, shared by all the tasks
+    private final AtomicLong bestTotal = new AtomicLong();
+    private int[][] bestRoutes;
+    private int[][] bestDurations;
+    private long deadline;
+    private volatile boolean timedOut;
+    // Memo of every worker thread
+    private final ThreadLocal<long[]> memos = ThreadLocal.withInitial(() -> new long[2 << MEMO_BITS]);
+
+    // Statistics
+    private final LongAdder nodesExplored = new LongAdder();
+    private final LongAdder boundPrunes = new LongAdder();
+    private final LongAdder memoPrunes = new LongAdder();
+    private long initialDuration;
+    private long rootBound;
+    private long elapsedTime;
+
+    public BranchAndBound(TestInstance testInstance, int[][] routes, int[][] durations, int threadCount, long timeBudgetMillis) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be positive: " + threadCount);
+        }
+        for (int i = 0; i < routes.length; i++) {
+            if (routes[i].length == 0 || routes[i].length > MAX_ROUTE_LENGTH) {
+                throw new IllegalArgumentException("Route " + i + " must have 1 to " + MAX_ROUTE_LENGTH + " stops");
+            }
+        }
+        this.testInstance = testInstance;
+        this.threadCount = threadCount;
+        this.timeBudget = timeBudgetMillis * 1_000_000L;
+        this.routes = routes;
+        this.durations = durations;
+
+        int routeCount = routes.length;
+        this.pathBounds = new int[routeCount][];
+        this.routeBounds = new int[routeCount];
+        this.twins = new int[routeCount][];
+        for (int i = 0; i < routeCount; i++) {
+            this.pathBounds[i] = this.pathBounds(routes[i]);
+            int length = routes[i].length;
+            this.routeBounds[i] = this.remainingPath(i, -1, (1 << length) - 1);
+            this.rootBound += this.routeBounds[i];
+            this.twins[i] = new int[length];
+            for (int j = 0; j < length; j++) {
+                for (int k = 0; k < j; k++) {
+                    if (routes[i][k] == routes[i][j] && durations[i][k] == durations[i][j]) {
+                        this.twins[i][j] |= 1 << k;
+                    }
+                }
+            }
+        }
+        this.slotOffsets = new int[testInstance.nodeCount];
+        int offset = testInstance.nodeCount;
+        for (int node = 0; node < testInstance.nodeCount; node++) {
+            this.slotOffsets[node] = offset;
+            offset += testInstance.nodeCapacities[node];
+        }
+
+        this.initialDuration = new IncrementalEvaluator(testInstance, routes, durations).getTotalDuration();
+        this.bestTotal.set(this.initialDuration);
+        this.bestRoutes = routes;
+        this.bestDurations = durations;
+    }
+
+    // Whether the search handles the routes with at most maxStops stops in total
+    public static boolean fits(int[][] routes, int maxStops) {
+        int stops = 0;
+        for (int[] route : routes) {
+            if (route.length == 0 || route.length > MAX_ROUTE_LENGTH) {
+                return false;
+            }
+            stops += route.length;
+        }
+        return stops <= maxStops;
+    }
+
+    // Shortest Hamiltonian paths over the subsets of the stops of a route, by their first stop
+    private int[] pathBounds(int[] route) {
+        int length = route.length;
+        int[] bounds = new int[(1 << length) * length];
+        for (int set = 1; set < 1 << length; set++) {
+            for (int first = 0; first < length; first++) {
+                if ((set & (1 << first)) == 0) {
+                    continue;
+                }
+                int rest = set & ~(1 << first);
+                int bound = rest == 0 ? 0 : Integer.MAX_VALUE;
+                for (int next = 0; next < length && rest != 0; next++) {
+                    int pathCost = bounds[rest * length + next];
+                    if ((rest & (1 << next)) == 0 || pathCost == Integer.MAX_VALUE) {
+                        continue;
+                    }
+                    int edgeCost = this.testInstance.edgeCost(route[first], route[next]);
+                    if (edgeCost != TestInstance.NO_EDGE) {
+                        bound = Math.min(bound, edgeCost + pathCost);
+                    }
+                }
+                bounds[set * length + first] = bound;
+            }
+        }
+        return bounds;
+    }
+
+    // Shortest path from a stop of a route (-1 before the first stop) over a set of its stops,
+    // Integer.MAX_VALUE if there is none
+    private int remainingPath(int routeID, int from, int set) {
+        if (set == 0) {
+            return 0;
+        }
+        int[] route = this.routes[routeID];
+        int length = route.length;
+        int[] bounds = this.pathBounds[routeID];
+        int best = Integer.MAX_VALUE;
+        for (int first = 0; first < length; first++) {
+            int pathCost = bounds[set * length + first];
+            if ((set & (1 << first)) == 0 || pathCost == Integer.MAX_VALUE) {
+                continue;
+            }
+            int edgeCost = from < 0 ? 0 : this.testInstance.edgeCost(route[from], route[first]);
+            if (edgeCost != TestInstance.NO_EDGE) {
+                best = Math.min(best, edgeCost + pathCost);
+            }
+        }
+        return best;
+    }
+
+    // Runs the search until the best solution is proven optimal or the time budget is used up
+    public void run() {
+        long startTime = System.nanoTime();
+        this.deadline = startTime + this.timeBudget;
+        if (this.rootBound < this.bestTotal.get()) {
+            ForkJoinPool pool = new ForkJoinPool(this.threadCount);
+            try {
+                pool.invoke(new Search());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        this.elapsedTime = System.nanoTime() - startTime;
+    }
+
+    // Records a complete solution if it is the best so far
+    private synchronized void offer(long total, int[][] order) {
+        if (total >= this.bestTotal.get()) {
+            return;
+        }
+        int[][] routes = new int[order.length][];
+        int[][] durations = new int[order.length][];
+        for (int i = 0; i < order.length; i++) {
+            routes[i] = new int[order[i].length];
+            durations[i] = new int[order[i].length];
+            for (int j = 0; j < order[i].length; j++) {
+                routes[i][j] = this.routes[i][order[i][j]];
+                durations[i][j] = this.durations[i][order[i][j]];
+            }
+        }
+        this.bestRoutes = routes;
+        this.bestDurations = durations;
+        this.bestTotal.set(total);
+    }
+
+    // A subtree of the search: the partial schedule it starts from and the search state below it
+    private class Search extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        // Next arrival of every route (see Events), Long.MAX_VALUE once the route is done.
+        // An arrival at stop index 0 is the start of the route, its first stop is not chosen yet.
+        private final long[] pending;
+        // Positions of the stops of every route in the order visited so far
+        private final int[][] order;
+        // Stops of every route not visited or headed to yet, as bitmasks
+        private final int[] remaining;
+        private final NodeOccupancy occupancy;
+        // Travel and wait time of the partial schedule
+        private long cost;
+        private final int startDepth;
+        // Occupancy saved before each visit, by depth
+        private final int[][] savedStates;
+        private final int[] hashState;
+        private long nodes;
+
+        // Root of the search: no route started
+        Search() {
+            int routeCount = routes.length;
+            this.pending = new long[routeCount];
+            this.order = new int[routeCount][];
+            this.remaining = new int[routeCount];
+            for (int i = 0; i < routeCount; i++) {
+                this.pending[i] = Events.pack(testInstance.routeStarts[i], Events.ARRIVAL, i, 0);
+                this.order[i] = new int[routes[i].length];
+                this.remaining[i] = (1 << routes[i].length) - 1;
+            }
+            this.occupancy = new NodeOccupancy(testInstance.nodeCapacities);
+            this.startDepth = 0;
+            this.savedStates = this.newSavedStates();
+            this.hashState = new int[this.occupancy.stateSize()];
+        }
+
+        // Copy of the state of another search, continuing at the given depth
+        Search(Search other, int depth) {
+            this.pending = other.pending.clone();
+            this.order = new int[other.order.length][];
+            for (int i = 0; i < other.order.length; i++) {
+                this.order[i] = other.order[i].clone();
+            }
+            this.remaining = other.remaining.clone();
+            this.occupancy = new NodeOccupancy(testInstance.nodeCapacities);
+            other.occupancy.copyState(other.hashState);
+            this.occupancy.restoreState(other.hashState);
+            this.cost = other.cost;
+            this.startDepth = depth;
+            this.savedStates = this.newSavedStates();
+            this.hashState = new int[this.occupancy.stateSize()];
+        }
+
+        private int[][] newSavedStates() {
+            int stops = 0;
+            for (int[] route : routes) {
+                stops += route.length;
+            }
+            return new int[stops + 1][this.occupancy.stateSize()];
+        }
+
+        @Override
+        protected void compute() {
+            this.search(this.startDepth);
+            nodesExplored.add(this.nodes);
+        }
+
+        // Simulates the next arrival and branches on the stops of its route
+        private void search(int depth) {
+            if (timedOut) {
+                return;
+            }
+            if (++this.nodes % CLOCK_INTERVAL == 0 && System.nanoTime() >= deadline) {
+                timedOut = true;
+                return;
+            }
+            int routeID = -1;
+            long event = Long.MAX_VALUE;
+            for (int i = 0; i < this.pending.length; i++) {
+                if (this.pending[i] < event) {
+                    event = this.pending[i];
+                    routeID = i;
+                }
+            }
+            if (routeID < 0) {
+                offer(this.cost, this.order);
+                return;
+            }
+            if (this.cost + this.bound() >= bestTotal.get()) {
+                boundPrunes.increment();
+                return;
+            }
+            if (this.seen(Events.time(event))) {
+                memoPrunes.increment();
+                return;
+            }
+
+            this.pending[routeID] = Long.MAX_VALUE;
+            int stopIdx = Events.stopIdx(event);
+            if (stopIdx == 0) {
+                for (int first = 0; first < routes[routeID].length; first++) {
+                    if ((twins[routeID][first] & this.remaining[routeID]) != 0) {
+                        continue;
+                    }
+                    this.order[routeID][0] = first;
+                    this.remaining[routeID] &= ~(1 << first);
+                    this.visit(routeID, first, Events.time(event), 0, depth);
+                    this.remaining[routeID] |= 1 << first;
+                }
+            } else {
+                this.visit(routeID, this.order[routeID][stopIdx], Events.time(event), stopIdx, depth);
+            }
+            this.pending[routeID] = event;
+        }
+
+        // Admits the vehicle at a stop and branches on its next stop
+        private void visit(int routeID, int stop, int arrivalTime, int stopIdx, int depth) {
+            int[] route = routes[routeID];
+            int duration = durations[routeID][stop];
+            int[] savedState = this.savedStates[depth];
+            this.occupancy.copyState(savedState);
+            int startTime = this.occupancy.admit(route[stop], arrivalTime, duration);
+            int waitTime = startTime - arrivalTime;
+            this.cost += waitTime;
+
+            if (this.remaining[routeID] == 0) {
+                this.branch(depth + 1, null);
+            } else {
+                List<Search> tasks = depth < FORK_DEPTH ? new ArrayList<>() : null;
+                for (int next = 0; next < route.length; next++) {
+                    int bit = 1 << next;
+                    if ((this.remaining[routeID] & bit) == 0 || (twins[routeID][next] & this.remaining[routeID]) != 0) {
+                        continue;
+                    }
+                    int travelTime = testInstance.edgeCost(route[stop], route[next]);
+                    long nextArrival = (long) startTime + duration + travelTime;
+                    if (travelTime == TestInstance.NO_EDGE || nextArrival > Events.MAX_TIME) {
+                        continue;
+                    }
+                    this.order[routeID][stopIdx + 1] = next;
+                    this.remaining[routeID] &= ~bit;
+                    this.pending[routeID] = Events.pack((int) nextArrival, Events.ARRIVAL, routeID, stopIdx + 1);
+                    this.cost += travelTime;
+                    this.branch(depth + 1, tasks);
+                    this.cost -= travelTime;
+                    this.remaining[routeID] |= bit;
+                }
+                this.pending[routeID] = Long.MAX_VALUE;
+                if (tasks != null) {
+                    invokeAll(tasks);
+                }
+            }
+
+            this.cost -= waitTime;
+            this.occupancy.restoreState(savedState);
+        }
+
+        // Continues the search below the current state, as a separate task near the root
+        private void branch(int depth, List<Search> tasks) {
+            if (tasks == null) {
+                this.search(depth);
+            } else {
+                tasks.add(new Search(this, depth));
+            }
+        }
+
+        // Bound on the travel and wait time still to come
+        private long bound() {
+            long bound = 0;
+            for (int i = 0; i < this.pending.length; i++) {
+                long event = this.pending[i];
+                if (event == Long.MAX_VALUE) {
+                    continue;
+                }
+                int stopIdx = Events.stopIdx(event);
+                if (stopIdx == 0) {
+                    bound += routeBounds[i];
+                    continue;
+                }
+                int stop = this.order[i][stopIdx];
+                int path = remainingPath(i, stop, this.remaining[i]);
+                if (path == Integer.MAX_VALUE) {
+                    // The remaining stops cannot be connected
+                    return Long.MAX_VALUE / 2;
+                }
+                bound += path;
+                // The next slot of a full node frees up no earlier than it would now
+                int nextFreeTime = this.occupancy.nextFreeTime(routes[i][stop]);
+                if (nextFreeTime > Events.time(event)) {
+                    bound += nextFreeTime - Events.time(event);
+                }
+            }
+            return bound;
+        }
+
+        // Checks the memo for the current state and records it. Slots that free up by the current
+        // time are free for all the arrivals to come, so only the later free times are hashed.
+        private boolean seen(int currentTime) {
+            long hash = 0;
+            for (int i = 0; i < this.pending.length; i++) {
+                long event = this.pending[i];
+                int stopIdx = Events.stopIdx(event);
+                int stop = event == Long.MAX_VALUE || stopIdx == 0 ? -1 : this.order[i][stopIdx];
+                hash += SolutionHash.mix(event ^ SolutionHash.mix(((long) this.remaining[i] << 32) ^ stop));
+            }
+            this.occupancy.copyState(this.hashState);
+            for (int node = 0; node < slotOffsets.length; node++) {
+                for (int k = 0; k < this.hashState[node]; k++) {
+                    int freeTime = this.hashState[slotOffsets[node] + k];
+                    if (freeTime > currentTime) {
+                        hash += SolutionHash.mix(((long) node << 32) | freeTime);
+                    }
+                }
+            }
+            hash = hash == 0 ? 1 : hash;
+
+            long[] memo = memos.get();
+            int idx = (int) (hash & ((1 << MEMO_BITS) - 1)) << 1;
+            if (memo[idx] == hash && memo[idx + 1] <= this.cost) {
+                return true;
+            }
+            memo[idx] = hash;
+            memo[idx + 1] = this.cost;
+            return false;
+        }
+    }
+
+    public synchronized int[][] getRoutes() {
+        return this.bestRoutes;
+    }
+
+    public synchronized int[][] getDurations() {
+        return this.bestDurations;
+    }
+
+    public long getTotalDuration() {
+        return this.bestTotal.get();
+    }
+
+    public long getInitialDuration() {
+        return this.initialDuration;
+    }
+
+    // Whether the search finished, which proves the solution optimal
+    public boolean isOptimal() {
+        return !this.timedOut;
+    }
+
+    public long getNodesExplored() {
+        return this.nodesExplored.sum();
+    }
+
+    public long getBoundPrunes() {
+        return this.boundPrunes.sum();
+    }
+
+    public long getMemoPrunes() {
+        return this.memoPrunes.sum();
+    }
+
+    public double getNodesPerSecond() {
+        return this.elapsedTime == 0 ? 0 : this.getNodesExplored() * 1e9 / this.elapsedTime;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("branch and bound: threads = %d, nodes explored = %d (%.0f/s, %d bound prunes, %d memo prunes), "
+                        + "total duration %d -> %d (root bound %d, %s)",
+                this.threadCount, this.getNodesExplored(), this.getNodesPerSecond(), this.getBoundPrunes(), this.getMemoPrunes(),
+                this.initialDuration, this.getTotalDuration(), this.rootBound, this.isOptimal() ? "optimal" : "time out");
+    }
+}
@@ -0,0 +1,205 @@
+package com.multi.delivery.planner;
+
+import java.util.Arrays;
+
+/**
+ * Calendar queue of packed events (see {@link Events}) for monotone simulations.
+ *
+ * Event times are whole seconds, so the events of the next WIDTH seconds are kept in a ring
+ * of one-second buckets and later events in an overflow heap. A bucket is an unsorted list
+ * until its second comes up, then its events are sorted into the current second, so events
+ * are polled in exactly the same order as from an EventHeap. A bitmap of the non-empty buckets
+ * lets poll skip empty seconds a word at a time. Events must not be added before the last
+ * polled event, which holds for a simulation that only schedules events at or after the
+ * current time.
+ */
+public class CalendarEventQueue implements EventQueue {
+
+    // Number of one-second buckets in the ring
+    static final int WIDTH = 1 << 13;
+    private static final int MASK = WIDTH - 1;
+    private static final int NONE = -1;
+
+    // Time of the current second, never above the time of the last polled event
+    private int base;
+    // Sorted events of the current second, the ones not polled yet are in [currentPos, currentEnd)
+    private long[] current;
+    private int currentPos;
+    private int currentEnd;
+    // First list node of every bucket, NONE for an empty bucket
+    private final int[] bucketHeads = new int[WIDTH];
+    // Bit i is set if bucket i is not empty
+    private final long[] nonEmptyBuckets = new long[WIDTH >>> 6];
+    // Number of events in the buckets
+    private int bucketSize;
+    // List nodes, a node is either in a bucket list or in the free list
+    private long[] nodeEvents;
+    private int[] nodeNext;
+    private int usedNodes;
+    private int freeNode;
+    // Events at or after base + WIDTH
+    private final EventHeap overflow;
+
+    public CalendarEventQueue(int initialCapacity) {
+        int capacity = Math.max(initialCapacity, 16);
+        this.current = new long[16];
+        this.nodeEvents = new long[capacity];
+        this.nodeNext = new int[capacity];
+        this.overflow = new EventHeap(16);
+        Arrays.fill(this.bucketHeads, NONE);
+        this.freeNode = NONE;
+    }
+
+    @Override
+    public void add(long event) {
+        int time = Events.time(event);
+        if (time < base) {
+            throw new IllegalArgumentException("Event at " + time + " added after polling an event at " + base);
+        }
+        if (time == base && currentPos < currentEnd) {
+            addToCurrent(event);
+        } else if (time - base >= WIDTH) {
+            overflow.add(event);
+        } else {
+            addToBucket(event, time & MASK);
+        }
+    }
+
+    // Removes and returns the smallest event; the queue must not be empty
+    @Override
+    public long poll() {
+        if (currentPos == currentEnd) {
+            nextSecond();
+        }
+        return current[currentPos++];
+    }
+
+    @Override
+    public long peek() {
+        if (currentPos < currentEnd) {
+            return current[currentPos];
+        }
+        if (bucketSize == 0) {
+            return overflow.peek();
+        }
+        long min = Long.MAX_VALUE;
+        for (int node = bucketHeads[firstNonEmptyBucket()]; node != NONE; node = nodeNext[node]) {
+            min = Math.min(min, nodeEvents[node]);
+        }
+        return min;
+    }
+
+    @Override
+    public int size() {
+        return currentEnd - currentPos + bucketSize + overflow.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public void clear() {
+        for (int word = 0; word < nonEmptyBuckets.length; word++) {
+            long bits = nonEmptyBuckets[word];
+            while (bits != 0) {
+                bucketHeads[(word << 6) | Long.numberOfTrailingZeros(bits)] = NONE;
+                bits &= bits - 1;
+            }
+            nonEmptyBuckets[word] = 0;
+        }
+        bucketSize = 0;
+        usedNodes = 0;
+        freeNode = NONE;
+        currentPos = 0;
+        currentEnd = 0;
+        overflow.clear();
+        base = 0;
+    }
+
+    // Moves the events of the next non-empty second into the sorted current second
+    private void nextSecond() {
+        if (bucketSize == 0) {
+            // Nothing in the next WIDTH seconds, so the ring restarts at the first overflow event
+            base = Events.time(overflow.peek());
+        } else {
+            int start = base & MASK;
+            int bucket = firstNonEmptyBucket();
+            base += (bucket - start) & MASK;
+        }
+        migrateOverflow();
+
+        int bucket = base & MASK;
+        int count = 0;
+        for (int node = bucketHeads[bucket]; node != NONE; ) {
+            if (count == current.length) {
+                current = Arrays.copyOf(current, count << 1);
+            }
+            current[count++] = nodeEvents[node];
+            int next = nodeNext[node];
+            nodeNext[node] = freeNode;
+            freeNode = node;
+            node = next;
+        }
+        bucketHeads[bucket] = NONE;
+        nonEmptyBuckets[bucket >>> 6] &= ~(1L << bucket);
+        bucketSize -= count;
+        Arrays.sort(current, 0, count);
+        currentPos = 0;
+        currentEnd = count;
+    }
+
+    // Inserts an event of the current second into its sorted place among the events not polled yet
+    private void addToCurrent(long event) {
+        if (currentEnd == current.length) {
+            current = Arrays.copyOf(current, currentEnd << 1);
+        }
+        int idx = currentEnd;
+        while (idx > currentPos && current[idx - 1] > event) {
+            current[idx] = current[idx - 1];
+            idx--;
+        }
+        current[idx] = event;
+        currentEnd++;
+    }
+
+    private void addToBucket(long event, int bucket) {
+        int node;
+        if (freeNode != NONE) {
+            node = freeNode;
+            freeNode = nodeNext[node];
+        } else {
+            if (usedNodes == nodeEvents.length) {
+                nodeEvents = Arrays.copyOf(nodeEvents, usedNodes << 1);
+                nodeNext = Arrays.copyOf(nodeNext, usedNodes << 1);
+            }
+            node = usedNodes++;
+        }
+        nodeEvents[node] = event;
+        nodeNext[node] = bucketHeads[bucket];
+        bucketHeads[bucket] = node;
+        nonEmptyBuckets[bucket >>> 6] |= 1L << bucket;
+        bucketSize++;
+    }
+
+    // Moves the overflow events that fall into the ring after base has advanced
+    private void migrateOverflow() {
+        while (!overflow.isEmpty() && Events.time(overflow.peek()) - base < WIDTH) {
+            long event = overflow.poll();
+            addToBucket(event, Events.time(event) & MASK);
+        }
+    }
+
+    // First non-empty bucket at or after the bucket of base; some bucket must not be empty
+    private int firstNonEmptyBucket() {
+        int start = base & MASK;
+        int word = start >>> 6;
+        long bits = nonEmptyBuckets[word] & (-1L << start);
+        while (bits == 0) {
+            word = (word + 1) & (nonEmptyBuckets.length - 1);
+            bits = nonEmptyBuckets[word];
+        }
+        return (word << 6) | Long.numberOfTrailingZeros(bits);
+    }
+}
@@ -0,0 +1,270 @@
+package com.multi.delivery.planner;
+
+import java.util.Arrays;
+
+/**
+ * Screens solutions for capacity conflicts without simulating them.
+ *
+ * Every node keeps an IntervalTree of the optimistic visits of the solution, the
+ * visits as they would be if no vehicle ever waited. If no node has more overlapping visits
+ * than its capacity, no vehicle waits in the simulation either, so the total duration of the
+ * solution is its travel time. Screening a route change only updates the trees of the nodes
+ * the route visits. A conflict does not mean that vehicles wait, only that the solution has
+ * to be simulated.
+ */
+public class CapacityScreen {
+
+    // Test instance the solution belongs to
+    private final TestInstance testInstance;
+    // Screened solution
+    private final int[][] routes;
+    private final int[][] durations;
+    // Optimistic visits of each node
+    private final IntervalTree[] nodeVisits;
+    // Nodes whose optimistic visits exceed their capacity
+    private final boolean[] conflictingNodes;
+    private int conflictCount;
+    // Travel times of the routes, -1 for a route that cannot be screened (see routeTravelTime)
+    private final int[] routeTravelTimes;
+    private long totalTravelTime;
+    private int unscreenableRouteCount;
+
+    // Marks of the nodes touched by a route change
+    private final int[] nodeMarks;
+    private int mark;
+
+    public CapacityScreen(TestInstance testInstance, int[][] routes, int[][] durations) {
+        this.testInstance = testInstance;
+        int routeCount = routes.length;
+        this.routes = new int[routeCount][];
+        this.durations = new int[routeCount][];
+        this.nodeVisits = new IntervalTree[testInstance.nodeCount];
+        this.conflictingNodes = new boolean[testInstance.nodeCount];
+        this.routeTravelTimes = new int[routeCount];
+        this.nodeMarks = new int[testInstance.nodeCount];
+
+        for (int i = 0; i < routeCount; i++) {
+            this.routes[i] = routes[i].clone();
+            this.durations[i] = durations[i].clone();
+            this.setRouteTravelTime(i, this.routeTravelTime(i, this.routes[i], this.durations[i]));
+        }
+        this.buildVisits();
+        for (int i = 0; i < testInstance.nodeCount; i++) {
+            this.conflictingNodes[i] = this.isConflicting(i);
+            if (this.conflictingNodes[i]) {
+                this.conflictCount++;
+            }
+        }
+    }
+
+    // Returns true if no node of the solution has a capacity conflict
+    public boolean isConflictFree() {
+        return this.conflictCount == 0 && this.unscreenableRouteCount == 0;
+    }
+
+    // Returns the total duration of the solution (its travel time) if it has no capacity conflict, or -1
+    public long screen() {
+        return this.isConflictFree() ? this.totalTravelTime : -1;
+    }
+
+    // Returns the total duration of the solution with one route replaced if it has no capacity conflict,
+    // or -1. The screened solution is left unchanged.
+    public long screenRouteChange(int routeID, int[] newRoute, int[] newDurations) {
+        int[] oldRoute = this.routes[routeID];
+        // Only the nodes of the old and new route change, so conflicts elsewhere remain
+        if (this.conflictCount > oldRoute.length + newRoute.length) {
+            return -1;
+        }
+        int newTravelTime = this.routeTravelTime(routeID, newRoute, newDurations);
+        int otherUnscreenable = this.unscreenableRouteCount - (this.routeTravelTimes[routeID] < 0 ? 1 : 0);
+        if (newTravelTime < 0 || otherUnscreenable > 0) {
+            return -1;
+        }
+
+        int firstChanged = this.firstChanged(routeID, newRoute, newDurations);
+        if (firstChanged == oldRoute.length && firstChanged == newRoute.length) {
+            return this.screen();
+        }
+        int[] oldDurations = this.durations[routeID];
+        this.removeVisits(routeID, oldRoute, oldDurations, firstChanged);
+        this.addVisits(routeID, newRoute, newDurations, firstChanged);
+        int conflictCount = this.conflictCountAfterChange(oldRoute, newRoute, firstChanged, false);
+        this.removeVisits(routeID, newRoute, newDurations, firstChanged);
+        this.addVisits(routeID, oldRoute, oldDurations, firstChanged);
+
+        return conflictCount == 0 ? this.totalTravelTime - Math.max(this.routeTravelTimes[routeID], 0) + newTravelTime : -1;
+    }
+
+    // Replaces one route of the screened solution
+    public void applyRouteChange(int routeID, int[] newRoute, int[] newDurations) {
+        int[] oldRoute = this.routes[routeID];
+        int firstChanged = this.firstChanged(routeID, newRoute, newDurations);
+        if (firstChanged == oldRoute.length && firstChanged == newRoute.length) {
+            return;
+        }
+        this.removeVisits(routeID, oldRoute, this.durations[routeID], firstChanged);
+        this.addVisits(routeID, newRoute, newDurations, firstChanged);
+        this.conflictCount = this.conflictCountAfterChange(oldRoute, newRoute, firstChanged, true);
+
+        this.routes[routeID] = newRoute.clone();
+        this.durations[routeID] = newDurations.clone();
+        if (this.routeTravelTimes[routeID] < 0) {
+            this.unscreenableRouteCount--;
+        } else {
+            this.totalTravelTime -= this.routeTravelTimes[routeID];
+        }
+        this.setRouteTravelTime(routeID, this.routeTravelTime(routeID, newRoute, newDurations));
+    }
+
+    private void setRouteTravelTime(int routeID, int travelTime) {
+        this.routeTravelTimes[routeID] = travelTime;
+        if (travelTime < 0) {
+            this.unscreenableRouteCount++;
+        } else {
+            this.totalTravelTime += travelTime;
+        }
+    }
+
+    // First stop of the route that differs, visits before it are the same in both routes
+    private int firstChanged(int routeID, int[] newRoute, int[] newDurations) {
+        int[] oldRoute = this.routes[routeID];
+        int[] oldDurations = this.durations[routeID];
+        int firstChanged = 0;
+        while (firstChanged < oldRoute.length && firstChanged < newRoute.length
+                && oldRoute[firstChanged] == newRoute[firstChanged]
+                && oldDurations[firstChanged] == newDurations[firstChanged]) {
+            firstChanged++;
+        }
+        return firstChanged;
+    }
+
+    // Conflict count after the visits from firstChanged on moved from the old to the new route,
+    // the conflicting nodes are updated if record is true
+    private int conflictCountAfterChange(int[] oldRoute, int[] newRoute, int firstChanged, boolean record) {
+        int conflictCount = this.conflictCount;
+        this.mark++;
+        for (int k = 0; k < 2; k++) {
+            int[] route = k == 0 ? oldRoute : newRoute;
+            for (int j = firstChanged; j < route.length; j++) {
+                int node = route[j];
+                if (this.nodeMarks[node] == this.mark) {
+                    continue;
+                }
+                this.nodeMarks[node] = this.mark;
+                boolean conflicting = this.isConflicting(node);
+                if (conflicting != this.conflictingNodes[node]) {
+                    conflictCount += conflicting ? 1 : -1;
+                    if (record) {
+                        this.conflictingNodes[node] = conflicting;
+                    }
+                }
+            }
+        }
+        return conflictCount;
+    }
+
+    private boolean isConflicting(int node) {
+        return this.nodeVisits[node].getMaximumOverlaps() > this.testInstance.nodeCapacities[node];
+    }
+
+    // Builds the trees of all nodes from their sorted visit endpoints
+    private void buildVisits() {
+        int nodeCount = this.testInstance.nodeCount;
+        // The first pass counts the endpoints of every node, the second one collects them
+        int[] endpointCounts = new int[nodeCount];
+        int[][] nodeEndpoints = null;
+        for (int pass = 0; pass < 2; pass++) {
+            if (pass == 1) {
+                nodeEndpoints = new int[nodeCount][];
+                for (int i = 0; i < nodeCount; i++) {
+                    nodeEndpoints[i] = new int[endpointCounts[i]];
+                    endpointCounts[i] = 0;
+                }
+            }
+            for (int i = 0; i < this.routes.length; i++) {
+                int[] route = this.routes[i];
+                int time = this.testInstance.routeStarts[i];
+                for (int j = 0; j < route.length && time >= 0; j++) {
+                    int node = route[j];
+                    if (nodeEndpoints != null) {
+                        nodeEndpoints[node][endpointCounts[node]] = IntervalTree.endpoint(time, true);
+                        nodeEndpoints[node][endpointCounts[node] + 1] =
+                                IntervalTree.endpoint(departure(time, this.durations[i][j]), false);
+                    }
+                    endpointCounts[node] += 2;
+                    time = this.nextArrival(route, this.durations[i], j, time);
+                }
+            }
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            Arrays.sort(nodeEndpoints[i]);
+            this.nodeVisits[i] = new IntervalTree(nodeEndpoints[i].length);
+            this.nodeVisits[i].build(nodeEndpoints[i], nodeEndpoints[i].length);
+        }
+    }
+
+    // Adds the optimistic visits of the route from stop firstStop on
+    private void addVisits(int routeID, int[] route, int[] durations, int firstStop) {
+        int time = this.optimisticArrival(routeID, route, durations, firstStop);
+        for (int j = firstStop; j < route.length && time >= 0; j++) {
+            this.nodeVisits[route[j]].insertInterval(time, departure(time, durations[j]));
+            time = this.nextArrival(route, durations, j, time);
+        }
+    }
+
+    // Removes the optimistic visits of the route from stop firstStop on
+    private void removeVisits(int routeID, int[] route, int[] durations, int firstStop) {
+        int time = this.optimisticArrival(routeID, route, durations, firstStop);
+        for (int j = firstStop; j < route.length && time >= 0; j++) {
+            this.nodeVisits[route[j]].removeInterval(time, departure(time, durations[j]));
+            time = this.nextArrival(route, durations, j, time);
+        }
+    }
+
+    // Arrival at a stop of the route if no vehicle waits, or -1 after a missing edge
+    private int optimisticArrival(int routeID, int[] route, int[] durations, int stop) {
+        int time = this.testInstance.routeStarts[routeID];
+        for (int j = 0; j < stop && time >= 0; j++) {
+            time = this.nextArrival(route, durations, j, time);
+        }
+        return time;
+    }
+
+    // Arrival at the stop after stop j, or -1 if there is no edge or the time is out of range
+    private int nextArrival(int[] route, int[] durations, int j, int time) {
+        if (j + 1 == route.length) {
+            return -1;
+        }
+        int travelTime = this.testInstance.edgeCost(route[j], route[j + 1]);
+        if (travelTime == TestInstance.NO_EDGE) {
+            return -1;
+        }
+        long nextTime = (long) time + durations[j] + travelTime;
+        return nextTime > Events.MAX_TIME ? -1 : (int) nextTime;
+    }
+
+    // End of a visit interval. Times are whole seconds, so a visit without duration lasting
+    // one second still occupies a slot at its arrival, and only then.
+    private static int departure(int arrival, int duration) {
+        return arrival + Math.max(duration, 1);
+    }
+
+    // Travel time of a route, or -1 if it uses a missing edge or its optimistic visits leave the
+    // simulation time range. The simulation of such a route fails, so it is never screened.
+    private int routeTravelTime(int routeID, int[] route, int[] durations) {
+        int travelTime = 0;
+        int time = this.testInstance.routeStarts[routeID];
+        for (int j = 0; j + 1 < route.length; j++) {
+            time = this.nextArrival(route, durations, j, time);
+            if (time < 0) {
+                return -1;
+            }
+            travelTime += this.testInstance.edgeCost(route[j], route[j + 1]);
+        }
+        return travelTime;
+    }
+
+    public int getConflictCount() {
+        return this.conflictCount;
+    }
+}
@@ -0,0 +1,449 @@
+package com.multi.delivery.planner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Splits a solution into independent components of routes, which are simulated and improved in parallel.
+ *
+ * Routes only affect each other by competing for the slots of a node. A node visited no more often
+ * than its capacity never makes a vehicle wait, and routes whose visits of a busy node never overlap
+ * in time do not interact there either. The routes are first grouped by overlapping visits as they
+ * would be without waiting, and every component is simulated as a test instance of its own. Waiting
+ * shifts visits, so the simulated visits are checked again and components that overlap at a busy
+ * node are merged and simulated again, until no two components overlap. The results are then the
+ * same as those of simulating the whole solution at once.
+ */
+public class Decomposition {
+
+    // Test instance the solution belongs to
+    private final TestInstance testInstance;
+    // Solution, improving a component replaces its routes
+    private final int[][] routes;
+    private final int[][] durations;
+    // Nodes visited more often than their capacity, the only ones where vehicles can wait
+    private final boolean[] busyNodes;
+    // Union-find over the routes, the root of a component is its own parent
+    private final int[] parents;
+
+    // Route IDs of every component, ascending
+    private int[][] components = new int[0][];
+    // Solver of the component rooted at a route, null if the component has not been simulated as it is,
+    // and the nodes of the solver's test instance (local -> global index)
+    private final Solver[] rootSolvers;
+    private final int[] rootSolverSizes;
+    private final int[][] rootSolverNodes;
+
+    // Results of the solution
+    private final int[] routeTravelTimes;
+    private final int[] routeWaitTimes;
+    private final int[][] routeWaitTimesForNodes;
+
+    // Statistics
+    private int simulationRounds;
+    private int componentSimulations;
+
+    public Decomposition(TestInstance testInstance, int[][] routes, int[][] durations) {
+        this.testInstance = testInstance;
+        int routeCount = routes.length;
+        this.routes = new int[routeCount][];
+        this.durations = new int[routeCount][];
+        this.parents = new int[routeCount];
+        this.rootSolvers = new Solver[routeCount];
+        this.rootSolverSizes = new int[routeCount];
+        this.rootSolverNodes = new int[routeCount][];
+        this.routeTravelTimes = new int[routeCount];
+        this.routeWaitTimes = new int[routeCount];
+        this.routeWaitTimesForNodes = new int[routeCount][];
+
+        int[] visitCounts = new int[testInstance.nodeCount];
+        for (int i = 0; i < routeCount; i++) {
+            this.routes[i] = routes[i].clone();
+            this.durations[i] = durations[i].clone();
+            this.parents[i] = i;
+            for (int node : routes[i]) {
+                visitCounts[node]++;
+            }
+        }
+        this.busyNodes = new boolean[testInstance.nodeCount];
+        for (int i = 0; i < testInstance.nodeCount; i++) {
+            this.busyNodes[i] = visitCounts[i] > testInstance.nodeCapacities[i];
+        }
+
+        // Visits as they would be without waiting
+        this.mergeOverlapping();
+    }
+
+    // Simulates the components in parallel, merging the ones that turn out to overlap, and collects the results
+    public void simulate(ExecutorService executor) {
+        while (true) {
+            this.groupComponents();
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int c = 0; c < this.components.length; c++) {
+                int[] component = this.components[c];
+                if (this.rootSolvers[component[0]] == null || this.rootSolverSizes[component[0]] != component.length) {
+                    int componentIdx = c;
+                    tasks.add(() -> {
+                        this.rootSolvers[component[0]] = new Solver(this.componentInstance(componentIdx));
+                        this.rootSolverSizes[component[0]] = component.length;
+                        return null;
+                    });
+                }
+            }
+            this.componentSimulations += tasks.size();
+            invokeAll(executor, tasks);
+            this.simulationRounds++;
+
+            this.collectResults();
+            if (!this.mergeOverlapping()) {
+                break;
+            }
+        }
+    }
+
+    // Improves every component on its own by simulated annealing and then local search (either is skipped
+    // if its time budget is 0), then simulates the improved solution. The budgets are for the whole solution
+    // on threadCount threads: every component gets a share in proportion to its number of stops, and the
+    // largest components start first so that the threads finish at about the same time.
+    // Components improved on their own can get in each other's way once they overlap, so the improved
+    // solution is only kept if its total duration is lower; otherwise the solution stays as it was.
+    // Returns true if the improved solution was kept.
+    public boolean improve(ExecutorService executor, int threadCount, long annealingTimeBudgetMillis,
+                           long localSearchTimeBudgetMillis) {
+        this.simulate(executor);
+        long initialTotal = this.getTotalDuration();
+        int routeCount = this.routes.length;
+        int[][] initialRoutes = new int[routeCount][];
+        int[][] initialDurations = new int[routeCount][];
+        int[][] initialWaitTimesForNodes = new int[routeCount][];
+        for (int i = 0; i < routeCount; i++) {
+            initialRoutes[i] = this.routes[i].clone();
+            initialDurations[i] = this.durations[i].clone();
+            initialWaitTimesForNodes[i] = this.routeWaitTimesForNodes[i].clone();
+        }
+        int[] initialTravelTimes = this.routeTravelTimes.clone();
+        int[] initialWaitTimes = this.routeWaitTimes.clone();
+
+        long totalStops = 0;
+        long[] componentStops = new long[this.components.length];
+        Integer[] order = new Integer[this.components.length];
+        for (int c = 0; c < this.components.length; c++) {
+            for (int routeID : this.components[c]) {
+                componentStops[c] += this.routes[routeID].length;
+            }
+            totalStops += componentStops[c];
+            order[c] = c;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(componentStops[b], componentStops[a]));
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int componentIdx : order) {
+            double share = totalStops == 0 ? 0 : (double) threadCount * componentStops[componentIdx] / totalStops;
+            long annealingMillis = annealingTimeBudgetMillis > 0 ? Math.max(1, (long) (annealingTimeBudgetMillis * share)) : 0;
+            long localSearchMillis = localSearchTimeBudgetMillis > 0 ? Math.max(1, (long) (localSearchTimeBudgetMillis * share)) : 0;
+            tasks.add(() -> {
+                int[] component = this.components[componentIdx];
+                Solver solver = this.rootSolvers[component[0]];
+                if (annealingMillis > 0) {
+                    solver.anneal(annealingMillis, component[0]);
+                }
+                if (localSearchMillis > 0) {
+                    solver.improve(1, localSearchMillis);
+                }
+                // Solvers keep the stops aligned, so only the nodes need to be mapped back
+                int[] nodes = this.rootSolverNodes[component[0]];
+                for (int k = 0; k < component.length; k++) {
+                    int[] localRoute = solver.currentSolutionRoutes[k];
+                    int[] route = this.routes[component[k]];
+                    for (int j = 0; j < route.length; j++) {
+                        route[j] = nodes[localRoute[j]];
+                    }
+                    System.arraycopy(solver.currentSolutionDurations[k], 0, this.durations[component[k]], 0, route.length);
+                }
+                return null;
+            });
+        }
+        invokeAll(executor, tasks);
+        // Each solver has simulated its improved component, which may now overlap with others
+        this.collectResults();
+        if (this.mergeOverlapping()) {
+            this.simulate(executor);
+        }
+        if (this.getTotalDuration() < initialTotal) {
+            return true;
+        }
+
+        for (int i = 0; i < routeCount; i++) {
+            this.routes[i] = initialRoutes[i];
+            this.durations[i] = initialDurations[i];
+            this.routeWaitTimesForNodes[i] = initialWaitTimesForNodes[i];
+        }
+        System.arraycopy(initialTravelTimes, 0, this.routeTravelTimes, 0, routeCount);
+        System.arraycopy(initialWaitTimes, 0, this.routeWaitTimes, 0, routeCount);
+        // The solvers hold the improved components, which are no longer the solution
+        Arrays.fill(this.rootSolvers, null);
+        return false;
+    }
+
+    // Total duration (travel + wait time) of the solution as last simulated
+    public long getTotalDuration() {
+        long totalDuration = 0;
+        for (int i = 0; i < this.routes.length; i++) {
+            totalDuration += this.routeTravelTimes[i] + this.routeWaitTimes[i];
+        }
+        return totalDuration;
+    }
+
+    // Builds the components from the union-find
+    private void groupComponents() {
+        int routeCount = this.routes.length;
+        int[] sizes = new int[routeCount];
+        int componentCount = 0;
+        for (int i = 0; i < routeCount; i++) {
+            if (sizes[this.find(i)]++ == 0) {
+                componentCount++;
+            }
+        }
+        // Components are ordered by their smallest route, and the root of a component is its smallest route
+        this.components = new int[componentCount][];
+        int[] componentIdx = new int[routeCount];
+        int[] filled = new int[componentCount];
+        int c = 0;
+        for (int i = 0; i < routeCount; i++) {
+            int root = this.find(i);
+            if (root == i) {
+                componentIdx[root] = c;
+                this.components[c++] = new int[sizes[root]];
+            }
+            int idx = componentIdx[root];
+            this.components[idx][filled[idx]++] = i;
+        }
+    }
+
+    // Test instance with the routes of a component and the nodes they visit
+    private TestInstance componentInstance(int componentIdx) {
+        int[] component = this.components[componentIdx];
+        TestInstance instance = this.testInstance;
+        int[] localNodes = new int[instance.nodeCount];
+        Arrays.fill(localNodes, -1);
+        int[] nodes = new int[instance.nodeCount];
+        int nodeCount = 0;
+        for (int routeID : component) {
+            for (int node : this.routes[routeID]) {
+                if (localNodes[node] < 0) {
+                    localNodes[node] = nodeCount;
+                    nodes[nodeCount++] = node;
+                }
+            }
+        }
+        nodes = Arrays.copyOf(nodes, nodeCount);
+        this.rootSolverNodes[component[0]] = nodes;
+
+        int[] nodeIDs = new int[nodeCount];
+        int[] nodeCapacities = new int[nodeCount];
+        // A sparse graph stays sparse, its components can be as large as the whole instance
+        int[] edgeCosts = instance.isSparse() ? null : new int[nodeCount * nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            nodeIDs[i] = instance.nodeIDs[nodes[i]];
+            nodeCapacities[i] = instance.nodeCapacities[nodes[i]];
+            for (int j = 0; edgeCosts != null && j < nodeCount; j++) {
+                edgeCosts[i * nodeCount + j] = instance.edgeCost(nodes[i], nodes[j]);
+            }
+        }
+        int routeCount = component.length;
+        int[][] routes = new int[routeCount][];
+        int[][] durations = new int[routeCount][];
+        int[] routeStarts = new int[routeCount];
+        int[][] tspRoutes = new int[routeCount][];
+        for (int k = 0; k < routeCount; k++) {
+            int routeID = component[k];
+            routes[k] = localRoute(this.routes[routeID], localNodes);
+            durations[k] = this.durations[routeID].clone();
+            routeStarts[k] = instance.routeStarts[routeID];
+            if (instance.tspRoutes != null && routeID < instance.tspRoutes.length && instance.tspRoutes[routeID] != null) {
+                tspRoutes[k] = localRoute(instance.tspRoutes[routeID], localNodes);
+            }
+        }
+        if (edgeCosts == null) {
+            return new TestInstance(nodeCount, routeCount, nodeIDs, nodeCapacities,
+                    instance.sparseEdgeCosts.subgraph(nodes, localNodes), routes, durations, routeStarts, tspRoutes,
+                    instance.complexity);
+        }
+        return new TestInstance(nodeCount, routeCount, nodeIDs, nodeCapacities, edgeCosts, routes, durations,
+                routeStarts, tspRoutes, instance.complexity);
+    }
+
+    // Route in local node indices, nodes outside the component become -1
+    private static int[] localRoute(int[] route, int[] localNodes) {
+        int[] localRoute = new int[route.length];
+        for (int j = 0; j < route.length; j++) {
+            localRoute[j] = route[j] < 0 ? -1 : localNodes[route[j]];
+        }
+        return localRoute;
+    }
+
+    // Copies the results of the component solvers
+    private void collectResults() {
+        for (int[] component : this.components) {
+            Solver solver = this.rootSolvers[component[0]];
+            for (int k = 0; k < component.length; k++) {
+                this.routeTravelTimes[component[k]] = solver.currentRouteTravelTimes[k];
+                this.routeWaitTimes[component[k]] = solver.currentRouteWaitTimes[k];
+                this.routeWaitTimesForNodes[component[k]] = solver.routeWaitTimesForNodes[k];
+            }
+        }
+    }
+
+    // Merges the components whose visits overlap at a busy node, using the wait times of the last
+    // simulation (none before the first one). Returns true if any components were merged.
+    private boolean mergeOverlapping() {
+        int nodeCount = this.testInstance.nodeCount;
+        // Visits of the busy nodes, grouped by node: arrival and visit index packed, end and route of the visit
+        int[] nodeOffsets = new int[nodeCount + 1];
+        for (int[] route : this.routes) {
+            for (int node : route) {
+                if (this.busyNodes[node]) {
+                    nodeOffsets[node + 1]++;
+                }
+            }
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            nodeOffsets[i + 1] += nodeOffsets[i];
+        }
+        int visitCount = nodeOffsets[nodeCount];
+        long[] visits = new long[visitCount];
+        int[] visitEnds = new int[visitCount];
+        int[] visitRoutes = new int[visitCount];
+        int[] filled = Arrays.copyOf(nodeOffsets, nodeCount);
+        for (int i = 0; i < this.routes.length; i++) {
+            int[] route = this.routes[i];
+            int[] waitTimes = this.routeWaitTimesForNodes[i];
+            long arrival = this.testInstance.routeStarts[i];
+            for (int j = 0; j < route.length; j++) {
+                long start = arrival + (waitTimes != null ? waitTimes[j] : 0);
+                long departure = start + this.durations[i][j];
+                if (this.busyNodes[route[j]]) {
+                    int visit = filled[route[j]]++;
+                    // Visits last at least a second, so visits in the same second are seen as overlapping
+                    visits[visit] = (arrival << 32) | visit;
+                    visitEnds[visit] = (int) Math.min(Integer.MAX_VALUE, Math.max(departure, arrival + 1));
+                    visitRoutes[visit] = i;
+                }
+                int travelTime = j + 1 < route.length ? this.testInstance.edgeCost(route[j], route[j + 1]) : 0;
+                if (travelTime == TestInstance.NO_EDGE) {
+                    throw new IllegalStateException("No edge between nodes " + this.testInstance.nodeIDs[route[j]]
+                            + " and " + this.testInstance.nodeIDs[route[j + 1]]);
+                }
+                arrival = departure + travelTime;
+            }
+        }
+
+        boolean merged = false;
+        for (int node = 0; node < nodeCount; node++) {
+            int from = nodeOffsets[node];
+            int to = nodeOffsets[node + 1];
+            Arrays.sort(visits, from, to);
+            // Visits that overlap with the ones before them join their component
+            long end = Long.MIN_VALUE;
+            int root = -1;
+            for (int v = from; v < to; v++) {
+                int visit = (int) visits[v];
+                long arrival = visits[v] >>> 32;
+                if (arrival < end) {
+                    merged |= this.union(root, visitRoutes[visit]);
+                    root = this.find(root);
+                    end = Math.max(end, visitEnds[visit]);
+                } else {
+                    root = this.find(visitRoutes[visit]);
+                    end = visitEnds[visit];
+                }
+            }
+        }
+        return merged;
+    }
+
+    private int find(int routeID) {
+        while (this.parents[routeID] != routeID) {
+            this.parents[routeID] = this.parents[this.parents[routeID]];
+            routeID = this.parents[routeID];
+        }
+        return routeID;
+    }
+
+    // Merges the components of two routes, the smaller root becomes the root. Returns false if they
+    // were in the same component already.
+    private boolean union(int first, int second) {
+        int firstRoot = this.find(first);
+        int secondRoot = this.find(second);
+        if (firstRoot == secondRoot) {
+            return false;
+        }
+        this.parents[Math.max(firstRoot, secondRoot)] = Math.min(firstRoot, secondRoot);
+        return true;
+    }
+
+    private static void invokeAll(ExecutorService executor, List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Component solving was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Component solving failed", e.getCause());
+        }
+    }
+
+    public int[][] getRoutes() {
+        return this.routes;
+    }
+
+    public int[][] getDurations() {
+        return this.durations;
+    }
+
+    public int[] getRouteTravelTimes() {
+        return this.routeTravelTimes;
+    }
+
+    public int[] getRouteWaitTimes() {
+        return this.routeWaitTimes;
+    }
+
+    public int[][] getRouteWaitTimesForNodes() {
+        return this.routeWaitTimesForNodes;
+    }
+
+    public int getComponentCount() {
+        return this.components.length;
+    }
+
+    public int getLargestComponentSize() {
+        int largest = 0;
+        for (int[] component : this.components) {
+            largest = Math.max(largest, component.length);
+        }
+        return largest;
+    }
+
+    // Rounds of simulating components and checking them for overlaps
+    public int getSimulationRounds() {
+        return this.simulationRounds;
+    }
+
+    public int getComponentSimulations() {
+        return this.componentSimulations;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("components = %d (largest %d routes), simulation rounds = %d, component simulations = %d",
+                this.getComponentCount(), this.getLargestComponentSize(), this.simulationRounds, this.componentSimulations);
+    }
+}
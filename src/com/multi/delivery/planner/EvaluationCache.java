@@ -0,0 +1,155 @@
+package com.multi.delivery.planner;
+
+import java.util.Arrays;
+
+/**
+ * Bounded cache of evaluated solutions, keyed by their SolutionHash.
+ *
+ * Entries hold the total travel and wait time of a solution. The cache is set-associative:
+ * a key can only be stored in the WAYS entries of its set, and when the set is full the
+ * entry to replace is chosen by CLOCK. Every set has a hand that skips (and clears) entries
+ * that were hit since the hand last passed them, so entries that keep being hit stay while
+ * entries that were never hit again go first. Keys are 64-bit hashes compared as they are,
+ * so two different solutions sharing a hash would share an entry; with random keys this is
+ * negligible. The cache is not thread-safe, every thread uses its own.
+ */
+public class EvaluationCache {
+
+    // Entries per set
+    static final int WAYS = 8;
+    // Memory of an entry: key, travel time, wait time and reference bit
+    public static final int ENTRY_BYTES = 3 * Long.BYTES + 1;
+    // Largest number of sets, keeping the entry arrays within array size limits
+    private static final int MAX_SETS = 1 << 26;
+    // Key of an empty entry, a hash equal to it is stored as EMPTY_REPLACEMENT
+    private static final long EMPTY = 0;
+    private static final long EMPTY_REPLACEMENT = 1;
+
+    // Entries, set s holds the entries [s * WAYS, (s + 1) * WAYS)
+    private final long[] keys;
+    private final long[] travelTimes;
+    private final long[] waitTimes;
+    // Set if the entry has been hit since the hand of its set passed it
+    private final boolean[] referenced;
+    // CLOCK hand of every set, the way it replaces next
+    private final byte[] hands;
+    private final int setMask;
+
+    // Statistics
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    // Creates a cache that holds as many entries as fit in maxBytes (a power of two number of sets)
+    public EvaluationCache(long maxBytes) {
+        long setBytes = (long) WAYS * ENTRY_BYTES + 1;
+        if (maxBytes < setBytes) {
+            throw new IllegalArgumentException("Evaluation cache needs at least " + setBytes + " bytes: " + maxBytes);
+        }
+        int sets = (int) Math.min(MAX_SETS, Long.highestOneBit(maxBytes / setBytes));
+        this.keys = new long[sets * WAYS];
+        this.travelTimes = new long[sets * WAYS];
+        this.waitTimes = new long[sets * WAYS];
+        this.referenced = new boolean[sets * WAYS];
+        this.hands = new byte[sets];
+        this.setMask = sets - 1;
+    }
+
+    // Returns the entry of the key, or -1 if the key is not cached
+    public int find(long key) {
+        key = storedKey(key);
+        int first = ((int) key & this.setMask) * WAYS;
+        for (int entry = first; entry < first + WAYS; entry++) {
+            if (this.keys[entry] == key) {
+                this.referenced[entry] = true;
+                this.hits++;
+                return entry;
+            }
+        }
+        this.misses++;
+        return -1;
+    }
+
+    // Caches the totals of a solution, replacing an entry of its set if the set is full
+    public void put(long key, long travelTime, long waitTime) {
+        key = storedKey(key);
+        int set = (int) key & this.setMask;
+        int first = set * WAYS;
+        int entry = -1;
+        for (int i = first; i < first + WAYS; i++) {
+            if (this.keys[i] == key || this.keys[i] == EMPTY) {
+                entry = i;
+                break;
+            }
+        }
+        if (entry < 0) {
+            int hand = this.hands[set];
+            while (this.referenced[first + hand]) {
+                this.referenced[first + hand] = false;
+                hand = (hand + 1) & (WAYS - 1);
+            }
+            entry = first + hand;
+            this.hands[set] = (byte) ((hand + 1) & (WAYS - 1));
+            this.evictions++;
+        }
+        this.keys[entry] = key;
+        this.travelTimes[entry] = travelTime;
+        this.waitTimes[entry] = waitTime;
+        this.referenced[entry] = false;
+    }
+
+    public void clear() {
+        Arrays.fill(this.keys, EMPTY);
+        Arrays.fill(this.referenced, false);
+        Arrays.fill(this.hands, (byte) 0);
+    }
+
+    private static long storedKey(long key) {
+        return key == EMPTY ? EMPTY_REPLACEMENT : key;
+    }
+
+    public long getTravelTime(int entry) {
+        return this.travelTimes[entry];
+    }
+
+    public long getWaitTime(int entry) {
+        return this.waitTimes[entry];
+    }
+
+    public long getTotalDuration(int entry) {
+        return this.travelTimes[entry] + this.waitTimes[entry];
+    }
+
+    public int getCapacity() {
+        return this.keys.length;
+    }
+
+    // Memory held by the entries
+    public long getMemoryBytes() {
+        return (long) this.keys.length * ENTRY_BYTES + this.hands.length;
+    }
+
+    public long getHits() {
+        return this.hits;
+    }
+
+    public long getMisses() {
+        return this.misses;
+    }
+
+    public long getEvictions() {
+        return this.evictions;
+    }
+
+    public double getHitRate() {
+        long lookups = this.hits + this.misses;
+        return lookups == 0 ? 0 : (double) this.hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cache entries = %d (%d KiB), hits = %d, misses = %d (%.1f%% hit rate), evictions = %d",
+                this.getCapacity(), this.getMemoryBytes() >> 10, this.hits, this.misses, 100 * this.getHitRate(),
+                this.evictions);
+    }
+}
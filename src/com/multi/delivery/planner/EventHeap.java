@@ -0,0 +1,111 @@
+package com.multi.delivery.planner;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of packed events (see {@link Events}).
+ *
+ * The backing array only grows, so a heap that is cleared and refilled
+ * for every evaluation stops allocating once it has reached its peak size.
+ */
+public class EventHeap implements EventQueue {
+
+    // Heap-ordered events, valid in [0, size)
+    private long[] heap;
+    // Number of events in the heap
+    private int size;
+
+    public EventHeap(int initialCapacity) {
+        this.heap = new long[Math.max(initialCapacity, 16)];
+        this.size = 0;
+    }
+
+    @Override
+    public void add(long event) {
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size << 1);
+        }
+        heap[size] = event;
+        siftUp(size++);
+    }
+
+    // Removes and returns the smallest event; the heap must not be empty
+    @Override
+    public long poll() {
+        long result = heap[0];
+        long last = heap[--size];
+        if (size > 0) {
+            heap[0] = last;
+            siftDown(0);
+        }
+        return result;
+    }
+
+    @Override
+    public long peek() {
+        return heap[0];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+    }
+
+    // Copies the heap array into dst (which must hold at least size() events)
+    public void copyTo(long[] dst) {
+        System.arraycopy(heap, 0, dst, 0, size);
+    }
+
+    // Restores a heap array previously saved with copyTo
+    public void restore(long[] src, int size) {
+        if (size > heap.length) {
+            heap = new long[Math.max(size, heap.length << 1)];
+        }
+        System.arraycopy(src, 0, heap, 0, size);
+        this.size = size;
+    }
+
+    private void siftUp(int idx) {
+        long event = heap[idx];
+        while (idx > 0) {
+            int parentIdx = (idx - 1) >>> 1;
+            long parent = heap[parentIdx];
+            if (parent <= event) {
+                break;
+            }
+            heap[idx] = parent;
+            idx = parentIdx;
+        }
+        heap[idx] = event;
+    }
+
+    private void siftDown(int idx) {
+        long event = heap[idx];
+        int half = size >>> 1;
+        while (idx < half) {
+            int childIdx = (idx << 1) + 1;
+            long child = heap[childIdx];
+            int rightIdx = childIdx + 1;
+            if (rightIdx < size && heap[rightIdx] < child) {
+                childIdx = rightIdx;
+                child = heap[rightIdx];
+            }
+            if (event <= child) {
+                break;
+            }
+            heap[idx] = child;
+            idx = childIdx;
+        }
+        heap[idx] = event;
+    }
+}
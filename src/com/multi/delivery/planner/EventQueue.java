@@ -0,0 +1,35 @@
+package com.multi.delivery.planner;
+
+/**
+ * Priority queue of packed events (see {@link Events}), smallest event first.
+ */
+public interface EventQueue {
+
+    // Implementations selectable by create
+    int HEAP = 0;
+    int CALENDAR = 1;
+
+    void add(long event);
+
+    // Removes and returns the smallest event; the queue must not be empty
+    long poll();
+
+    long peek();
+
+    int size();
+
+    boolean isEmpty();
+
+    void clear();
+
+    static EventQueue create(int type, int initialCapacity) {
+        switch (type) {
+            case HEAP:
+                return new EventHeap(initialCapacity);
+            case CALENDAR:
+                return new CalendarEventQueue(initialCapacity);
+            default:
+                throw new IllegalArgumentException("Unknown event queue type: " + type);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.multi.delivery.planner;
+
+/**
+ * Packing of simulation events (arrivals/departures at/from node) into primitive longs.
+ *
+ * Layout, from the most significant bit: 22 bits of time (seconds), 1 type bit,
+ * 24 bits of route ID and 16 bits of stop index. Comparing two packed events as
+ * longs orders them by time first, then departures before arrivals, then by route
+ * and stop, so the event queue never needs a comparator.
+ */
+public final class Events {
+
+    // Type bit values (departures sort before arrivals happening at the same second)
+    public static final int DEPARTURE = 0;
+    public static final int ARRIVAL = 1;
+
+    // Field widths
+    static final int STOP_BITS = 16;
+    static final int ROUTE_BITS = 24;
+    static final int TIME_BITS = 22;
+
+    // Largest values that can be packed
+    public static final int MAX_STOP_IDX = (1 << STOP_BITS) - 1;
+    public static final int MAX_ROUTE_ID = (1 << ROUTE_BITS) - 1;
+    public static final int MAX_TIME = (1 << TIME_BITS) - 1;
+
+    // Field offsets
+    private static final int ROUTE_SHIFT = STOP_BITS;
+    private static final int TYPE_SHIFT = ROUTE_SHIFT + ROUTE_BITS;
+    private static final int TIME_SHIFT = TYPE_SHIFT + 1;
+
+    private Events() {
+    }
+
+    public static long pack(int time, int type, int routeID, int stopIdx) {
+        return ((long) time << TIME_SHIFT) | ((long) type << TYPE_SHIFT)
+                | ((long) routeID << ROUTE_SHIFT) | stopIdx;
+    }
+
+    public static int time(long event) {
+        return (int) (event >>> TIME_SHIFT);
+    }
+
+    public static int type(long event) {
+        return (int) (event >>> TYPE_SHIFT) & 1;
+    }
+
+    public static boolean isArrival(long event) {
+        return type(event) == ARRIVAL;
+    }
+
+    public static int routeID(long event) {
+        return (int) (event >>> ROUTE_SHIFT) & MAX_ROUTE_ID;
+    }
+
+    public static int stopIdx(long event) {
+        return (int) event & MAX_STOP_IDX;
+    }
+}
@@ -0,0 +1,401 @@
+package com.multi.delivery.planner;
+
+import java.util.Arrays;
+
+/**
+ * Event simulation of a solution that can re-evaluate a change of a single route
+ * without simulating the whole day again.
+ *
+ * The evaluator records the processed events of the current solution together with
+ * periodic checkpoints of the simulation state (pending events and node occupancy).
+ * When a route changes, the simulation is restored from the last checkpoint before
+ * the event that leads to the first difference and replayed from there. Knock-on waits
+ * of other routes sharing nodes are picked up by the replay, which stops as soon as
+ * its state matches the recorded one again: from that point on every event has the
+ * same outcome as in the recorded run. States are compared through running 64-bit
+ * hashes of the pending events and of the vehicles at the nodes, i.e. the departures
+ * that have not happened yet, which is all the node occupancy depends on.
+ */
+public class IncrementalEvaluator {
+
+    // Upper bound on the number of state values held by all of the checkpoints
+    private static final long MAX_CHECKPOINT_VALUES = 1L << 24;
+
+    // Test instance the solution belongs to
+    private final TestInstance testInstance;
+    // Current solution and stop durations aligned with it
+    private final int[][] routes;
+    private final int[][] durations;
+    // Routes' start times in seconds since midnight
+    private final int[] routeStartSeconds;
+
+    // Results of the current solution
+    private final int[] routeTravelTimes;
+    private final int[] routeWaitTimes;
+    private final int[][] routeWaitTimesForNodes;
+    private final int[][] routeServiceStarts;
+    private long totalTravelTime;
+    private long totalWaitTime;
+
+    // Recorded run: processed events and state hashes after each of them
+    private final long[] trace;
+    private final long[] traceEventHashes;
+    private final long[] traceOccupancyHashes;
+
+    // Checkpoint i holds the state after checkpointInterval * i processed events
+    private final int checkpointInterval;
+    private final long[][] checkpointEvents;
+    private final int[] checkpointEventCounts;
+    private final int[][] checkpointOccupancies;
+    private final long[][] checkpointDepartures;
+    private final int[] checkpointDepartureCounts;
+    private final long[] checkpointEventHashes;
+    private final long[] checkpointOccupancyHashes;
+
+    // Simulation state
+    private final EventHeap eventQueue;
+    private final NodeOccupancy nodeOccupancy;
+    // Departures of the vehicles at the nodes, packed as departure time and node (see departure)
+    private final EventHeap departureQueue;
+    // Sums of SolutionHash.mix over the pending events and over the departures
+    private long eventHash;
+    private long occupancyHash;
+
+    // Number of events processed by route changes (evaluated or applied)
+    private long replayedEvents;
+
+    public IncrementalEvaluator(TestInstance testInstance, int[][] routes, int[][] durations) {
+        this.testInstance = testInstance;
+        int routeCount = routes.length;
+        if (routeCount - 1 > Events.MAX_ROUTE_ID) {
+            throw new IllegalArgumentException("Too many routes: " + routeCount);
+        }
+
+        this.routes = new int[routeCount][];
+        this.durations = new int[routeCount][];
+        this.routeStartSeconds = new int[routeCount];
+        this.routeTravelTimes = new int[routeCount];
+        this.routeWaitTimes = new int[routeCount];
+        this.routeWaitTimesForNodes = new int[routeCount][];
+        this.routeServiceStarts = new int[routeCount][];
+        int eventCount = 0;
+        for (int i = 0; i < routeCount; i++) {
+            if (routes[i].length - 1 > Events.MAX_STOP_IDX) {
+                throw new IllegalArgumentException("Too many stops in route " + i + ": " + routes[i].length);
+            }
+            this.routes[i] = routes[i].clone();
+            this.durations[i] = durations[i].clone();
+            this.routeStartSeconds[i] = testInstance.routeStarts[i];
+            this.routeWaitTimesForNodes[i] = new int[routes[i].length];
+            this.routeServiceStarts[i] = new int[routes[i].length];
+            eventCount += routes[i].length;
+        }
+
+        this.trace = new long[eventCount];
+        this.traceEventHashes = new long[eventCount];
+        this.traceOccupancyHashes = new long[eventCount];
+
+        this.eventQueue = new EventHeap(routeCount);
+        this.nodeOccupancy = new NodeOccupancy(testInstance.nodeCapacities);
+        this.departureQueue = new EventHeap(this.nodeOccupancy.stateSize());
+
+        // Copying a state value is far cheaper than replaying an event, so checkpoints are dense
+        // as long as all of them together stay within MAX_CHECKPOINT_VALUES
+        long stateSize = routeCount + 2L * this.nodeOccupancy.stateSize();
+        this.checkpointInterval = (int) Math.max(Math.max(16, stateSize / 32),
+                (long) eventCount * stateSize / MAX_CHECKPOINT_VALUES + 1);
+        int checkpointCount = eventCount / this.checkpointInterval + 1;
+        this.checkpointEvents = new long[checkpointCount][];
+        this.checkpointEventCounts = new int[checkpointCount];
+        this.checkpointOccupancies = new int[checkpointCount][];
+        this.checkpointDepartures = new long[checkpointCount][];
+        this.checkpointDepartureCounts = new int[checkpointCount];
+        this.checkpointEventHashes = new long[checkpointCount];
+        this.checkpointOccupancyHashes = new long[checkpointCount];
+
+        this.evaluate();
+    }
+
+    // Simulates the current solution from the start of the day and records it
+    public void evaluate() {
+        this.totalTravelTime = 0;
+        for (int i = 0; i < this.routes.length; i++) {
+            this.routeTravelTimes[i] = this.routeTravelTime(this.routes[i]);
+            this.totalTravelTime += this.routeTravelTimes[i];
+        }
+        Arrays.fill(this.routeWaitTimes, 0);
+        for (int[] waitTimes : this.routeWaitTimesForNodes) {
+            Arrays.fill(waitTimes, 0);
+        }
+
+        // All of the nodes are empty at the beginning and each route starts with an arrival at its first node
+        this.nodeOccupancy.reset();
+        this.departureQueue.clear();
+        this.occupancyHash = 0;
+        this.eventQueue.clear();
+        this.eventHash = 0;
+        for (int i = 0; i < this.routes.length; i++) {
+            this.addEvent(Events.pack(this.routeStartSeconds[i], Events.ARRIVAL, i, 0));
+        }
+
+        this.totalWaitTime = this.replay(0, -1, -1, true);
+    }
+
+    // Returns the total duration (travel + wait time) of the solution with one route replaced,
+    // the current solution is left unchanged
+    public long evaluateRouteChange(int routeID, int[] newRoute, int[] newDurations) {
+        long waitDelta = this.changeRoute(routeID, newRoute, newDurations, false);
+        return this.totalTravelTime - this.routeTravelTimes[routeID] + this.routeTravelTime(newRoute)
+                + this.totalWaitTime + waitDelta;
+    }
+
+    // Replaces one route of the current solution and updates all of the results
+    public void applyRouteChange(int routeID, int[] newRoute, int[] newDurations) {
+        long waitDelta = this.changeRoute(routeID, newRoute, newDurations, true);
+        int newTravelTime = this.routeTravelTime(newRoute);
+        this.totalTravelTime += newTravelTime - this.routeTravelTimes[routeID];
+        this.routeTravelTimes[routeID] = newTravelTime;
+        this.totalWaitTime += waitDelta;
+    }
+
+    // Runs the simulation of the solution with the route replaced, from the last checkpoint before
+    // the route diverges until the state converges with the recorded run. Returns the change of
+    // the total wait time.
+    private long changeRoute(int routeID, int[] newRoute, int[] newDurations, boolean record) {
+        int[] oldRoute = this.routes[routeID];
+        int[] oldDurations = this.durations[routeID];
+        if (newRoute.length != oldRoute.length || newDurations.length != oldRoute.length) {
+            throw new IllegalArgumentException("Route " + routeID + " must keep its " + oldRoute.length + " stops");
+        }
+
+        // Range of stops that differ
+        int firstChanged = 0;
+        while (firstChanged < oldRoute.length && oldRoute[firstChanged] == newRoute[firstChanged]
+                && oldDurations[firstChanged] == newDurations[firstChanged]) {
+            firstChanged++;
+        }
+        if (firstChanged == oldRoute.length) {
+            return 0;
+        }
+        int lastChanged = oldRoute.length - 1;
+        while (oldRoute[lastChanged] == newRoute[lastChanged] && oldDurations[lastChanged] == newDurations[lastChanged]) {
+            lastChanged--;
+        }
+
+        // The first event that differs is the arrival at the first changed stop, which is created when
+        // the previous stop is processed. Restore the last checkpoint before that.
+        long divergence;
+        if (firstChanged == 0) {
+            divergence = Events.pack(this.routeStartSeconds[routeID], Events.ARRIVAL, routeID, 0);
+        } else {
+            int previousArrival = this.routeServiceStarts[routeID][firstChanged - 1]
+                    - this.routeWaitTimesForNodes[routeID][firstChanged - 1];
+            divergence = Events.pack(previousArrival, Events.ARRIVAL, routeID, firstChanged - 1);
+        }
+        int processedBefore = Arrays.binarySearch(this.trace, divergence);
+        if (processedBefore < 0) {
+            processedBefore = -processedBefore - 1;
+        }
+        int checkpoint = processedBefore / this.checkpointInterval;
+        this.eventQueue.restore(this.checkpointEvents[checkpoint], this.checkpointEventCounts[checkpoint]);
+        this.nodeOccupancy.restoreState(this.checkpointOccupancies[checkpoint]);
+        this.departureQueue.restore(this.checkpointDepartures[checkpoint], this.checkpointDepartureCounts[checkpoint]);
+        this.eventHash = this.checkpointEventHashes[checkpoint];
+        this.occupancyHash = this.checkpointOccupancyHashes[checkpoint];
+
+        // A route that is only evaluated is simulated from the caller's arrays
+        if (record) {
+            System.arraycopy(newRoute, 0, oldRoute, 0, oldRoute.length);
+            System.arraycopy(newDurations, 0, oldDurations, 0, oldDurations.length);
+        } else {
+            this.routes[routeID] = newRoute;
+            this.durations[routeID] = newDurations;
+        }
+        long waitDelta = this.replay(checkpoint * this.checkpointInterval, routeID, lastChanged, record);
+        if (!record) {
+            this.routes[routeID] = oldRoute;
+            this.durations[routeID] = oldDurations;
+        }
+        return waitDelta;
+    }
+
+    // Processes events from the current state, which is the state after processedCount events.
+    // Unless changedRouteID is -1, the replay stops once the stops of the changed route up to
+    // lastChanged have been processed and the state matches the recorded one.
+    // Returns the change of the total wait time of the processed events.
+    private long replay(int processedCount, int changedRouteID, int lastChanged, boolean record) {
+        EventHeap eventQueue = this.eventQueue;
+        NodeOccupancy nodeOccupancy = this.nodeOccupancy;
+        EventHeap departureQueue = this.departureQueue;
+        TestInstance testInstance = this.testInstance;
+        boolean changedRouteDone = changedRouteID < 0;
+        long waitDelta = 0;
+        int eventIdx = processedCount;
+
+        if (record && eventIdx % this.checkpointInterval == 0) {
+            this.saveCheckpoint(eventIdx / this.checkpointInterval);
+        }
+
+        while (!eventQueue.isEmpty()) {
+            long currentEvent = eventQueue.poll();
+            this.eventHash -= SolutionHash.mix(currentEvent);
+            int currentTime = Events.time(currentEvent);
+            int routeID = Events.routeID(currentEvent);
+            int nodeRouteIdx = Events.stopIdx(currentEvent);
+            int[] route = this.routes[routeID];
+            int currentNode = route[nodeRouteIdx];
+            int duration = this.durations[routeID][nodeRouteIdx];
+
+            // Vehicles that have left by now no longer matter for the future
+            while (!departureQueue.isEmpty() && departureTime(departureQueue.peek()) <= currentTime) {
+                this.occupancyHash -= SolutionHash.mix(departureQueue.poll());
+            }
+
+            // Admit the vehicle to the node
+            int startTime = nodeOccupancy.admit(currentNode, currentTime, duration);
+            long departure = departure(startTime + duration, currentNode);
+            departureQueue.add(departure);
+            this.occupancyHash += SolutionHash.mix(departure);
+
+            int waitTime = startTime - currentTime;
+            int previousWaitTime = this.routeWaitTimesForNodes[routeID][nodeRouteIdx];
+            waitDelta += waitTime - previousWaitTime;
+
+            // If the current node is not the last in the route, create new arrival event
+            if (route.length > nodeRouteIdx + 1) {
+                int travelTime = testInstance.edgeCost(currentNode, route[nodeRouteIdx + 1]);
+                if (travelTime == TestInstance.NO_EDGE) {
+                    throw new IllegalStateException("No edge between nodes " + this.testInstance.nodeIDs[currentNode]
+                            + " and " + this.testInstance.nodeIDs[route[nodeRouteIdx + 1]]);
+                }
+                int newEventTime = startTime + duration + travelTime;
+                if (newEventTime > Events.MAX_TIME) {
+                    throw new IllegalStateException("Simulation time out of range: " + newEventTime);
+                }
+                this.addEvent(Events.pack(newEventTime, Events.ARRIVAL, routeID, nodeRouteIdx + 1));
+            }
+
+            if (routeID == changedRouteID && nodeRouteIdx == lastChanged) {
+                changedRouteDone = true;
+            }
+            // Same state after the same number of events as in the recorded run means the rest is identical
+            boolean converged = changedRouteDone && changedRouteID >= 0
+                    && this.trace[eventIdx] == currentEvent
+                    && this.traceEventHashes[eventIdx] == this.eventHash
+                    && this.traceOccupancyHashes[eventIdx] == this.occupancyHash;
+
+            if (record) {
+                this.routeWaitTimes[routeID] += waitTime - previousWaitTime;
+                this.routeWaitTimesForNodes[routeID][nodeRouteIdx] = waitTime;
+                this.routeServiceStarts[routeID][nodeRouteIdx] = startTime;
+                this.trace[eventIdx] = currentEvent;
+                this.traceEventHashes[eventIdx] = this.eventHash;
+                this.traceOccupancyHashes[eventIdx] = this.occupancyHash;
+            }
+            eventIdx++;
+            if (changedRouteID >= 0) {
+                this.replayedEvents++;
+            }
+            if (converged) {
+                break;
+            }
+            if (record && eventIdx % this.checkpointInterval == 0 && eventIdx < this.trace.length) {
+                this.saveCheckpoint(eventIdx / this.checkpointInterval);
+            }
+        }
+
+        return waitDelta;
+    }
+
+    private void saveCheckpoint(int checkpoint) {
+        int eventCount = this.eventQueue.size();
+        if (this.checkpointEvents[checkpoint] == null || this.checkpointEvents[checkpoint].length < eventCount) {
+            this.checkpointEvents[checkpoint] = new long[Math.max(eventCount, this.routes.length)];
+        }
+        this.eventQueue.copyTo(this.checkpointEvents[checkpoint]);
+        this.checkpointEventCounts[checkpoint] = eventCount;
+        if (this.checkpointOccupancies[checkpoint] == null) {
+            this.checkpointOccupancies[checkpoint] = new int[this.nodeOccupancy.stateSize()];
+        }
+        this.nodeOccupancy.copyState(this.checkpointOccupancies[checkpoint]);
+        int departureCount = this.departureQueue.size();
+        if (this.checkpointDepartures[checkpoint] == null || this.checkpointDepartures[checkpoint].length < departureCount) {
+            this.checkpointDepartures[checkpoint] = new long[Math.max(departureCount, this.nodeOccupancy.stateSize())];
+        }
+        this.departureQueue.copyTo(this.checkpointDepartures[checkpoint]);
+        this.checkpointDepartureCounts[checkpoint] = departureCount;
+        this.checkpointEventHashes[checkpoint] = this.eventHash;
+        this.checkpointOccupancyHashes[checkpoint] = this.occupancyHash;
+    }
+
+    private void addEvent(long event) {
+        this.eventQueue.add(event);
+        this.eventHash += SolutionHash.mix(event);
+    }
+
+    private int edgeCost(int fromNode, int toNode) {
+        return this.testInstance.edgeCost(fromNode, toNode);
+    }
+
+    private int routeTravelTime(int[] route) {
+        int travelTime = 0;
+        for (int i = 0; i + 1 < route.length; i++) {
+            travelTime += this.edgeCost(route[i], route[i + 1]);
+        }
+        return travelTime;
+    }
+
+    // Departure of a vehicle from a node, ordered by time
+    private static long departure(int time, int node) {
+        return ((long) time << 32) | node;
+    }
+
+    private static int departureTime(long departure) {
+        return (int) (departure >>> 32);
+    }
+
+    public long getTotalTravelTime() {
+        return this.totalTravelTime;
+    }
+
+    public long getTotalWaitTime() {
+        return this.totalWaitTime;
+    }
+
+    public long getTotalDuration() {
+        return this.totalTravelTime + this.totalWaitTime;
+    }
+
+    public int[] getRouteTravelTimes() {
+        return this.routeTravelTimes;
+    }
+
+    public int[] getRouteWaitTimes() {
+        return this.routeWaitTimes;
+    }
+
+    public int[][] getRouteWaitTimesForNodes() {
+        return this.routeWaitTimesForNodes;
+    }
+
+    // Start of the visit of every stop of the current solution
+    public int[][] getRouteServiceStarts() {
+        return this.routeServiceStarts;
+    }
+
+    public int[][] getRoutes() {
+        return this.routes;
+    }
+
+    public int[][] getDurations() {
+        return this.durations;
+    }
+
+    public long getReplayedEvents() {
+        return this.replayedEvents;
+    }
+
+    public int getEventCount() {
+        return this.trace.length;
+    }
+}
@@ -0,0 +1,511 @@
+package com.multi.delivery.planner;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/**
+ * Generator of synthetic test instances in the CSV format read by TestInstanceParser.
+ *
+ * Nodes lie at random points of a square area, and travelling between two nodes takes a fixed
+ * overhead plus the distance at a constant speed, give or take 10% per direction. Any other pair
+ * of nodes is connected with probability edgeDensity. Every route visits distinct nodes along
+ * existing edges, drawn with a popularity that falls off as 1 / (rank + 1)^s, and its TSP
+ * ordering is the shortest of the nearest-neighbour tours from every stop, improved by 2-opt.
+ *
+ * The complexity of an instance is the mean Jaccard similarity of the node sets of all pairs of
+ * routes. With uniform popularity (s = 0) it follows from the stops per route and the node count;
+ * a larger s makes routes share their nodes more. The exponent is chosen by bisection on the
+ * complexity of a sample of routes, so the target can be met from that lowest value up, and the
+ * COMPLEXITY section holds the estimate for the chosen exponent.
+ *
+ * Everything is derived from the seed: each route from its own generator, so that the routes can
+ * be written twice (ROUTES and TSP SOLUTION) without being held in memory, and each edge from a
+ * hash of its nodes. Memory use depends on the node count only.
+ */
+public class InstanceGenerator {
+
+    // Side of the square area in meters, travel speed in meters per second and the fixed part of a travel time
+    private static final int AREA_SIDE = 20_000;
+    private static final double SPEED = 11.0;
+    private static final int TRAVEL_OVERHEAD = 60;
+    // Node IDs start here
+    private static final int FIRST_NODE_ID = 10000;
+    // Routes sampled to estimate the complexity, and bisection steps for the popularity exponent
+    private static final int COMPLEXITY_SAMPLE = 400;
+    private static final int BISECTION_STEPS = 24;
+    private static final double MAX_EXPONENT = 8;
+    // Draws of a node before drawing among the nodes that can be visited next only
+    private static final int MAX_DRAWS = 32;
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+    private final int routeCount;
+    private final int nodeCount;
+    private final long seed;
+    // Stops per route, capacities and stop durations (seconds) are uniform in [min, max]
+    private int minStops;
+    private int maxStops;
+    private int minCapacity = 1;
+    private int maxCapacity = 3;
+    private int minDuration = 60;
+    private int maxDuration = 2000;
+    // Routes start uniformly in [firstStart, firstStart + startSpread) seconds since midnight
+    private int firstStart = 8 * 3600;
+    private int startSpread = 2 * 3600;
+    private double edgeDensity = 1;
+    // Target mean Jaccard similarity of the routes, 0 for uniform node popularity
+    private double targetComplexity;
+
+    // Node positions and running totals of the node popularities
+    private int[] xs;
+    private int[] ys;
+    private double[] cumulativePopularity;
+    private double popularityExponent;
+    private double complexity;
+
+    public InstanceGenerator(int routeCount, int stopsPerRoute, int nodeCount, long seed) {
+        if (routeCount < 1 || stopsPerRoute < 1 || nodeCount < stopsPerRoute) {
+            throw new IllegalArgumentException("Need at least one route of at least one stop and as many nodes as stops per route");
+        }
+        this.routeCount = routeCount;
+        this.nodeCount = nodeCount;
+        this.seed = seed;
+        this.minStops = stopsPerRoute;
+        this.maxStops = stopsPerRoute;
+    }
+
+    public void setStopRange(int minStops, int maxStops) {
+        if (minStops < 1 || maxStops < minStops || maxStops > this.nodeCount) {
+            throw new IllegalArgumentException("Invalid stops per route: " + minStops + "-" + maxStops);
+        }
+        this.minStops = minStops;
+        this.maxStops = maxStops;
+    }
+
+    public void setCapacityRange(int minCapacity, int maxCapacity) {
+        if (minCapacity < 1 || maxCapacity < minCapacity) {
+            throw new IllegalArgumentException("Invalid capacities: " + minCapacity + "-" + maxCapacity);
+        }
+        this.minCapacity = minCapacity;
+        this.maxCapacity = maxCapacity;
+    }
+
+    public void setDurationRange(int minDuration, int maxDuration) {
+        if (minDuration < 0 || maxDuration < minDuration) {
+            throw new IllegalArgumentException("Invalid stop durations: " + minDuration + "-" + maxDuration);
+        }
+        this.minDuration = minDuration;
+        this.maxDuration = maxDuration;
+    }
+
+    public void setStartWindow(int firstStart, int startSpread) {
+        if (firstStart < 0 || startSpread < 1 || firstStart + startSpread > 24 * 3600) {
+            throw new IllegalArgumentException("Route starts must lie within the day");
+        }
+        this.firstStart = firstStart;
+        this.startSpread = startSpread;
+    }
+
+    public void setEdgeDensity(double edgeDensity) {
+        if (edgeDensity < 0 || edgeDensity > 1) {
+            throw new IllegalArgumentException("Edge density must be between 0 and 1: " + edgeDensity);
+        }
+        this.edgeDensity = edgeDensity;
+    }
+
+    public void setTargetComplexity(double targetComplexity) {
+        if (targetComplexity < 0 || targetComplexity >= 1) {
+            throw new IllegalArgumentException("Target complexity must be in [0, 1): " + targetComplexity);
+        }
+        this.targetComplexity = targetComplexity;
+    }
+
+    // Writes the instance to a file
+    public void write(Path filePath) throws IOException {
+        this.setUp();
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            TextWriter writer = new TextWriter(channel);
+            int[] route = new int[this.maxStops];
+            int[] ordering = new int[this.maxStops];
+            boolean[] visited = new boolean[this.nodeCount];
+
+            writer.put("ROUTES\n");
+            for (int i = 0; i < this.routeCount; i++) {
+                SplittableRandom random = this.routeRandom(i);
+                int length = this.route(random, route, visited);
+                writer.putTime(this.firstStart + random.nextInt(this.startSpread));
+                for (int j = 0; j < length; j++) {
+                    writer.put(',').put(FIRST_NODE_ID + route[j]).put('|')
+                            .put(this.minDuration + random.nextInt(this.maxDuration - this.minDuration + 1));
+                }
+                writer.put('\n');
+            }
+
+            writer.put("NODES\n");
+            Random random = new Random(this.seed);
+            for (int node = 0; node < this.nodeCount; node++) {
+                int capacity = this.minCapacity + random.nextInt(this.maxCapacity - this.minCapacity + 1);
+                writer.put(FIRST_NODE_ID + node).put(',').put(capacity).put('\n');
+            }
+
+            writer.put("EDGES\n");
+            for (int from = 0; from < this.nodeCount; from++) {
+                for (int to = 0; to < this.nodeCount; to++) {
+                    if (from != to && this.hasEdge(from, to)) {
+                        writer.put(FIRST_NODE_ID + from).put(',').put(FIRST_NODE_ID + to).put(',')
+                                .put(this.edgeCost(from, to)).put('\n');
+                    }
+                }
+            }
+
+            writer.put("COMPLEXITY\n").put(Double.toString(this.complexity)).put('\n');
+
+            writer.put("TSP SOLUTION\n");
+            for (int i = 0; i < this.routeCount; i++) {
+                int length = this.route(this.routeRandom(i), route, visited);
+                this.tspOrdering(route, length, ordering, visited);
+                for (int j = 0; j < length; j++) {
+                    if (j > 0) {
+                        writer.put(',');
+                    }
+                    writer.put(FIRST_NODE_ID + ordering[j]);
+                }
+                writer.put('\n');
+            }
+            writer.flush();
+        }
+    }
+
+    // Places the nodes and chooses the popularity exponent for the target complexity
+    private void setUp() {
+        Random random = new Random(this.seed ^ 0x5DEECE66DL);
+        this.xs = new int[this.nodeCount];
+        this.ys = new int[this.nodeCount];
+        for (int node = 0; node < this.nodeCount; node++) {
+            this.xs[node] = random.nextInt(AREA_SIDE);
+            this.ys[node] = random.nextInt(AREA_SIDE);
+        }
+        this.cumulativePopularity = new double[this.nodeCount];
+
+        this.complexity = this.sampleComplexity(0);
+        this.popularityExponent = 0;
+        if (this.targetComplexity > this.complexity) {
+            double low = 0, high = MAX_EXPONENT;
+            for (int step = 0; step < BISECTION_STEPS; step++) {
+                double exponent = (low + high) / 2;
+                if (this.sampleComplexity(exponent) < this.targetComplexity) {
+                    low = exponent;
+                } else {
+                    high = exponent;
+                }
+            }
+            this.complexity = this.sampleComplexity(high);
+            this.popularityExponent = high;
+        } else {
+            this.setPopularity(0);
+        }
+    }
+
+    private void setPopularity(double exponent) {
+        double total = 0;
+        for (int node = 0; node < this.nodeCount; node++) {
+            total += Math.pow(node + 1, -exponent);
+            this.cumulativePopularity[node] = total;
+        }
+    }
+
+    // Mean Jaccard similarity of a sample of routes drawn with the given popularity exponent
+    private double sampleComplexity(double exponent) {
+        this.setPopularity(exponent);
+        int sampleSize = Math.min(COMPLEXITY_SAMPLE, this.routeCount);
+        if (sampleSize < 2) {
+            return 0;
+        }
+        int[][] routes = new int[sampleSize][];
+        int[] route = new int[this.maxStops];
+        boolean[] visited = new boolean[this.nodeCount];
+        for (int i = 0; i < sampleSize; i++) {
+            int length = this.route(this.routeRandom(i), route, visited);
+            routes[i] = Arrays.copyOf(route, length);
+            Arrays.sort(routes[i]);
+        }
+        double total = 0;
+        for (int i = 0; i < sampleSize; i++) {
+            for (int k = i + 1; k < sampleSize; k++) {
+                int shared = sharedNodes(routes[i], routes[k]);
+                total += (double) shared / (routes[i].length + routes[k].length - shared);
+            }
+        }
+        return total / ((double) sampleSize * (sampleSize - 1) / 2);
+    }
+
+    // Nodes in both of two sorted routes
+    private static int sharedNodes(int[] a, int[] b) {
+        int shared = 0;
+        for (int i = 0, k = 0; i < a.length && k < b.length; ) {
+            if (a[i] == b[k]) {
+                shared++;
+                i++;
+                k++;
+            } else if (a[i] < b[k]) {
+                i++;
+            } else {
+                k++;
+            }
+        }
+        return shared;
+    }
+
+    private SplittableRandom routeRandom(int routeID) {
+        return new SplittableRandom(SolutionHash.mix(this.seed + 0x9e3779b97f4a7c15L * (routeID + 1)));
+    }
+
+    // Draws the stops of a route into route and returns their number. The route ends early when
+    // no node is left that can be reached from its last stop.
+    private int route(SplittableRandom random, int[] route, boolean[] visited) {
+        int length = this.minStops + random.nextInt(this.maxStops - this.minStops + 1);
+        int stops = 0;
+        double total = this.cumulativePopularity[this.nodeCount - 1];
+        while (stops < length) {
+            int node = -1;
+            for (int draw = 0; draw < MAX_DRAWS && node < 0; draw++) {
+                int candidate = Arrays.binarySearch(this.cumulativePopularity, random.nextDouble() * total);
+                candidate = candidate < 0 ? Math.min(-candidate - 1, this.nodeCount - 1) : candidate;
+                if (!visited[candidate] && (stops == 0 || this.hasEdge(route[stops - 1], candidate))) {
+                    node = candidate;
+                }
+            }
+            if (node < 0) {
+                // A node that can come next, drawn by popularity in one pass (weighted reservoir sampling),
+                // so that sparse edges do not skew the popularity towards any node
+                double reachable = 0;
+                for (int candidate = 0; candidate < this.nodeCount; candidate++) {
+                    if (!visited[candidate] && (stops == 0 || this.hasEdge(route[stops - 1], candidate))) {
+                        double popularity = this.cumulativePopularity[candidate]
+                                - (candidate > 0 ? this.cumulativePopularity[candidate - 1] : 0);
+                        reachable += popularity;
+                        if (random.nextDouble() * reachable < popularity) {
+                            node = candidate;
+                        }
+                    }
+                }
+                if (node < 0) {
+                    break;
+                }
+            }
+            visited[node] = true;
+            route[stops++] = node;
+        }
+        for (int j = 0; j < stops; j++) {
+            visited[route[j]] = false;
+        }
+        return stops;
+    }
+
+    // Shortest nearest-neighbour tour over the stops of a route, improved by 2-opt, into ordering;
+    // the route itself if no tour follows existing edges
+    private void tspOrdering(int[] route, int length, int[] ordering, boolean[] visited) {
+        System.arraycopy(route, 0, ordering, 0, length);
+        long best = this.pathCost(ordering, length);
+        int[] tour = new int[length];
+        for (int first = 0; first < length; first++) {
+            tour[0] = route[first];
+            visited[route[first]] = true;
+            int size = 1;
+            while (size < length) {
+                int next = -1;
+                for (int j = 0; j < length; j++) {
+                    if (!visited[route[j]] && this.hasEdge(tour[size - 1], route[j])
+                            && (next < 0 || this.edgeCost(tour[size - 1], route[j]) < this.edgeCost(tour[size - 1], next))) {
+                        next = route[j];
+                    }
+                }
+                if (next < 0) {
+                    break;
+                }
+                visited[next] = true;
+                tour[size++] = next;
+            }
+            for (int j = 0; j < size; j++) {
+                visited[tour[j]] = false;
+            }
+            if (size == length) {
+                this.twoOpt(tour, length);
+                long cost = this.pathCost(tour, length);
+                if (cost < best) {
+                    best = cost;
+                    System.arraycopy(tour, 0, ordering, 0, length);
+                }
+            }
+        }
+    }
+
+    // Reverses segments of the path as long as that makes it shorter
+    private void twoOpt(int[] path, int length) {
+        long cost = this.pathCost(path, length);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            for (int i = 0; i < length - 1; i++) {
+                for (int k = i + 1; k < length; k++) {
+                    reverse(path, i, k);
+                    long newCost = this.pathCost(path, length);
+                    if (newCost < cost) {
+                        cost = newCost;
+                        improved = true;
+                    } else {
+                        reverse(path, i, k);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void reverse(int[] path, int from, int to) {
+        for (; from < to; from++, to--) {
+            int node = path[from];
+            path[from] = path[to];
+            path[to] = node;
+        }
+    }
+
+    // Travel time along a path, Long.MAX_VALUE if it uses a missing edge
+    private long pathCost(int[] path, int length) {
+        long cost = 0;
+        for (int j = 0; j + 1 < length; j++) {
+            if (!this.hasEdge(path[j], path[j + 1])) {
+                return Long.MAX_VALUE;
+            }
+            cost += this.edgeCost(path[j], path[j + 1]);
+        }
+        return cost;
+    }
+
+    private boolean hasEdge(int from, int to) {
+        return this.edgeDensity >= 1 || from == to
+                || (this.edgeHash(from, to) >>> 11) * 0x1.0p-53 < this.edgeDensity;
+    }
+
+    private int edgeCost(int from, int to) {
+        double distance = Math.hypot(this.xs[from] - this.xs[to], this.ys[from] - this.ys[to]);
+        // Deviation of the direction from the average speed, within +-10%
+        double deviation = 0.9 + 0.2 * ((this.edgeHash(to, from) >>> 11) * 0x1.0p-53);
+        return TRAVEL_OVERHEAD + (int) (distance / SPEED * deviation);
+    }
+
+    private long edgeHash(int from, int to) {
+        return SolutionHash.mix(this.seed ^ SolutionHash.mix(((long) from << 32) | to));
+    }
+
+    public double getPopularityExponent() {
+        return this.popularityExponent;
+    }
+
+    // Estimated complexity of the instance, known once it has been written
+    public double getComplexity() {
+        return this.complexity;
+    }
+
+    // Writes an instance: <file> <routes> <stops per route> <nodes> [seed] [target complexity]
+    // [edge density] [min capacity] [max capacity] [start spread in seconds]
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.out.println("Usage: InstanceGenerator <file> <routes> <stops per route> <nodes> [seed] [target complexity]"
+                    + " [edge density] [min capacity] [max capacity] [start spread in seconds]");
+            return;
+        }
+        InstanceGenerator generator = new InstanceGenerator(Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                Integer.parseInt(args[3]), args.length > 4 ? Long.parseLong(args[4]) : 1);
+        if (args.length > 5) {
+            generator.setTargetComplexity(Double.parseDouble(args[5]));
+        }
+        if (args.length > 6) {
+            generator.setEdgeDensity(Double.parseDouble(args[6]));
+        }
+        if (args.length > 8) {
+            generator.setCapacityRange(Integer.parseInt(args[7]), Integer.parseInt(args[8]));
+        }
+        if (args.length > 9) {
+            generator.setStartWindow(8 * 3600, Integer.parseInt(args[9]));
+        }
+        long startTime = System.nanoTime();
+        generator.write(Paths.get(args[0]));
+        System.out.printf("%s: complexity = %.4f (popularity exponent %.3f) in %d ms%n", args[0], generator.getComplexity(),
+                generator.getPopularityExponent(), (System.nanoTime() - startTime) / 1_000_000);
+    }
+
+    // Buffered writer of ASCII text
+    private static class TextWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        // Digits of the number being written, least significant first
+        private final byte[] digits = new byte[10];
+
+        TextWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        TextWriter put(char c) throws IOException {
+            if (!this.buffer.hasRemaining()) {
+                this.flush();
+            }
+            this.buffer.put((byte) c);
+            return this;
+        }
+
+        TextWriter put(String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.US_ASCII);
+            for (byte b : bytes) {
+                this.put((char) b);
+            }
+            return this;
+        }
+
+        // Writes a non-negative int
+        TextWriter put(int value) throws IOException {
+            if (this.buffer.remaining() < this.digits.length) {
+                this.flush();
+            }
+            int count = 0;
+            do {
+                this.digits[count++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            while (count > 0) {
+                this.buffer.put(this.digits[--count]);
+            }
+            return this;
+        }
+
+        // Writes seconds since midnight as HH:mm:ss
+        TextWriter putTime(int seconds) throws IOException {
+            if (this.buffer.remaining() < 8) {
+                this.flush();
+            }
+            this.putTwoDigits(seconds / 3600).buffer.put((byte) ':');
+            this.putTwoDigits(seconds / 60 % 60).buffer.put((byte) ':');
+            return this.putTwoDigits(seconds % 60);
+        }
+
+        private TextWriter putTwoDigits(int value) {
+            this.buffer.put((byte) ('0' + value / 10)).put((byte) ('0' + value % 10));
+            return this;
+        }
+
+        void flush() throws IOException {
+            this.buffer.flip();
+            while (this.buffer.hasRemaining()) {
+                this.channel.write(this.buffer);
+            }
+            this.buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package com.multi.delivery.planner;
+
+import java.util.Arrays;
+
+/**
+ * Red-black tree of interval endpoints that keeps the maximum number of overlapping
+ * intervals, like RBTree, but stored as parallel primitive arrays.
+ *
+ * Nodes are slots in the arrays, slot 0 being the sentinel, and removed slots are reused.
+ * An endpoint is an int code (see endpoint) that orders departures before arrivals at the
+ * same time, so intervals are half-open. A tree is meant to be cleared and rebuilt over and
+ * over: once its arrays are large enough, neither insertions, removals nor bulk builds allocate.
+ */
+public class IntervalTree {
+
+    // Slot of the sentinel
+    private static final int NIL = 0;
+
+    // Endpoint codes (key << 1 | 1 for arrivals)
+    private int[] endpoints;
+    // Children and parents (slots)
+    private int[] left;
+    private int[] right;
+    private int[] parent;
+    private boolean[] black;
+    // Augmented attributes as in RBTree: sum and maximal cumulative sums of the left values
+    // (+1 for arrivals) and right values (-1 for arrivals) in the subtree, and where they are
+    // reached. The sum of the right values is the negated sum of the left values.
+    private int[] sumLeft;
+    private int[] maxLeft;
+    private int[] maxLeftEndpoint;
+    private int[] maxRight;
+    private int[] maxRightEndpoint;
+
+    private int root = NIL;
+    // Slots in use or freed, including the sentinel
+    private int slotCount = 1;
+    // Freed slots, linked through left
+    private int freeSlot = NIL;
+    // Number of endpoints in the tree
+    private int size;
+
+    public IntervalTree() {
+        this(16);
+    }
+
+    public IntervalTree(int initialCapacity) {
+        int capacity = Math.max(initialCapacity, 1) + 1;
+        this.endpoints = new int[capacity];
+        this.left = new int[capacity];
+        this.right = new int[capacity];
+        this.parent = new int[capacity];
+        this.black = new boolean[capacity];
+        this.sumLeft = new int[capacity];
+        this.maxLeft = new int[capacity];
+        this.maxLeftEndpoint = new int[capacity];
+        this.maxRight = new int[capacity];
+        this.maxRightEndpoint = new int[capacity];
+        this.black[NIL] = true;
+    }
+
+    // Endpoint code of a key (non-negative time), ordered by key and then departures first
+    public static int endpoint(int key, boolean isArrival) {
+        return (key << 1) | (isArrival ? 1 : 0);
+    }
+
+    private static int key(int endpoint) {
+        return endpoint >>> 1;
+    }
+
+    private static boolean isArrival(int endpoint) {
+        return (endpoint & 1) != 0;
+    }
+
+    public void clear() {
+        this.root = NIL;
+        this.slotCount = 1;
+        this.freeSlot = NIL;
+        this.size = 0;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    // Maximum number of intervals that overlap at one point
+    public int getMaximumOverlaps() {
+        return this.root == NIL ? 0 : this.maxLeft[this.root];
+    }
+
+    public int[] findMaxOverlappingInterval() {
+        return new int[]{this.maxLeftEndpoint[this.root], this.maxRightEndpoint[this.root]};
+    }
+
+    // Inserts the interval [start, end)
+    public void insertInterval(int start, int end) {
+        this.insert(endpoint(start, true));
+        this.insert(endpoint(end, false));
+    }
+
+    // Removes the interval [start, end), returns false if it is not in the tree
+    public boolean removeInterval(int start, int end) {
+        int arrival = this.search(endpoint(start, true));
+        int departure = this.search(endpoint(end, false));
+        if (arrival == NIL || departure == NIL) {
+            return false;
+        }
+        // Deleting a node never moves other nodes to different slots
+        this.delete(arrival);
+        this.delete(departure);
+        return true;
+    }
+
+    // Builds the tree from endpoint codes sorted in ascending order, in linear time
+    public void build(int[] sortedEndpoints, int count) {
+        for (int i = 1; i < count; i++) {
+            if (sortedEndpoints[i] < sortedEndpoints[i - 1]) {
+                throw new IllegalArgumentException("Endpoints are not sorted at " + i);
+            }
+        }
+        this.clear();
+        this.ensureCapacity(count + 1);
+        System.arraycopy(sortedEndpoints, 0, this.endpoints, 1, count);
+        this.slotCount = count + 1;
+        this.size = count;
+        // Subtrees split evenly, so all of the leaves are on the two deepest levels. Coloring the
+        // nodes of the deepest level red gives every path the same number of black nodes.
+        int redDepth = count == 0 ? -1 : 31 - Integer.numberOfLeadingZeros(count);
+        this.root = this.buildRange(1, count, 0, redDepth == 0 ? -1 : redDepth);
+        this.parent[this.root] = NIL;
+    }
+
+    // Links the slots from..to (already holding their endpoints) into a balanced subtree
+    private int buildRange(int from, int to, int depth, int redDepth) {
+        if (from > to) {
+            return NIL;
+        }
+        int x = (from + to) >>> 1;
+        this.left[x] = this.buildRange(from, x - 1, depth + 1, redDepth);
+        this.right[x] = this.buildRange(x + 1, to, depth + 1, redDepth);
+        this.parent[this.left[x]] = x;
+        this.parent[this.right[x]] = x;
+        this.black[x] = depth != redDepth;
+        this.update(x);
+        return x;
+    }
+
+    public void insert(int endpoint) {
+        int z = this.allocate(endpoint);
+        int y = NIL;
+        int x = this.root;
+        while (x != NIL) {
+            y = x;
+            x = endpoint < this.endpoints[x] ? this.left[x] : this.right[x];
+        }
+        this.parent[z] = y;
+        if (y == NIL) {
+            this.root = z;
+        } else if (endpoint < this.endpoints[y]) {
+            this.left[y] = z;
+        } else {
+            this.right[y] = z;
+        }
+        this.updateUpwards(y);
+        this.insertFixup(z);
+        this.size++;
+    }
+
+    // Removes an endpoint, returns false if it is not in the tree.
+    // Equal endpoints are interchangeable, so any of them may be removed.
+    public boolean remove(int endpoint) {
+        int z = this.search(endpoint);
+        if (z == NIL) {
+            return false;
+        }
+        this.delete(z);
+        return true;
+    }
+
+    private int search(int endpoint) {
+        int x = this.root;
+        while (x != NIL && this.endpoints[x] != endpoint) {
+            x = endpoint < this.endpoints[x] ? this.left[x] : this.right[x];
+        }
+        return x;
+    }
+
+    private int allocate(int endpoint) {
+        int z;
+        if (this.freeSlot != NIL) {
+            z = this.freeSlot;
+            this.freeSlot = this.left[z];
+        } else {
+            this.ensureCapacity(this.slotCount + 1);
+            z = this.slotCount++;
+        }
+        this.endpoints[z] = endpoint;
+        this.left[z] = NIL;
+        this.right[z] = NIL;
+        this.black[z] = false;
+        this.update(z);
+        return z;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= this.endpoints.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, this.endpoints.length * 2);
+        this.endpoints = Arrays.copyOf(this.endpoints, newCapacity);
+        this.left = Arrays.copyOf(this.left, newCapacity);
+        this.right = Arrays.copyOf(this.right, newCapacity);
+        this.parent = Arrays.copyOf(this.parent, newCapacity);
+        this.black = Arrays.copyOf(this.black, newCapacity);
+        this.sumLeft = Arrays.copyOf(this.sumLeft, newCapacity);
+        this.maxLeft = Arrays.copyOf(this.maxLeft, newCapacity);
+        this.maxLeftEndpoint = Arrays.copyOf(this.maxLeftEndpoint, newCapacity);
+        this.maxRight = Arrays.copyOf(this.maxRight, newCapacity);
+        this.maxRightEndpoint = Arrays.copyOf(this.maxRightEndpoint, newCapacity);
+    }
+
+    // Recomputes the augmented attributes of a node from its children (see RBTree.Node.updateAugmentedAttrs)
+    private void update(int x) {
+        int l = this.left[x];
+        int r = this.right[x];
+        int key = key(this.endpoints[x]);
+        int leftVal = isArrival(this.endpoints[x]) ? 1 : -1;
+        // The sentinel's sum is always 0
+        this.sumLeft[x] = this.sumLeft[l] + leftVal + this.sumLeft[r];
+
+        int prefix = this.sumLeft[l] + leftVal;
+        if (l != NIL && this.maxLeft[l] >= prefix) {
+            this.maxLeft[x] = this.maxLeft[l];
+            this.maxLeftEndpoint[x] = this.maxLeftEndpoint[l];
+        } else {
+            this.maxLeft[x] = prefix;
+            this.maxLeftEndpoint[x] = key;
+        }
+        if (r != NIL && prefix + this.maxLeft[r] > this.maxLeft[x]) {
+            this.maxLeft[x] = prefix + this.maxLeft[r];
+            this.maxLeftEndpoint[x] = this.maxLeftEndpoint[r];
+        }
+
+        int suffix = -this.sumLeft[r] - leftVal;
+        if (l != NIL && this.maxRight[l] >= 0) {
+            this.maxRight[x] = suffix + this.maxRight[l];
+            this.maxRightEndpoint[x] = this.maxRightEndpoint[l];
+        } else {
+            this.maxRight[x] = suffix;
+            this.maxRightEndpoint[x] = key;
+        }
+        if (r != NIL && this.maxRight[r] > this.maxRight[x]) {
+            this.maxRight[x] = this.maxRight[r];
+            this.maxRightEndpoint[x] = this.maxRightEndpoint[r];
+        }
+    }
+
+    private void updateUpwards(int x) {
+        while (x != NIL) {
+            this.update(x);
+            x = this.parent[x];
+        }
+    }
+
+    private void leftRotate(int x) {
+        int y = this.right[x];
+        this.right[x] = this.left[y];
+        if (this.left[y] != NIL) {
+            this.parent[this.left[y]] = x;
+        }
+        this.replaceChild(x, y);
+        this.left[y] = x;
+        this.parent[x] = y;
+        this.update(x);
+        this.update(y);
+    }
+
+    private void rightRotate(int x) {
+        int y = this.left[x];
+        this.left[x] = this.right[y];
+        if (this.right[y] != NIL) {
+            this.parent[this.right[y]] = x;
+        }
+        this.replaceChild(x, y);
+        this.right[y] = x;
+        this.parent[x] = y;
+        this.update(x);
+        this.update(y);
+    }
+
+    // Puts v in u's place under u's parent (v may be the sentinel)
+    private void replaceChild(int u, int v) {
+        int p = this.parent[u];
+        if (p == NIL) {
+            this.root = v;
+        } else if (u == this.left[p]) {
+            this.left[p] = v;
+        } else {
+            this.right[p] = v;
+        }
+        this.parent[v] = p;
+    }
+
+    private void insertFixup(int z) {
+        while (!this.black[this.parent[z]]) {
+            int p = this.parent[z];
+            int g = this.parent[p];
+            if (p == this.left[g]) {
+                int y = this.right[g];
+                if (!this.black[y]) {
+                    this.black[p] = true;
+                    this.black[y] = true;
+                    this.black[g] = false;
+                    z = g;
+                } else {
+                    if (z == this.right[p]) {
+                        z = p;
+                        this.leftRotate(z);
+                        p = this.parent[z];
+                    }
+                    this.black[p] = true;
+                    this.black[g] = false;
+                    this.rightRotate(g);
+                }
+            } else {
+                int y = this.left[g];
+                if (!this.black[y]) {
+                    this.black[p] = true;
+                    this.black[y] = true;
+                    this.black[g] = false;
+                    z = g;
+                } else {
+                    if (z == this.left[p]) {
+                        z = p;
+                        this.rightRotate(z);
+                        p = this.parent[z];
+                    }
+                    this.black[p] = true;
+                    this.black[g] = false;
+                    this.leftRotate(g);
+                }
+            }
+        }
+        this.black[this.root] = true;
+    }
+
+    private void delete(int z) {
+        int y = z;
+        boolean yWasBlack = this.black[y];
+        int x;
+        if (this.left[z] == NIL) {
+            x = this.right[z];
+            this.replaceChild(z, x);
+        } else if (this.right[z] == NIL) {
+            x = this.left[z];
+            this.replaceChild(z, x);
+        } else {
+            // z's successor y takes its place
+            y = this.right[z];
+            while (this.left[y] != NIL) {
+                y = this.left[y];
+            }
+            yWasBlack = this.black[y];
+            x = this.right[y];
+            if (this.parent[y] == z) {
+                this.parent[x] = y;
+            } else {
+                this.replaceChild(y, x);
+                this.right[y] = this.right[z];
+                this.parent[this.right[y]] = y;
+            }
+            this.replaceChild(z, y);
+            this.left[y] = this.left[z];
+            this.parent[this.left[y]] = y;
+            this.black[y] = this.black[z];
+        }
+        // Everything above x's position lost an endpoint or got new children
+        this.updateUpwards(this.parent[x]);
+        if (yWasBlack) {
+            this.deleteFixup(x);
+        }
+
+        this.left[z] = this.freeSlot;
+        this.freeSlot = z;
+        this.size--;
+    }
+
+    private void deleteFixup(int x) {
+        while (x != this.root && this.black[x]) {
+            int p = this.parent[x];
+            if (x == this.left[p]) {
+                int w = this.right[p];
+                if (!this.black[w]) {
+                    this.black[w] = true;
+                    this.black[p] = false;
+                    this.leftRotate(p);
+                    w = this.right[p];
+                }
+                if (this.black[this.left[w]] && this.black[this.right[w]]) {
+                    this.black[w] = false;
+                    x = p;
+                } else {
+                    if (this.black[this.right[w]]) {
+                        this.black[this.left[w]] = true;
+                        this.black[w] = false;
+                        this.rightRotate(w);
+                        w = this.right[p];
+                    }
+                    this.black[w] = this.black[p];
+                    this.black[p] = true;
+                    this.black[this.right[w]] = true;
+                    this.leftRotate(p);
+                    x = this.root;
+                }
+            } else {
+                int w = this.left[p];
+                if (!this.black[w]) {
+                    this.black[w] = true;
+                    this.black[p] = false;
+                    this.rightRotate(p);
+                    w = this.left[p];
+                }
+                if (this.black[this.right[w]] && this.black[this.left[w]]) {
+                    this.black[w] = false;
+                    x = p;
+                } else {
+                    if (this.black[this.left[w]]) {
+                        this.black[this.right[w]] = true;
+                        this.black[w] = false;
+                        this.leftRotate(w);
+                        w = this.left[p];
+                    }
+                    this.black[w] = this.black[p];
+                    this.black[p] = true;
+                    this.black[this.left[w]] = true;
+                    this.rightRotate(p);
+                    x = this.root;
+                }
+            }
+        }
+        this.black[x] = true;
+    }
+}
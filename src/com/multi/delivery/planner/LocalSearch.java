@@ -0,0 +1,558 @@
+package com.multi.delivery.planner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Multi-threaded local search over the stop orderings of the routes.
+ *
+ * The search runs in rounds. In each round the workers share the routes through an atomic
+ * counter and find, for every route, the best improving move among swaps of two stops,
+ * 2-opt segment reversals and or-opt relocations of segments of up to three stops. Every
+ * worker evaluates moves with its own IncrementalEvaluator and scratch route arrays, so
+ * nothing is shared on the hot path. Moves that cause no capacity conflict are priced by
+ * the worker's CapacityScreen without running the simulation, and the totals of simulated
+ * moves are kept in the worker's EvaluationCache, keyed by the hash of the solution they
+ * lead to, so a solution reached by different moves is simulated once. Moves found in a
+ * round are then applied in order of their gain, each one re-checked against the moves
+ * applied before it, and replayed on the workers' evaluators. The search stops in a local
+ * optimum, when the time budget is used up or when the solution is within the gap tolerance
+ * of its LowerBound. A move of a route can gain at most the travel time of the route above
+ * its bound plus the total wait time, so routes that cannot gain are skipped and the search
+ * of a route ends once a move reaches this gain. Routes are handed out in order of their
+ * weight in the BottleneckIndex per move searched, so a round cut short by the time budget
+ * has spent it on the routes most likely to gain.
+ */
+public class LocalSearch {
+
+    // Move types
+    static final int SWAP = 0;
+    static final int TWO_OPT = 1;
+    static final int OR_OPT = 2;
+
+    // Longest segment moved by or-opt
+    static final int MAX_OR_OPT_LENGTH = 3;
+    // Stop positions are packed into 10 bits of a move, longer routes are left as they are
+    static final int MAX_ROUTE_LENGTH = 1 << 10;
+    // Memory of the evaluation caches of all the workers together, unless set otherwise
+    static final long DEFAULT_CACHE_MEMORY = 8L << 20;
+
+    // Test instance the solution belongs to
+    private final TestInstance testInstance;
+    // Number of worker threads
+    private final int threadCount;
+    // Time budget in nanoseconds
+    private final long timeBudget;
+
+    // Evaluator holding the current solution and its hash (see SolutionHash)
+    private final IncrementalEvaluator evaluator;
+    private long solutionHash;
+    // Memory of the evaluation caches of all the workers together, 0 if moves are not cached
+    private long cacheMemory = DEFAULT_CACHE_MEMORY;
+    // Bound on the total duration of any reordering, and the relative gap to it at which the search stops
+    private final LowerBound lowerBound;
+    private double gapTolerance;
+
+    // Congestion of the current solution and the order in which the routes are searched in a round
+    private final BottleneckIndex bottlenecks;
+    private final int[] routeOrder;
+
+    // Best move found for each route in the current round (see encodeMove) and the total duration it gives
+    private final int[] roundMoves;
+    private final long[] roundTotals;
+
+    // Statistics
+    private long movesEvaluated;
+    private long movesScreened;
+    private long cacheHits;
+    private long cacheMisses;
+    private long movesApplied;
+    private long routesPruned;
+    private int rounds;
+    private long elapsedTime;
+    private long initialDuration;
+
+    public LocalSearch(TestInstance testInstance, int[][] routes, int[][] durations, int threadCount, long timeBudgetMillis) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be positive: " + threadCount);
+        }
+        this.testInstance = testInstance;
+        this.threadCount = threadCount;
+        this.timeBudget = timeBudgetMillis * 1_000_000L;
+        this.evaluator = new IncrementalEvaluator(testInstance, routes, durations);
+        this.solutionHash = SolutionHash.solutionHash(routes, durations);
+        this.lowerBound = new LowerBound(testInstance, routes, durations);
+        this.bottlenecks = new BottleneckIndex(testInstance);
+        this.routeOrder = new int[routes.length];
+        this.roundMoves = new int[routes.length];
+        this.roundTotals = new long[routes.length];
+    }
+
+    // Sets the memory of the evaluation caches of the workers, 0 disables caching
+    public void setCacheMemory(long bytes) {
+        this.cacheMemory = bytes;
+    }
+
+    // Sets the relative gap to the lower bound at which the search stops, 0 stops only at the bound
+    public void setGapTolerance(double gapTolerance) {
+        if (gapTolerance < 0) {
+            throw new IllegalArgumentException("Gap tolerance must not be negative: " + gapTolerance);
+        }
+        this.gapTolerance = gapTolerance;
+    }
+
+    // Runs the search until a local optimum is reached or the time budget is used up
+    public void run() {
+        long startTime = System.nanoTime();
+        long deadline = startTime + this.timeBudget;
+        this.initialDuration = this.evaluator.getTotalDuration();
+
+        ExecutorService executor = Executors.newFixedThreadPool(this.threadCount);
+        try {
+            List<Worker> workers = new ArrayList<>(this.threadCount);
+            for (int i = 0; i < this.threadCount; i++) {
+                workers.add(new Worker(deadline));
+            }
+            // Workers set up their evaluators in parallel
+            invokeAll(executor, workers);
+
+            List<Integer> appliedRoutes = new ArrayList<>();
+            while (System.nanoTime() < deadline) {
+                // Find the best move of every route against the current solution
+                long currentTotal = this.evaluator.getTotalDuration();
+                if (currentTotal - this.lowerBound.getTotal() <= this.gapTolerance * currentTotal) {
+                    break;
+                }
+                Arrays.fill(this.roundTotals, Long.MAX_VALUE);
+                this.orderRoutes();
+                AtomicInteger nextRoute = new AtomicInteger();
+                for (Worker worker : workers) {
+                    worker.startRound(nextRoute, currentTotal, this.evaluator.getTotalWaitTime(), this.solutionHash);
+                }
+                invokeAll(executor, workers);
+                this.rounds++;
+
+                // Apply the moves with the largest gains first, as long as they still improve the solution
+                List<Integer> improvedRoutes = new ArrayList<>();
+                for (int i = 0; i < this.roundTotals.length; i++) {
+                    if (this.roundTotals[i] < currentTotal) {
+                        improvedRoutes.add(i);
+                    }
+                }
+                improvedRoutes.sort((a, b) -> Long.compare(this.roundTotals[a], this.roundTotals[b]));
+
+                appliedRoutes.clear();
+                for (int routeID : improvedRoutes) {
+                    int length = this.evaluator.getRoutes()[routeID].length;
+                    int[] newRoute = new int[length];
+                    int[] newDurations = new int[length];
+                    applyMove(this.roundMoves[routeID], this.evaluator.getRoutes()[routeID],
+                            this.evaluator.getDurations()[routeID], newRoute, newDurations);
+                    if (this.evaluator.evaluateRouteChange(routeID, newRoute, newDurations) < this.evaluator.getTotalDuration()) {
+                        this.solutionHash ^= SolutionHash.routeHash(routeID, this.evaluator.getRoutes()[routeID],
+                                this.evaluator.getDurations()[routeID]) ^ SolutionHash.routeHash(routeID, newRoute, newDurations);
+                        this.evaluator.applyRouteChange(routeID, newRoute, newDurations);
+                        appliedRoutes.add(routeID);
+                    }
+                }
+                if (appliedRoutes.isEmpty()) {
+                    break;
+                }
+                this.movesApplied += appliedRoutes.size();
+
+                // Bring the workers' evaluators up to date
+                int[][] routes = this.evaluator.getRoutes();
+                int[][] durations = this.evaluator.getDurations();
+                for (Worker worker : workers) {
+                    worker.startSync(appliedRoutes, routes, durations);
+                }
+                invokeAll(executor, workers);
+            }
+
+            for (Worker worker : workers) {
+                this.movesEvaluated += worker.movesEvaluated;
+                this.movesScreened += worker.movesScreened;
+                this.routesPruned += worker.routesPruned;
+                if (worker.cache != null) {
+                    this.cacheHits += worker.cache.getHits();
+                    this.cacheMisses += worker.cache.getMisses();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        this.elapsedTime = System.nanoTime() - startTime;
+    }
+
+    // Orders the routes by decreasing bottleneck weight per move searched, which grows with the square
+    // of the route length; routes without weight come last, by ID
+    private void orderRoutes() {
+        this.bottlenecks.rebuild(this.evaluator, this.lowerBound);
+        int[][] routes = this.evaluator.getRoutes();
+        double[] priorities = new double[routes.length];
+        Integer[] order = new Integer[routes.length];
+        for (int i = 0; i < routes.length; i++) {
+            long length = Math.max(1, routes[i].length);
+            priorities[i] = (double) this.bottlenecks.getRouteWeight(i) / (length * length);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(priorities[b], priorities[a]));
+        for (int i = 0; i < order.length; i++) {
+            this.routeOrder[i] = order[i];
+        }
+    }
+
+    private static void invokeAll(ExecutorService executor, List<Worker> workers) {
+        try {
+            for (Future<Void> future : executor.invokeAll(workers)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Local search was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Local search worker failed", e.getCause());
+        }
+    }
+
+    // Packs a move into an int: type (2 bits), then three 10-bit stop positions
+    static int encodeMove(int type, int first, int second, int third) {
+        return (type << 30) | (first << 20) | (second << 10) | third;
+    }
+
+    // Change of the solution hash made by a move, computed over the stops that the move changes.
+    // newRoute and newDurations hold the route after the move (see applyMove).
+    static long moveHashDelta(int routeID, int move, int[] route, int[] durations, int[] newRoute, int[] newDurations) {
+        int type = move >>> 30;
+        int first = (move >>> 20) & 0x3ff;
+        int second = (move >>> 10) & 0x3ff;
+        int third = move & 0x3ff;
+        if (type == SWAP) {
+            return SolutionHash.swapDelta(routeID, route, durations, first, second);
+        }
+        int from = type == TWO_OPT ? first : Math.min(first, second);
+        int to = type == TWO_OPT ? second + 1 : Math.max(first, second) + third;
+        return SolutionHash.rangeHash(routeID, route, durations, from, to)
+                ^ SolutionHash.rangeHash(routeID, newRoute, newDurations, from, to);
+    }
+
+    // Whether every stop of the route has an edge to the next one
+    static boolean hasEdges(TestInstance testInstance, int[] route) {
+        for (int j = 0; j + 1 < route.length; j++) {
+            if (!hasEdge(testInstance, route, j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Whether the route after a move (see applyMove) has all of its edges, given that the route before
+    // it had. Only the stops the move puts next to each other are checked: the neighbours of the two
+    // swapped stops, the ends of a reversed segment and the segment itself, whose edges are travelled
+    // the other way, and the three places where an or-opt move joins the route. Moves onto missing
+    // edges cannot be simulated.
+    static boolean moveHasEdges(TestInstance testInstance, int move, int[] newRoute) {
+        int type = move >>> 30;
+        int first = (move >>> 20) & 0x3ff;
+        int second = (move >>> 10) & 0x3ff;
+        int third = move & 0x3ff;
+        if (type == SWAP) {
+            return hasEdge(testInstance, newRoute, first - 1) && hasEdge(testInstance, newRoute, first)
+                    && hasEdge(testInstance, newRoute, second - 1) && hasEdge(testInstance, newRoute, second);
+        }
+        if (type == TWO_OPT) {
+            for (int j = first - 1; j <= second; j++) {
+                if (!hasEdge(testInstance, newRoute, j)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        // The segment now starts at second, and the stops it moved past end or start next to it
+        int from = Math.min(first, second);
+        int join = second < first ? second + third : second;
+        int to = Math.max(first, second) + third;
+        return hasEdge(testInstance, newRoute, from - 1) && hasEdge(testInstance, newRoute, join - 1)
+                && hasEdge(testInstance, newRoute, to - 1);
+    }
+
+    // Whether the stops at positions j and j + 1 of the route have an edge, true past either end of the route
+    private static boolean hasEdge(TestInstance testInstance, int[] route, int j) {
+        return j < 0 || j + 1 >= route.length || testInstance.edgeCost(route[j], route[j + 1]) != TestInstance.NO_EDGE;
+    }
+
+    // Writes the route (and its aligned durations) resulting from a move into newRoute and newDurations.
+    // SWAP exchanges the stops at first and second, TWO_OPT reverses the stops from first to second
+    // and OR_OPT moves the third stops starting at first so that they start at position second.
+    static void applyMove(int move, int[] route, int[] durations, int[] newRoute, int[] newDurations) {
+        int type = move >>> 30;
+        int first = (move >>> 20) & 0x3ff;
+        int second = (move >>> 10) & 0x3ff;
+        int third = move & 0x3ff;
+        System.arraycopy(route, 0, newRoute, 0, route.length);
+        System.arraycopy(durations, 0, newDurations, 0, durations.length);
+        if (type == SWAP) {
+            newRoute[first] = route[second];
+            newRoute[second] = route[first];
+            newDurations[first] = durations[second];
+            newDurations[second] = durations[first];
+        } else if (type == TWO_OPT) {
+            for (int i = first, j = second; i <= second; i++, j--) {
+                newRoute[i] = route[j];
+                newDurations[i] = durations[j];
+            }
+        } else {
+            // Segment [first, first + third) is moved to start at second
+            if (second < first) {
+                // Shift the stops in [second, first) right by the segment length
+                System.arraycopy(route, second, newRoute, second + third, first - second);
+                System.arraycopy(durations, second, newDurations, second + third, first - second);
+            } else {
+                // Shift the stops in [first + third, second + third) left by the segment length
+                System.arraycopy(route, first + third, newRoute, first, second - first);
+                System.arraycopy(durations, first + third, newDurations, first, second - first);
+            }
+            System.arraycopy(route, first, newRoute, second, third);
+            System.arraycopy(durations, first, newDurations, second, third);
+        }
+    }
+
+    // Worker thread state: its own evaluator, scratch arrays and counters
+    private class Worker implements Callable<Void> {
+        private final long deadline;
+        private IncrementalEvaluator evaluator;
+        private CapacityScreen capacityScreen;
+        // Totals of the simulated moves, or null
+        private EvaluationCache cache;
+        private int[] newRoute = new int[0];
+        private int[] newDurations = new int[0];
+        private long movesEvaluated;
+        private long movesScreened;
+        private long routesPruned;
+
+        // Task of the next call
+        private AtomicInteger nextRoute;
+        private long currentTotal;
+        private long currentWait;
+        private long currentHash;
+        private List<Integer> appliedRoutes;
+        private int[][] appliedFrom;
+        private int[][] appliedDurationsFrom;
+
+        Worker(long deadline) {
+            this.deadline = deadline;
+        }
+
+        void startRound(AtomicInteger nextRoute, long currentTotal, long currentWait, long currentHash) {
+            this.nextRoute = nextRoute;
+            this.currentTotal = currentTotal;
+            this.currentWait = currentWait;
+            this.currentHash = currentHash;
+            this.appliedRoutes = null;
+        }
+
+        void startSync(List<Integer> appliedRoutes, int[][] routes, int[][] durations) {
+            this.nextRoute = null;
+            this.appliedRoutes = appliedRoutes;
+            this.appliedFrom = routes;
+            this.appliedDurationsFrom = durations;
+        }
+
+        @Override
+        public Void call() {
+            if (this.evaluator == null) {
+                this.evaluator = new IncrementalEvaluator(testInstance, LocalSearch.this.evaluator.getRoutes(),
+                        LocalSearch.this.evaluator.getDurations());
+                this.capacityScreen = new CapacityScreen(testInstance, LocalSearch.this.evaluator.getRoutes(),
+                        LocalSearch.this.evaluator.getDurations());
+                long workerCacheMemory = cacheMemory / threadCount;
+                if (workerCacheMemory >= EvaluationCache.WAYS * EvaluationCache.ENTRY_BYTES + 1) {
+                    this.cache = new EvaluationCache(workerCacheMemory);
+                }
+            } else if (this.appliedRoutes != null) {
+                for (int routeID : this.appliedRoutes) {
+                    this.evaluator.applyRouteChange(routeID, this.appliedFrom[routeID], this.appliedDurationsFrom[routeID]);
+                    this.capacityScreen.applyRouteChange(routeID, this.appliedFrom[routeID], this.appliedDurationsFrom[routeID]);
+                }
+            } else if (this.nextRoute != null) {
+                int next;
+                while ((next = this.nextRoute.getAndIncrement()) < roundTotals.length) {
+                    if (!this.searchRoute(routeOrder[next])) {
+                        break;
+                    }
+                }
+            }
+            return null;
+        }
+
+        // Evaluates all moves of a route and records the best improving one.
+        // Returns false if the deadline has passed.
+        private boolean searchRoute(int routeID) {
+            int[] route = this.evaluator.getRoutes()[routeID];
+            int[] durations = this.evaluator.getDurations()[routeID];
+            int length = route.length;
+            if (length > MAX_ROUTE_LENGTH) {
+                return true;
+            }
+            if (this.newRoute.length != length) {
+                this.newRoute = new int[length];
+                this.newDurations = new int[length];
+            }
+
+            // No move can bring the total below this
+            long boundTotal = this.currentTotal - this.currentWait
+                    - (this.evaluator.getRouteTravelTimes()[routeID] - lowerBound.getRouteTravelBound(routeID));
+            if (boundTotal >= this.currentTotal) {
+                this.routesPruned++;
+                return true;
+            }
+
+            long bestTotal = this.currentTotal;
+            int bestMove = 0;
+            for (int type = SWAP; type <= OR_OPT && bestTotal > boundTotal; type++) {
+                int maxThird = type == OR_OPT ? Math.min(MAX_OR_OPT_LENGTH, length - 1) : 0;
+                for (int third = type == OR_OPT ? 1 : 0; third <= maxThird; third++) {
+                    int firstLimit = type == OR_OPT ? length - third + 1 : length;
+                    for (int first = 0; first < firstLimit; first++) {
+                        int secondStart = type == SWAP ? first + 1 : (type == TWO_OPT ? first + 2 : 0);
+                        int secondLimit = type == OR_OPT ? length - third + 1 : length;
+                        for (int second = secondStart; second < secondLimit; second++) {
+                            if (type == OR_OPT && (second == first || (third == 1 && Math.abs(second - first) == 1))) {
+                                // No change, or the same as swapping neighbours
+                                continue;
+                            }
+                            if (System.nanoTime() >= this.deadline) {
+                                this.record(routeID, bestMove, bestTotal);
+                                return false;
+                            }
+                            int move = encodeMove(type, first, second, third);
+                            applyMove(move, route, durations, this.newRoute, this.newDurations);
+                            if (!moveHasEdges(testInstance, move, this.newRoute)) {
+                                continue;
+                            }
+                            // Only moves that may cause waiting are simulated
+                            long total = this.capacityScreen.screenRouteChange(routeID, this.newRoute, this.newDurations);
+                            if (total < 0) {
+                                total = this.simulate(routeID, move, route, durations);
+                            } else {
+                                this.movesScreened++;
+                            }
+                            this.movesEvaluated++;
+                            if (total < bestTotal) {
+                                bestTotal = total;
+                                bestMove = move;
+                                if (bestTotal <= boundTotal) {
+                                    this.record(routeID, bestMove, bestTotal);
+                                    return true;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+            this.record(routeID, bestMove, bestTotal);
+            return true;
+        }
+
+        // Simulates the move held in the scratch arrays, unless the cache holds the resulting solution
+        private long simulate(int routeID, int move, int[] route, int[] durations) {
+            if (this.cache == null) {
+                return this.evaluator.evaluateRouteChange(routeID, this.newRoute, this.newDurations);
+            }
+            long hash = this.currentHash ^ moveHashDelta(routeID, move, route, durations, this.newRoute, this.newDurations);
+            int entry = this.cache.find(hash);
+            if (entry >= 0) {
+                return this.cache.getTotalDuration(entry);
+            }
+            long total = this.evaluator.evaluateRouteChange(routeID, this.newRoute, this.newDurations);
+            long travelTime = this.evaluator.getTotalTravelTime() - this.evaluator.getRouteTravelTimes()[routeID];
+            for (int j = 0; j + 1 < this.newRoute.length; j++) {
+                travelTime += testInstance.edgeCost(this.newRoute[j], this.newRoute[j + 1]);
+            }
+            this.cache.put(hash, travelTime, total - travelTime);
+            return total;
+        }
+
+        private void record(int routeID, int move, long total) {
+            if (total < this.currentTotal) {
+                roundMoves[routeID] = move;
+                roundTotals[routeID] = total;
+            }
+        }
+    }
+
+    public int[][] getRoutes() {
+        return this.evaluator.getRoutes();
+    }
+
+    public int[][] getDurations() {
+        return this.evaluator.getDurations();
+    }
+
+    public long getInitialDuration() {
+        return this.initialDuration;
+    }
+
+    public long getTotalDuration() {
+        return this.evaluator.getTotalDuration();
+    }
+
+    public long getMovesEvaluated() {
+        return this.movesEvaluated;
+    }
+
+    // Moves evaluated without simulation
+    public long getMovesScreened() {
+        return this.movesScreened;
+    }
+
+    // Simulated moves whose total was found in, or missing from, the evaluation caches
+    public long getCacheHits() {
+        return this.cacheHits;
+    }
+
+    public long getCacheMisses() {
+        return this.cacheMisses;
+    }
+
+    public long getSolutionHash() {
+        return this.solutionHash;
+    }
+
+    public long getMovesApplied() {
+        return this.movesApplied;
+    }
+
+    // Route searches skipped because no move of the route could gain
+    public long getRoutesPruned() {
+        return this.routesPruned;
+    }
+
+    public LowerBound getLowerBound() {
+        return this.lowerBound;
+    }
+
+    public int getRounds() {
+        return this.rounds;
+    }
+
+    public double getMovesPerSecond() {
+        return this.elapsedTime == 0 ? 0 : this.movesEvaluated * 1e9 / this.elapsedTime;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("threads = %d, rounds = %d, moves evaluated = %d (%.0f/s, %d screened, %d cached), "
+                + "routes pruned = %d, moves applied = %d, total duration %d -> %d (gap %.2f%%)",
+                this.threadCount, this.rounds, this.movesEvaluated, this.getMovesPerSecond(), this.movesScreened,
+                this.cacheHits, this.routesPruned, this.movesApplied, this.initialDuration, this.getTotalDuration(),
+                100 * this.lowerBound.gap(this.getTotalDuration()));
+    }
+}
@@ -0,0 +1,209 @@
+package com.multi.delivery.planner;
+
+import java.util.Arrays;
+
+/**
+ * Lower bound on the total duration (travel + wait time) of any ordering of the stops of a solution.
+ *
+ * Reordering keeps the stops of every route, so the travel time of a route is at least that of its
+ * shortest Hamiltonian path. The path is found exactly by dynamic programming over subsets for routes
+ * of up to EXACT_MAX_STOPS stops; for longer routes every stop but the first needs an incoming edge
+ * and every stop but the last an outgoing one, so the path is at least as long as the cheaper of
+ * these edges summed, less the most expensive one.
+ *
+ * Waiting is bounded at the busy nodes. The travel and wait time of a route is at least the time by
+ * which any of its visits starts later than it could if the route neither travelled nor waited, that
+ * is s + D - p for a route starting at s with stops lasting D in total and a visit lasting p. The
+ * visits of a node by routes starting at R or later take at least their total duration divided by
+ * the capacity of the node, so one of them starts late by at least R + total / capacity - max(s + D).
+ * It is not known which route that visit belongs to, so only the largest such delay over all the
+ * nodes, less the travel bound of the route it could belong to, is added to the travel bound.
+ */
+public class LowerBound {
+
+    // Longest route whose shortest Hamiltonian path is found exactly
+    static final int EXACT_MAX_STOPS = 9;
+    private static final int INFINITY = Integer.MAX_VALUE / 2;
+
+    // Bound on the travel time of every route
+    private final int[] routeTravelBounds;
+    private final long travelBound;
+    // Bound on the wait time beyond the travel bound
+    private final long waitBound;
+
+    public LowerBound(TestInstance testInstance, int[][] routes, int[][] durations) {
+        int routeCount = routes.length;
+        this.routeTravelBounds = new int[routeCount];
+        long travelBound = 0;
+        int[] table = new int[0];
+        for (int i = 0; i < routeCount; i++) {
+            int length = routes[i].length;
+            if (length <= EXACT_MAX_STOPS && length > 1) {
+                int size = (1 << length) * length;
+                if (table.length < size) {
+                    table = new int[size];
+                }
+                this.routeTravelBounds[i] = exactPathBound(testInstance, routes[i], table);
+            } else {
+                this.routeTravelBounds[i] = edgePathBound(testInstance, routes[i]);
+            }
+            travelBound += this.routeTravelBounds[i];
+        }
+        this.travelBound = travelBound;
+        this.waitBound = this.waitBound(testInstance, routes, durations);
+    }
+
+    // Shortest Hamiltonian path over the stops of a route, by dynamic programming over subsets of stops.
+    // table[set * length + last] is the shortest path visiting the stops of set and ending at last.
+    static int exactPathBound(TestInstance testInstance, int[] route, int[] table) {
+        int length = route.length;
+        int setCount = 1 << length;
+        Arrays.fill(table, 0, setCount * length, INFINITY);
+        for (int j = 0; j < length; j++) {
+            table[(1 << j) * length + j] = 0;
+        }
+        for (int set = 1; set < setCount; set++) {
+            for (int last = 0; last < length; last++) {
+                int cost = table[set * length + last];
+                if (cost == INFINITY) {
+                    continue;
+                }
+                for (int next = 0; next < length; next++) {
+                    if ((set & (1 << next)) != 0) {
+                        continue;
+                    }
+                    int edgeCost = testInstance.edgeCost(route[last], route[next]);
+                    if (edgeCost == TestInstance.NO_EDGE) {
+                        continue;
+                    }
+                    int idx = (set | (1 << next)) * length + next;
+                    table[idx] = Math.min(table[idx], cost + edgeCost);
+                }
+            }
+        }
+        int best = INFINITY;
+        for (int last = 0; last < length; last++) {
+            best = Math.min(best, table[(setCount - 1) * length + last]);
+        }
+        // Without any Hamiltonian path the route cannot be simulated, the edge bound still holds
+        return best == INFINITY ? edgePathBound(testInstance, route) : best;
+    }
+
+    // Bound from the cheapest incoming and outgoing edge of every stop among the stops of the route
+    static int edgePathBound(TestInstance testInstance, int[] route) {
+        long incoming = 0, outgoing = 0;
+        int maxIncoming = 0, maxOutgoing = 0;
+        for (int j = 0; j < route.length; j++) {
+            int minIncoming = INFINITY, minOutgoing = INFINITY;
+            for (int k = 0; k < route.length; k++) {
+                if (k == j) {
+                    continue;
+                }
+                int in = testInstance.edgeCost(route[k], route[j]);
+                if (in != TestInstance.NO_EDGE) {
+                    minIncoming = Math.min(minIncoming, in);
+                }
+                int out = testInstance.edgeCost(route[j], route[k]);
+                if (out != TestInstance.NO_EDGE) {
+                    minOutgoing = Math.min(minOutgoing, out);
+                }
+            }
+            // A stop without edges makes the route infeasible, it adds nothing to the bound
+            minIncoming = minIncoming == INFINITY ? 0 : minIncoming;
+            minOutgoing = minOutgoing == INFINITY ? 0 : minOutgoing;
+            incoming += minIncoming;
+            outgoing += minOutgoing;
+            maxIncoming = Math.max(maxIncoming, minIncoming);
+            maxOutgoing = Math.max(maxOutgoing, minOutgoing);
+        }
+        return (int) Math.max(0, Math.max(incoming - maxIncoming, outgoing - maxOutgoing));
+    }
+
+    // Largest delay over the busy nodes that some route must take beyond its travel bound (see class comment)
+    private long waitBound(TestInstance testInstance, int[][] routes, int[][] durations) {
+        int nodeCount = testInstance.nodeCount;
+        // Visits grouped by node: start of the route and visit index packed, for sorting by start
+        int[] nodeOffsets = new int[nodeCount + 1];
+        for (int[] route : routes) {
+            for (int node : route) {
+                nodeOffsets[node + 1]++;
+            }
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            nodeOffsets[i + 1] += nodeOffsets[i];
+        }
+        long[] visits = new long[nodeOffsets[nodeCount]];
+        int[] visitDurations = new int[visits.length];
+        int[] visitRoutes = new int[visits.length];
+        long[] routeEnds = new long[routes.length];
+        int[] filled = Arrays.copyOf(nodeOffsets, nodeCount);
+        for (int i = 0; i < routes.length; i++) {
+            long routeEnd = testInstance.routeStarts[i];
+            for (int duration : durations[i]) {
+                routeEnd += duration;
+            }
+            routeEnds[i] = routeEnd;
+            for (int j = 0; j < routes[i].length; j++) {
+                int visit = filled[routes[i][j]]++;
+                visits[visit] = ((long) testInstance.routeStarts[i] << 32) | visit;
+                visitDurations[visit] = durations[i][j];
+                visitRoutes[visit] = i;
+            }
+        }
+
+        long waitBound = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            int from = nodeOffsets[node];
+            int to = nodeOffsets[node + 1];
+            int capacity = testInstance.nodeCapacities[node];
+            if (to - from <= capacity) {
+                continue;
+            }
+            Arrays.sort(visits, from, to);
+            // Visits of the routes starting at R or later, from the latest start down
+            long totalDuration = 0;
+            long maxRouteEnd = Long.MIN_VALUE;
+            int maxTravelBound = 0;
+            for (int v = to - 1; v >= from; v--) {
+                int visit = (int) visits[v];
+                long start = visits[v] >>> 32;
+                totalDuration += visitDurations[visit];
+                maxRouteEnd = Math.max(maxRouteEnd, routeEnds[visitRoutes[visit]]);
+                maxTravelBound = Math.max(maxTravelBound, this.routeTravelBounds[visitRoutes[visit]]);
+                // Only the visits beyond the capacity have to wait for a slot
+                if (to - v > capacity) {
+                    long delay = start + totalDuration / capacity - maxRouteEnd;
+                    waitBound = Math.max(waitBound, delay - maxTravelBound);
+                }
+            }
+        }
+        return waitBound;
+    }
+
+    // Bound on the travel time of a route
+    public int getRouteTravelBound(int routeID) {
+        return this.routeTravelBounds[routeID];
+    }
+
+    public long getTravelBound() {
+        return this.travelBound;
+    }
+
+    public long getWaitBound() {
+        return this.waitBound;
+    }
+
+    public long getTotal() {
+        return this.travelBound + this.waitBound;
+    }
+
+    // Relative gap between a total duration and the bound
+    public double gap(long totalDuration) {
+        return totalDuration <= 0 ? 0 : (double) (totalDuration - this.getTotal()) / totalDuration;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("lower bound = %d (travel %d, wait %d)", this.getTotal(), this.travelBound, this.waitBound);
+    }
+}
@@ -1,38 +1,59 @@
 package com.multi.delivery.planner;
 
 import java.io.IOException;
-import java.lang.reflect.Array;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.time.LocalTime;
-import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.stream.Stream;
 
 public class Main {
 
-    public static void main(String[] args) {
-        ArrayList<TestInstance> testInstances = new ArrayList<TestInstance>();
+    public static void main(String[] args) throws IOException {
+        BatchSolver batchSolver = createBatchSolver(args, 0);
 
-        // Parse all test instance files in "test_instances" folder
-        try(Stream<Path> paths = Files.walk(Paths.get("./test_instances"))) {
-            paths.forEach(filePath -> {
-                if (Files.isRegularFile(filePath)) {
-                    TestInstance newTestInstance = TestInstanceParser.parse(filePath);
-                    testInstances.add(newTestInstance);
-                }
-            });
+        // Parse and solve all test instance files in "test_instances" folder
+        try {
+            batchSolver.solveAll(Paths.get("./test_instances"), System.out::println);
         } catch (IOException e) {
             System.out.println("An error has occurred while reading test instance files!");
             e.printStackTrace();
         }
+    }
 
-        // Solving each of the test instances
-        for (TestInstance testInstance : testInstances) {
-            Solver newSolver = new Solver(testInstance);
+    // Batch solver with the settings given from args[from] on
+    static BatchSolver createBatchSolver(String[] args, int from) throws IOException {
+        // Optional local search: number of threads and time budget (ms) per instance
+        int threadCount = args.length > from ? Integer.parseInt(args[from]) : 1;
+        long timeBudgetMillis = args.length > from + 1 ? Long.parseLong(args[from + 1]) : 0;
+        // Optional simulated annealing before the local search: time budget (ms) per instance
+        long annealingTimeBudgetMillis = args.length > from + 2 ? Long.parseLong(args[from + 2]) : 0;
+        // Optional exact search instead of the local search for instances of at most exactMaxStops stops:
+        // time budget (ms) per instance
+        long exactTimeBudgetMillis = args.length > from + 3 ? Long.parseLong(args[from + 3]) : 0;
+        int exactMaxStops = args.length > from + 4 ? Integer.parseInt(args[from + 4]) : BranchAndBound.DEFAULT_MAX_STOPS;
+        // Optional: solve over shortest travel times instead of the edge costs as given
+        boolean shortestPaths = args.length > from + 5 && Boolean.parseBoolean(args[from + 5]);
+        // Optional: directory the solutions are written to ("-" for none), as "csv" (default) or "binary"
+        String solutionDirectory = args.length > from + 6 && !args[from + 6].equals("-") ? args[from + 6] : null;
+        String solutionFormatName = args.length > from + 7 ? args[from + 7] : "csv";
+        // Optional: anneal and search the independent components of every solution in parallel
+        boolean solveByComponents = args.length > from + 8 && Boolean.parseBoolean(args[from + 8]);
+        int solutionFormat;
+        if (solutionFormatName.equals("csv")) {
+            solutionFormat = SolutionWriter.CSV;
+        } else if (solutionFormatName.equals("binary")) {
+            solutionFormat = SolutionWriter.BINARY;
+        } else {
+            throw new IllegalArgumentException("Unknown solution format (csv or binary): " + solutionFormatName);
         }
 
-
+        // Instances are solved in parallel, each local search using threadCount of the cores
+        int processors = Runtime.getRuntime().availableProcessors();
+        int solverThreadCount = Math.max(1, processors / threadCount);
+        BatchSolver batchSolver = new BatchSolver(2, solverThreadCount, 2 * solverThreadCount,
+                threadCount, timeBudgetMillis, annealingTimeBudgetMillis, exactTimeBudgetMillis, exactMaxStops);
+        batchSolver.setShortestPaths(shortestPaths);
+        batchSolver.setSolveByComponents(solveByComponents);
+        if (solutionDirectory != null) {
+            batchSolver.setSolutionOutput(Paths.get(solutionDirectory), solutionFormat);
+        }
+        return batchSolver;
     }
 }
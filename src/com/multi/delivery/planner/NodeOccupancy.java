@@ -0,0 +1,125 @@
+package com.multi.delivery.planner;
+
+import java.util.Arrays;
+
+/**
+ * Occupancy of all nodes during an event simulation.
+ *
+ * A node with capacity c is modelled as c parking slots. For every node we keep a
+ * bounded min-heap with the times at which its occupied slots free up, so the heap
+ * never holds more than c entries and its root is the time the next slot frees up.
+ * A vehicle arriving at a full node waits until the root time and then takes over
+ * that slot. Slots are released implicitly: a free time that lies in the past
+ * simply means the slot is available, so departures need no bookkeeping.
+ *
+ * This gives the same service start times as keeping every departure time of the
+ * parked and waiting vehicles in a sorted list and waiting for the (size - c)-th one.
+ */
+public class NodeOccupancy {
+
+    // Capacity of each node
+    private final int[] capacities;
+    // Start of each node's heap in slotFreeTimes
+    private final int[] offsets;
+    // Number of occupied entries of each node's heap
+    private final int[] sizes;
+    // Heaps of slot free times, one block of capacity entries per node
+    private final int[] slotFreeTimes;
+
+    public NodeOccupancy(int[] capacities) {
+        this.capacities = capacities;
+        this.offsets = new int[capacities.length];
+        this.sizes = new int[capacities.length];
+        int totalCapacity = 0;
+        for (int i = 0; i < capacities.length; i++) {
+            if (capacities[i] <= 0) {
+                throw new IllegalArgumentException("Node " + i + " has no capacity");
+            }
+            this.offsets[i] = totalCapacity;
+            totalCapacity += capacities[i];
+        }
+        this.slotFreeTimes = new int[totalCapacity];
+    }
+
+    // Empties all of the nodes
+    public void reset() {
+        Arrays.fill(this.sizes, 0);
+    }
+
+    // Empties a single node
+    public void reset(int node) {
+        this.sizes[node] = 0;
+    }
+
+    // Number of ints needed to save the state of all of the nodes
+    public int stateSize() {
+        return this.sizes.length + this.slotFreeTimes.length;
+    }
+
+    // Saves the state of all of the nodes into dst (of at least stateSize() ints)
+    public void copyState(int[] dst) {
+        System.arraycopy(this.sizes, 0, dst, 0, this.sizes.length);
+        System.arraycopy(this.slotFreeTimes, 0, dst, this.sizes.length, this.slotFreeTimes.length);
+    }
+
+    // Restores a state previously saved with copyState
+    public void restoreState(int[] src) {
+        System.arraycopy(src, 0, this.sizes, 0, this.sizes.length);
+        System.arraycopy(src, this.sizes.length, this.slotFreeTimes, 0, this.slotFreeTimes.length);
+    }
+
+    // Returns the earliest time a newly arriving vehicle can start its visit at the node,
+    // or Integer.MIN_VALUE if the node has a slot that has never been occupied
+    public int nextFreeTime(int node) {
+        if (this.sizes[node] < this.capacities[node]) {
+            return Integer.MIN_VALUE;
+        }
+        return this.slotFreeTimes[this.offsets[node]];
+    }
+
+    // Admits a vehicle arriving at the node and occupying it for the given duration.
+    // Returns the time at which the visit starts (the arrival time if a slot is free).
+    public int admit(int node, int arrivalTime, int duration) {
+        int offset = this.offsets[node];
+        int size = this.sizes[node];
+        if (size < this.capacities[node]) {
+            // Unused slot, sift the new free time up
+            int departureTime = arrivalTime + duration;
+            int idx = size;
+            while (idx > 0) {
+                int parentIdx = (idx - 1) >>> 1;
+                int parent = this.slotFreeTimes[offset + parentIdx];
+                if (parent <= departureTime) {
+                    break;
+                }
+                this.slotFreeTimes[offset + idx] = parent;
+                idx = parentIdx;
+            }
+            this.slotFreeTimes[offset + idx] = departureTime;
+            this.sizes[node] = size + 1;
+            return arrivalTime;
+        }
+
+        // Take over the slot that frees up first and sift its new free time down
+        int startTime = Math.max(arrivalTime, this.slotFreeTimes[offset]);
+        int departureTime = startTime + duration;
+        int idx = 0;
+        int half = size >>> 1;
+        while (idx < half) {
+            int childIdx = (idx << 1) + 1;
+            int child = this.slotFreeTimes[offset + childIdx];
+            int rightIdx = childIdx + 1;
+            if (rightIdx < size && this.slotFreeTimes[offset + rightIdx] < child) {
+                childIdx = rightIdx;
+                child = this.slotFreeTimes[offset + rightIdx];
+            }
+            if (departureTime <= child) {
+                break;
+            }
+            this.slotFreeTimes[offset + idx] = child;
+            idx = childIdx;
+        }
+        this.slotFreeTimes[offset + idx] = departureTime;
+        return startTime;
+    }
+}
@@ -0,0 +1,486 @@
+package com.multi.delivery.planner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-lived planner that solves test instances on request, so that a batch pays for JVM
+ * startup and JIT warm-up only once, and instances solved before stay parsed.
+ *
+ * Requests are lines of text, read from stdin or from connections to a port on the loopback
+ * address:
+ *
+ *   SOLVE path             solves a test instance file (CSV or binary, see TestInstanceBinary.load)
+ *   INSTANCE byteCount     solves the test instance whose CSV text follows in the next byteCount bytes
+ *                          (at most MAX_INSTANCE_BYTES)
+ *   STATS                  reports the queue depth and the latency of the requests served so far
+ *   QUIT                   ends the connection once all of its responses are written
+ *   SHUTDOWN               also stops accepting connections and shuts the server down
+ *
+ * Every request gets one response line, "id OK result", "id ERROR message" or "id STATS ...",
+ * where id numbers the requests of a connection from 1. Requests are solved in parallel by
+ * the solver threads of the BatchSolver, and responses are written as soon as they and all of
+ * the earlier requests of the connection are done, in request order. A connection reads no
+ * further requests while maxInFlight of its requests are pending.
+ *
+ * After SHUTDOWN, further SOLVE and INSTANCE requests of any connection are answered with
+ * "id ERROR shutting down". The server waits up to SHUTDOWN_GRACE_MILLIS for the other
+ * connections to end, then stops reading from them; requests already submitted are still
+ * answered before the solver threads are shut down.
+ *
+ * With a solution directory set in the BatchSolver, the solution of a file is written under
+ * files/ by the absolute path of the file, and that of an inline instance under inline/ by its
+ * name, instance-n, numbering the inline instances of the server. Requests for the same file
+ * therefore replace its solution, and no two instances share one (a CSV file and its binary copy
+ * are the same instance).
+ *
+ * Parsed instance files are kept in a cache of CACHE_ENTRIES files, and reparsed when the file
+ * changes. Latency is measured from reading a request to its response being ready, and includes
+ * the time spent waiting for a solver thread.
+ */
+public class PlannerServer {
+
+    // Parsed test instance files kept for repeated requests
+    static final int CACHE_ENTRIES = 64;
+    // Latencies kept for the percentiles
+    private static final int LATENCY_SAMPLES = 4096;
+    // Longest request line
+    private static final int MAX_LINE_LENGTH = 1 << 16;
+    // Longest inline instance text, larger instances are solved from their files
+    static final int MAX_INSTANCE_BYTES = 1 << 28;
+    // Time connections get to end on their own after SHUTDOWN
+    static final long SHUTDOWN_GRACE_MILLIS = 5000;
+
+    private final BatchSolver batchSolver;
+    private final ExecutorService solverExecutor;
+    // Pending requests of a connection before it stops reading
+    private final int maxInFlight;
+
+    // Parsed test instances with the modification time of their file, least recently used first
+    private final Map<Path, CachedInstance> instanceCache = new LinkedHashMap<>(16, 0.75f, true);
+    // Requests submitted to the solver threads and not done yet, and the most there have been
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    // Inline instances received so far, numbering them across connections
+    private final AtomicInteger inlineInstances = new AtomicInteger();
+    private final LatencyRecorder latencies = new LatencyRecorder(LATENCY_SAMPLES);
+
+    private volatile boolean shutdown;
+    private volatile ServerSocket serverSocket;
+    // Threads serving the open connections and their sockets
+    private final Map<Thread, Socket> connections = new ConcurrentHashMap<>();
+
+    public PlannerServer(BatchSolver batchSolver) {
+        this.batchSolver = batchSolver;
+        this.solverExecutor = Executors.newFixedThreadPool(batchSolver.getSolverThreadCount());
+        this.maxInFlight = batchSolver.getMaxInFlight();
+    }
+
+    // A parsed test instance file
+    private static class CachedInstance {
+        final FileTime lastModified;
+        final TestInstance testInstance;
+
+        CachedInstance(FileTime lastModified, TestInstance testInstance) {
+            this.lastModified = lastModified;
+            this.testInstance = testInstance;
+        }
+    }
+
+    // Serves the requests of one connection until QUIT, SHUTDOWN or the end of the input
+    public void serve(InputStream in, OutputStream out) throws IOException {
+        InputStream input = new BufferedInputStream(in);
+        BlockingQueue<CompletableFuture<String>> responses = new ArrayBlockingQueue<>(this.maxInFlight);
+        ResponseWriter writer = new ResponseWriter(responses, new BufferedOutputStream(out));
+        Thread writerThread = new Thread(writer, "planner-responses");
+        writerThread.start();
+        try {
+            int id = 0;
+            String line;
+            while ((line = readLine(input)) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                id++;
+                long receivedNanos = System.nanoTime();
+                int space = line.indexOf(' ');
+                String command = space < 0 ? line : line.substring(0, space);
+                String argument = space < 0 ? "" : line.substring(space + 1).trim();
+                if (command.equals("QUIT") || command.equals("SHUTDOWN")) {
+                    if (command.equals("SHUTDOWN")) {
+                        this.shutdown();
+                    }
+                    break;
+                }
+                CompletableFuture<String> response;
+                try {
+                    switch (command) {
+                        case "SOLVE":
+                            if (argument.isEmpty()) {
+                                throw new IllegalArgumentException("file path expected");
+                            }
+                            Path filePath = Paths.get(argument);
+                            response = this.submit(id, receivedNanos, filePath, fileSolutionName(filePath), null);
+                            break;
+                        case "INSTANCE":
+                            int byteCount = Integer.parseInt(argument);
+                            if (byteCount > MAX_INSTANCE_BYTES) {
+                                // The text is skipped so that it is not read as requests
+                                skipBytes(input, byteCount);
+                                throw new IllegalArgumentException("instance text longer than " + MAX_INSTANCE_BYTES
+                                        + " bytes");
+                            }
+                            byte[] text = readBytes(input, byteCount);
+                            Path name = Paths.get("instance-" + this.inlineInstances.incrementAndGet());
+                            response = this.submit(id, receivedNanos, name, Paths.get("inline").resolve(name), text);
+                            break;
+                        case "STATS":
+                            response = CompletableFuture.completedFuture(id + " STATS " + this.stats());
+                            break;
+                        default:
+                            throw new IllegalArgumentException("unknown command " + command);
+                    }
+                } catch (IllegalArgumentException e) {
+                    this.errors.incrementAndGet();
+                    response = CompletableFuture.completedFuture(id + " ERROR " + e.getMessage());
+                } catch (RejectedExecutionException e) {
+                    // The solver threads were shut down by close
+                    this.errors.incrementAndGet();
+                    response = CompletableFuture.completedFuture(id + " ERROR shutting down");
+                }
+                try {
+                    responses.put(response);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            writer.finish();
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (writer.failure != null) {
+            throw writer.failure;
+        }
+    }
+
+    // Solution name of a file (see class comment)
+    private static Path fileSolutionName(Path filePath) {
+        Path absolutePath = filePath.toAbsolutePath().normalize();
+        return Paths.get("files").resolve(absolutePath.getRoot().relativize(absolutePath));
+    }
+
+    // Hands a request to the solver threads; text is the CSV of an inline instance, null for a file
+    private CompletableFuture<String> submit(int id, long receivedNanos, Path filePath, Path solutionName, byte[] text) {
+        if (this.shutdown) {
+            this.errors.incrementAndGet();
+            return CompletableFuture.completedFuture(id + " ERROR shutting down");
+        }
+        int depth = this.queueDepth.incrementAndGet();
+        this.maxQueueDepth.accumulateAndGet(depth, Math::max);
+        return CompletableFuture.supplyAsync(() -> {
+            String response;
+            try {
+                TestInstance testInstance = text != null ? TestInstanceParser.parse(ByteBuffer.wrap(text))
+                        : this.load(filePath);
+                BatchSolver.Result result = this.batchSolver.solve(filePath, solutionName, testInstance);
+                if (result.error != null) {
+                    this.errors.incrementAndGet();
+                    response = id + " ERROR " + result;
+                } else {
+                    response = id + " OK " + result;
+                }
+            } catch (Throwable e) {
+                // Errors too (e.g. running out of memory on a large instance), the request must get a response
+                this.errors.incrementAndGet();
+                response = id + " ERROR " + filePath + ": " + e;
+            } finally {
+                this.queueDepth.decrementAndGet();
+            }
+            this.latencies.record(System.nanoTime() - receivedNanos);
+            return response;
+        }, this.solverExecutor);
+    }
+
+    // Parsed test instance of a file, from the cache unless the file has changed
+    private TestInstance load(Path filePath) throws IOException {
+        FileTime lastModified = Files.getLastModifiedTime(filePath);
+        Path key = filePath.toAbsolutePath().normalize();
+        synchronized (this.instanceCache) {
+            CachedInstance cached = this.instanceCache.get(key);
+            if (cached != null && cached.lastModified.equals(lastModified)) {
+                this.cacheHits.incrementAndGet();
+                return cached.testInstance;
+            }
+        }
+        TestInstance testInstance = TestInstanceBinary.load(filePath);
+        if (testInstance != null) {
+            synchronized (this.instanceCache) {
+                this.instanceCache.put(key, new CachedInstance(lastModified, testInstance));
+                if (this.instanceCache.size() > CACHE_ENTRIES) {
+                    this.instanceCache.remove(this.instanceCache.keySet().iterator().next());
+                }
+            }
+        }
+        return testInstance;
+    }
+
+    public String stats() {
+        int cached;
+        synchronized (this.instanceCache) {
+            cached = this.instanceCache.size();
+        }
+        return "queue depth = " + this.queueDepth.get() + " (max " + this.maxQueueDepth.get() + "), " + this.latencies
+                + ", errors = " + this.errors.get() + ", cached instances = " + cached + " (" + this.cacheHits.get() + " hits)";
+    }
+
+    // Accepts connections on the loopback address until SHUTDOWN, each served by its own thread
+    public void listen(int port) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            this.serverSocket = serverSocket;
+            System.err.println("Planner listening on " + serverSocket.getLocalSocketAddress());
+            while (!this.shutdown) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    if (this.shutdown) {
+                        break;
+                    }
+                    throw e;
+                }
+                Thread connection = new Thread(() -> {
+                    try (Socket s = socket) {
+                        this.serve(s.getInputStream(), s.getOutputStream());
+                    } catch (IOException e) {
+                        System.err.println("Connection " + socket.getRemoteSocketAddress() + " failed: " + e);
+                    } finally {
+                        this.connections.remove(Thread.currentThread());
+                    }
+                }, "planner-connection");
+                this.connections.put(connection, socket);
+                connection.start();
+            }
+        } finally {
+            this.shutdown = true;
+            this.awaitConnections();
+            // Requests already submitted have been answered
+            this.solverExecutor.shutdown();
+        }
+    }
+
+    // Waits for the open connections to end, and stops reading from the ones still open after the grace period
+    private void awaitConnections() {
+        long deadline = System.nanoTime() + SHUTDOWN_GRACE_MILLIS * 1_000_000;
+        try {
+            for (Thread connection : this.connections.keySet()) {
+                connection.join(Math.max(1, (deadline - System.nanoTime()) / 1_000_000));
+            }
+            for (Map.Entry<Thread, Socket> connection : this.connections.entrySet()) {
+                try {
+                    // The connection reads the end of its input and still writes its pending responses
+                    connection.getValue().shutdownInput();
+                } catch (IOException e) {
+                    // Already closed
+                }
+                connection.getKey().join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Stops accepting connections and answers further requests with an error; requests already
+    // submitted are still answered
+    public void shutdown() {
+        this.shutdown = true;
+        ServerSocket serverSocket = this.serverSocket;
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                // Closing only interrupts accept
+            }
+        }
+    }
+
+    public void close() {
+        this.solverExecutor.shutdown();
+    }
+
+    // Reads an ASCII line without its line end, null at the end of the input
+    private static String readLine(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = input.read()) >= 0 && b != '\n') {
+            if (line.length() == MAX_LINE_LENGTH) {
+                throw new IOException("Request line longer than " + MAX_LINE_LENGTH + " bytes");
+            }
+            line.append((char) b);
+        }
+        if (b < 0 && line.length() == 0) {
+            return null;
+        }
+        int length = line.length();
+        return length > 0 && line.charAt(length - 1) == '\r' ? line.substring(0, length - 1) : line.toString();
+    }
+
+    private static byte[] readBytes(InputStream input, int count) throws IOException {
+        if (count < 0) {
+            throw new IllegalArgumentException("negative byte count");
+        }
+        byte[] bytes = new byte[count];
+        for (int read = 0; read < count; ) {
+            int n = input.read(bytes, read, count - read);
+            if (n < 0) {
+                throw new EOFException("Instance text ended after " + read + " of " + count + " bytes");
+            }
+            read += n;
+        }
+        return bytes;
+    }
+
+    // Reads and drops count bytes (skip is not supported by every stream, e.g. pipes)
+    private static void skipBytes(InputStream input, int count) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        for (int skipped = 0; skipped < count; ) {
+            int n = input.read(buffer, 0, Math.min(buffer.length, count - skipped));
+            if (n < 0) {
+                throw new EOFException("Instance text ended after " + skipped + " of " + count + " bytes");
+            }
+            skipped += n;
+        }
+    }
+
+    // Writes the responses of a connection in request order, each as soon as it is done
+    private static class ResponseWriter implements Runnable {
+        // Marks the end of the responses
+        private static final CompletableFuture<String> END = CompletableFuture.completedFuture(null);
+
+        private final BlockingQueue<CompletableFuture<String>> responses;
+        private final OutputStream out;
+        volatile IOException failure;
+
+        ResponseWriter(BlockingQueue<CompletableFuture<String>> responses, OutputStream out) {
+            this.responses = responses;
+            this.out = out;
+        }
+
+        void finish() {
+            try {
+                this.responses.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    CompletableFuture<String> response = this.responses.take();
+                    if (response == END) {
+                        break;
+                    }
+                    this.out.write((response.join() + "\n").getBytes(StandardCharsets.UTF_8));
+                    // Flush only when no further response is ready, so bursts go out together
+                    CompletableFuture<String> next = this.responses.peek();
+                    if (next == null || !next.isDone()) {
+                        this.out.flush();
+                    }
+                }
+                this.out.flush();
+            } catch (IOException e) {
+                this.failure = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Count, mean and percentiles of the most recent latencies
+    private static class LatencyRecorder {
+        private final long[] samples;
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        LatencyRecorder(int sampleCount) {
+            this.samples = new long[sampleCount];
+        }
+
+        synchronized void record(long nanos) {
+            this.samples[(int) (this.count % this.samples.length)] = nanos;
+            this.count++;
+            this.totalNanos += nanos;
+            this.maxNanos = Math.max(this.maxNanos, nanos);
+        }
+
+        public synchronized String toString() {
+            if (this.count == 0) {
+                return "requests = 0";
+            }
+            long[] sorted = Arrays.copyOf(this.samples, (int) Math.min(this.count, this.samples.length));
+            Arrays.sort(sorted);
+            return String.format("requests = %d, latency ms mean %.2f, p50 %.2f, p90 %.2f, p99 %.2f, max %.2f",
+                    this.count, this.totalNanos / 1e6 / this.count, percentile(sorted, 0.5) / 1e6,
+                    percentile(sorted, 0.9) / 1e6, percentile(sorted, 0.99) / 1e6, this.maxNanos / 1e6);
+        }
+
+        private static long percentile(long[] sorted, double fraction) {
+            return sorted[Math.min(sorted.length - 1, (int) (fraction * sorted.length))];
+        }
+    }
+
+    // Serves stdin and stdout ("-") or a port on the loopback address:
+    // <port or -> [same settings as Main: threads, local search ms, annealing ms, exact ms, exact max stops, shortest paths,
+    // solution dir or -, csv or binary, components]
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: PlannerServer <port or -> [threads] [local search ms] [annealing ms] [exact ms]"
+                    + " [exact max stops] [shortest paths] [solution dir|-] [csv|binary] [components]");
+            return;
+        }
+        PlannerServer server = new PlannerServer(Main.createBatchSolver(args, 1));
+        if (args[0].equals("-")) {
+            try {
+                server.serve(System.in, System.out);
+            } finally {
+                server.close();
+            }
+        } else {
+            server.listen(Integer.parseInt(args[0]));
+        }
+    }
+}
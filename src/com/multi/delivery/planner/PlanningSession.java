@@ -0,0 +1,446 @@
+package com.multi.delivery.planner;
+
+import java.util.Arrays;
+
+/**
+ * Plan of a day that follows dispatch as routes are added, cancelled and moved to other
+ * start times, without building a new TestInstance and Solver for every change.
+ *
+ * Visits only interact through the nodes they share: a visit starts as soon as one of the
+ * node's slots is free after its arrival, and the slots depend on nothing but the visits
+ * admitted to the node before it. The session keeps every node's visits in the order the
+ * event simulation admits them (by packed arrival event, see Events) together with the
+ * free times of the node's slots after each visit, which are the capacity latest
+ * departures so far. A change takes the visits of its route out of their nodes and puts
+ * the new ones in; these and the visits right after them at the same nodes are simulated
+ * again in event order. A visit whose outcome changes passes the change on to the next
+ * visit at its node, if the slots change, and to the next stop of its route, if it leaves
+ * at another time. Everything else keeps its outcome, so a change costs about as many
+ * visits as it affects rather than the whole rest of the day, and the results are the same
+ * as those of the Solver for the same routes.
+ *
+ * Route IDs are stable: added routes get the next ID and a cancelled route keeps its ID
+ * with no stops. Nodes are given by their indices, as everywhere else in the planner.
+ * The slot free times take capacity ints per visit.
+ */
+public class PlanningSession {
+
+    // Arrival of a stop that has not been simulated yet
+    private static final int NOT_PLANNED = -1;
+
+    // Test instance the session started from (nodes, capacities and edges)
+    private final TestInstance testInstance;
+
+    // Routes by route ID, valid in [0, routeCount); a cancelled route has no stops
+    private int[][] routes;
+    private int[][] durations;
+    private int[] routeStarts;
+    private int routeCount;
+
+    // Arrival, start of the visit and wait time at every stop (aligned with routes)
+    private int[][] arrivals;
+    private int[][] serviceStarts;
+    private int[][] waitTimes;
+    private int[] routeTravelTimes;
+    private int[] routeWaitTimes;
+    private long totalTravelTime;
+    private long totalWaitTime;
+
+    // Visits of every node as packed arrival events in the order they are admitted,
+    // valid in [0, nodeVisitCounts[node])
+    private final long[][] nodeVisits;
+    private final int[] nodeVisitCounts;
+    // Free times of every node's slots after each of its visits, capacity ascending values per
+    // visit; Integer.MIN_VALUE for a slot that has never been occupied
+    private final int[][] nodeSlots;
+
+    // Visits to simulate again, as packed arrival events
+    private final EventHeap changedVisits;
+    // Number of visits simulated since the session started
+    private long simulatedVisits;
+
+    // Starts from the routes of the test instance
+    public PlanningSession(TestInstance testInstance) {
+        this(testInstance, testInstance.routes, testInstance.deliveryDurations);
+    }
+
+    // Starts from a solution of the test instance, e.g. one improved by the Solver
+    public PlanningSession(TestInstance testInstance, int[][] routes, int[][] durations) {
+        this.testInstance = testInstance;
+        int routeCount = routes.length;
+        if (routeCount - 1 > Events.MAX_ROUTE_ID) {
+            throw new IllegalArgumentException("Too many routes: " + routeCount);
+        }
+        this.routes = new int[routeCount][];
+        this.durations = new int[routeCount][];
+        this.routeStarts = new int[routeCount];
+        this.arrivals = new int[routeCount][];
+        this.serviceStarts = new int[routeCount][];
+        this.waitTimes = new int[routeCount][];
+        this.routeTravelTimes = new int[routeCount];
+        this.routeWaitTimes = new int[routeCount];
+
+        int nodeCount = testInstance.nodeCount;
+        int[] visitCounts = new int[nodeCount];
+        for (int[] route : routes) {
+            for (int node : route) {
+                visitCounts[node]++;
+            }
+        }
+        this.nodeVisits = new long[nodeCount][];
+        this.nodeVisitCounts = new int[nodeCount];
+        this.nodeSlots = new int[nodeCount][];
+        for (int i = 0; i < nodeCount; i++) {
+            if (testInstance.nodeCapacities[i] <= 0) {
+                throw new IllegalArgumentException("Node " + i + " has no capacity");
+            }
+            int visitCapacity = Math.max(4, visitCounts[i]);
+            this.nodeVisits[i] = new long[visitCapacity];
+            this.nodeSlots[i] = new int[visitCapacity * testInstance.nodeCapacities[i]];
+        }
+        this.changedVisits = new EventHeap(routeCount);
+
+        for (int i = 0; i < routeCount; i++) {
+            if (routes[i].length - 1 > Events.MAX_STOP_IDX) {
+                throw new IllegalArgumentException("Too many stops in route " + i + ": " + routes[i].length);
+            }
+            this.routeCount++;
+            this.setRoute(i, routes[i], durations[i], testInstance.routeStarts[i]);
+        }
+        this.simulate();
+    }
+
+    // Adds a route starting at the given time (seconds since midnight) and returns its route ID
+    public int addRoute(int[] route, int[] durations, int startSeconds) {
+        this.checkRoute(route, durations, startSeconds);
+        int routeID = this.routeCount;
+        if (routeID > Events.MAX_ROUTE_ID) {
+            throw new IllegalArgumentException("Too many routes: " + (routeID + 1));
+        }
+        if (routeID == this.routes.length) {
+            int capacity = Math.max(16, 2 * routeID);
+            this.routes = Arrays.copyOf(this.routes, capacity);
+            this.durations = Arrays.copyOf(this.durations, capacity);
+            this.routeStarts = Arrays.copyOf(this.routeStarts, capacity);
+            this.arrivals = Arrays.copyOf(this.arrivals, capacity);
+            this.serviceStarts = Arrays.copyOf(this.serviceStarts, capacity);
+            this.waitTimes = Arrays.copyOf(this.waitTimes, capacity);
+            this.routeTravelTimes = Arrays.copyOf(this.routeTravelTimes, capacity);
+            this.routeWaitTimes = Arrays.copyOf(this.routeWaitTimes, capacity);
+        }
+        this.routeCount++;
+        this.setRoute(routeID, route, durations, startSeconds);
+        this.simulate();
+        return routeID;
+    }
+
+    // Removes the stops of a route from the plan
+    public void cancelRoute(int routeID) {
+        this.checkActive(routeID);
+        this.setRoute(routeID, new int[0], new int[0], this.routeStarts[routeID]);
+        this.simulate();
+    }
+
+    // Moves the start of a route to another time (seconds since midnight)
+    public void setRouteStart(int routeID, int startSeconds) {
+        this.checkActive(routeID);
+        this.checkRoute(this.routes[routeID], this.durations[routeID], startSeconds);
+        if (startSeconds != this.routeStarts[routeID]) {
+            this.setRoute(routeID, this.routes[routeID], this.durations[routeID], startSeconds);
+            this.simulate();
+        }
+    }
+
+    // Replaces the stops of a route, e.g. after a stop has been added or the route re-sequenced
+    public void changeRoute(int routeID, int[] route, int[] durations) {
+        this.checkActive(routeID);
+        this.checkRoute(route, durations, this.routeStarts[routeID]);
+        this.setRoute(routeID, route, durations, this.routeStarts[routeID]);
+        this.simulate();
+    }
+
+    private void checkActive(int routeID) {
+        if (routeID < 0 || routeID >= this.routeCount) {
+            throw new IllegalArgumentException("Unknown route: " + routeID);
+        }
+        if (!this.isActive(routeID)) {
+            throw new IllegalStateException("Route " + routeID + " has been cancelled");
+        }
+    }
+
+    private void checkRoute(int[] route, int[] durations, int startSeconds) {
+        if (route.length == 0 || route.length != durations.length) {
+            throw new IllegalArgumentException("A route needs at least one stop and a duration for each stop");
+        }
+        if (route.length - 1 > Events.MAX_STOP_IDX) {
+            throw new IllegalArgumentException("Too many stops: " + route.length);
+        }
+        if (startSeconds < 0 || startSeconds > Events.MAX_TIME) {
+            throw new IllegalArgumentException("Start time out of range: " + startSeconds);
+        }
+        for (int i = 0; i < route.length; i++) {
+            if (route[i] < 0 || route[i] >= this.testInstance.nodeCount) {
+                throw new IllegalArgumentException("Unknown node index: " + route[i]);
+            }
+            if (durations[i] < 0) {
+                throw new IllegalArgumentException("Negative stop duration: " + durations[i]);
+            }
+        }
+        // A missing edge would only show up halfway through the simulation
+        if (!LocalSearch.hasEdges(this.testInstance, route)) {
+            throw new IllegalArgumentException("Route travels between nodes without an edge");
+        }
+    }
+
+    // Takes the visits of a route out of the plan and puts the first one of its new stops in
+    private void setRoute(int routeID, int[] route, int[] durations, int startSeconds) {
+        int[] oldArrivals = this.arrivals[routeID];
+        for (int i = 0; oldArrivals != null && i < oldArrivals.length; i++) {
+            if (oldArrivals[i] != NOT_PLANNED) {
+                this.removeVisit(routeID, i);
+            }
+        }
+
+        int travelTime = 0;
+        for (int i = 0; i + 1 < route.length; i++) {
+            travelTime += this.testInstance.edgeCost(route[i], route[i + 1]);
+        }
+        this.totalTravelTime += travelTime - this.routeTravelTimes[routeID];
+        this.routeTravelTimes[routeID] = travelTime;
+        this.routes[routeID] = route.clone();
+        this.durations[routeID] = durations.clone();
+        this.routeStarts[routeID] = startSeconds;
+        this.arrivals[routeID] = new int[route.length];
+        Arrays.fill(this.arrivals[routeID], NOT_PLANNED);
+        this.serviceStarts[routeID] = new int[route.length];
+        this.waitTimes[routeID] = new int[route.length];
+        if (route.length > 0) {
+            this.addVisit(routeID, 0, startSeconds);
+        }
+    }
+
+    // Simulates the changed visits in event order until no more outcomes change
+    private void simulate() {
+        long lastVisit = -1;
+        while (!this.changedVisits.isEmpty()) {
+            long visit = this.changedVisits.poll();
+            // A visit may have been marked more than once
+            if (visit != lastVisit) {
+                this.simulateVisit(visit);
+                lastVisit = visit;
+            }
+        }
+    }
+
+    private void simulateVisit(long visit) {
+        int routeID = Events.routeID(visit);
+        int stopIdx = Events.stopIdx(visit);
+        int arrival = Events.time(visit);
+        int[] routeArrivals = this.arrivals[routeID];
+        // The visit has moved or left the plan since it was marked
+        if (stopIdx >= routeArrivals.length || routeArrivals[stopIdx] != arrival) {
+            return;
+        }
+        // A stop after one that has moved only arrives once that one has been simulated again
+        if (stopIdx > 0 && (routeArrivals[stopIdx - 1] == NOT_PLANNED
+                || Events.pack(routeArrivals[stopIdx - 1], Events.ARRIVAL, routeID, stopIdx - 1) > visit)) {
+            this.removeVisit(routeID, stopIdx);
+            return;
+        }
+        this.simulatedVisits++;
+        int[] route = this.routes[routeID];
+        int node = route[stopIdx];
+        int capacity = this.testInstance.nodeCapacities[node];
+        long[] visits = this.nodeVisits[node];
+        int visitCount = this.nodeVisitCounts[node];
+        int[] slots = this.nodeSlots[node];
+        int visitIdx = Arrays.binarySearch(visits, 0, visitCount, visit);
+
+        // The vehicle takes over the slot that frees up first, waiting for it if needed
+        int previous = (visitIdx - 1) * capacity;
+        int startTime = visitIdx == 0 ? arrival : Math.max(arrival, slots[previous]);
+        int departureTime = startTime + this.durations[routeID][stopIdx];
+        int base = visitIdx * capacity;
+        boolean slotsChanged = false;
+        int previousSlot = 1;
+        boolean departureTaken = false;
+        for (int k = 0; k < capacity; k++) {
+            int next = previousSlot < capacity ? (visitIdx == 0 ? Integer.MIN_VALUE : slots[previous + previousSlot])
+                    : Integer.MAX_VALUE;
+            int value;
+            if (!departureTaken && departureTime <= next) {
+                value = departureTime;
+                departureTaken = true;
+            } else {
+                value = next;
+                previousSlot++;
+            }
+            if (slots[base + k] != value) {
+                slots[base + k] = value;
+                slotsChanged = true;
+            }
+        }
+        if (slotsChanged && visitIdx + 1 < visitCount) {
+            this.changedVisits.add(visits[visitIdx + 1]);
+        }
+
+        int waitTime = startTime - arrival;
+        this.routeWaitTimes[routeID] += waitTime - this.waitTimes[routeID][stopIdx];
+        this.totalWaitTime += waitTime - this.waitTimes[routeID][stopIdx];
+        this.waitTimes[routeID][stopIdx] = waitTime;
+        this.serviceStarts[routeID][stopIdx] = startTime;
+
+        // The rest of the route moves if the vehicle leaves at another time
+        if (stopIdx + 1 < route.length) {
+            int nextArrival = departureTime + this.testInstance.edgeCost(node, route[stopIdx + 1]);
+            if (routeArrivals[stopIdx + 1] == NOT_PLANNED) {
+                this.addVisit(routeID, stopIdx + 1, nextArrival);
+            } else if (routeArrivals[stopIdx + 1] != nextArrival) {
+                this.moveVisit(routeID, stopIdx + 1, nextArrival);
+                // The later stops keep their places until the simulation gets to them
+                for (int i = stopIdx + 2; i < route.length; i++) {
+                    if (routeArrivals[i] != NOT_PLANNED) {
+                        this.changedVisits.add(Events.pack(routeArrivals[i], Events.ARRIVAL, routeID, i));
+                    }
+                }
+            }
+        }
+    }
+
+    // Puts a visit into its node's visits, to be simulated together with the visit after it
+    private void addVisit(int routeID, int stopIdx, int arrival) {
+        if (arrival > Events.MAX_TIME) {
+            throw new IllegalStateException("Simulation time out of range: " + arrival);
+        }
+        this.arrivals[routeID][stopIdx] = arrival;
+        long visit = Events.pack(arrival, Events.ARRIVAL, routeID, stopIdx);
+        int node = this.routes[routeID][stopIdx];
+        int capacity = this.testInstance.nodeCapacities[node];
+        int visitCount = this.nodeVisitCounts[node];
+        if (visitCount == this.nodeVisits[node].length) {
+            this.nodeVisits[node] = Arrays.copyOf(this.nodeVisits[node], 2 * visitCount);
+            this.nodeSlots[node] = Arrays.copyOf(this.nodeSlots[node], 2 * visitCount * capacity);
+        }
+        long[] visits = this.nodeVisits[node];
+        int[] slots = this.nodeSlots[node];
+        int visitIdx = -Arrays.binarySearch(visits, 0, visitCount, visit) - 1;
+        System.arraycopy(visits, visitIdx, visits, visitIdx + 1, visitCount - visitIdx);
+        System.arraycopy(slots, visitIdx * capacity, slots, (visitIdx + 1) * capacity, (visitCount - visitIdx) * capacity);
+        visits[visitIdx] = visit;
+        this.nodeVisitCounts[node] = visitCount + 1;
+
+        this.changedVisits.add(visit);
+        if (visitIdx + 1 <= visitCount) {
+            this.changedVisits.add(visits[visitIdx + 1]);
+        }
+    }
+
+    // Gives a visit another arrival time, moving it among its node's visits
+    private void moveVisit(int routeID, int stopIdx, int arrival) {
+        if (arrival > Events.MAX_TIME) {
+            throw new IllegalStateException("Simulation time out of range: " + arrival);
+        }
+        long oldVisit = Events.pack(this.arrivals[routeID][stopIdx], Events.ARRIVAL, routeID, stopIdx);
+        long visit = Events.pack(arrival, Events.ARRIVAL, routeID, stopIdx);
+        this.arrivals[routeID][stopIdx] = arrival;
+        int node = this.routes[routeID][stopIdx];
+        int capacity = this.testInstance.nodeCapacities[node];
+        int visitCount = this.nodeVisitCounts[node];
+        long[] visits = this.nodeVisits[node];
+        int[] slots = this.nodeSlots[node];
+        int oldIdx = Arrays.binarySearch(visits, 0, visitCount, oldVisit);
+        int visitIdx = -Arrays.binarySearch(visits, 0, visitCount, visit) - 1;
+        if (visitIdx > oldIdx) {
+            visitIdx--;
+            System.arraycopy(visits, oldIdx + 1, visits, oldIdx, visitIdx - oldIdx);
+            System.arraycopy(slots, (oldIdx + 1) * capacity, slots, oldIdx * capacity, (visitIdx - oldIdx) * capacity);
+        } else {
+            System.arraycopy(visits, visitIdx, visits, visitIdx + 1, oldIdx - visitIdx);
+            System.arraycopy(slots, visitIdx * capacity, slots, (visitIdx + 1) * capacity, (oldIdx - visitIdx) * capacity);
+        }
+        visits[visitIdx] = visit;
+
+        // The visits after its old and its new place follow another visit now
+        this.changedVisits.add(visit);
+        if (visitIdx + 1 < visitCount) {
+            this.changedVisits.add(visits[visitIdx + 1]);
+        }
+        int oldNextIdx = oldIdx < visitIdx ? oldIdx : oldIdx + 1;
+        if (oldNextIdx < visitCount) {
+            this.changedVisits.add(visits[oldNextIdx]);
+        }
+    }
+
+    // Takes a visit out of its node's visits, the visit after it is simulated again
+    private void removeVisit(int routeID, int stopIdx) {
+        long visit = Events.pack(this.arrivals[routeID][stopIdx], Events.ARRIVAL, routeID, stopIdx);
+        int node = this.routes[routeID][stopIdx];
+        int capacity = this.testInstance.nodeCapacities[node];
+        int visitCount = this.nodeVisitCounts[node] - 1;
+        long[] visits = this.nodeVisits[node];
+        int[] slots = this.nodeSlots[node];
+        int visitIdx = Arrays.binarySearch(visits, 0, visitCount + 1, visit);
+        System.arraycopy(visits, visitIdx + 1, visits, visitIdx, visitCount - visitIdx);
+        System.arraycopy(slots, (visitIdx + 1) * capacity, slots, visitIdx * capacity, (visitCount - visitIdx) * capacity);
+        this.nodeVisitCounts[node] = visitCount;
+        if (visitIdx < visitCount) {
+            this.changedVisits.add(visits[visitIdx]);
+        }
+
+        this.arrivals[routeID][stopIdx] = NOT_PLANNED;
+        this.routeWaitTimes[routeID] -= this.waitTimes[routeID][stopIdx];
+        this.totalWaitTime -= this.waitTimes[routeID][stopIdx];
+        this.waitTimes[routeID][stopIdx] = 0;
+    }
+
+    // Number of route IDs handed out, including cancelled routes
+    public int getRouteCount() {
+        return this.routeCount;
+    }
+
+    public boolean isActive(int routeID) {
+        return this.routes[routeID].length > 0;
+    }
+
+    public int[] getRoute(int routeID) {
+        return this.routes[routeID].clone();
+    }
+
+    public int[] getDurations(int routeID) {
+        return this.durations[routeID].clone();
+    }
+
+    public int getRouteStart(int routeID) {
+        return this.routeStarts[routeID];
+    }
+
+    public int getRouteTravelTime(int routeID) {
+        return this.routeTravelTimes[routeID];
+    }
+
+    public int getRouteWaitTime(int routeID) {
+        return this.routeWaitTimes[routeID];
+    }
+
+    // Start of the visit of every stop of a route
+    public int[] getRouteServiceStarts(int routeID) {
+        return this.serviceStarts[routeID].clone();
+    }
+
+    public long getTotalTravelTime() {
+        return this.totalTravelTime;
+    }
+
+    public long getTotalWaitTime() {
+        return this.totalWaitTime;
+    }
+
+    public long getTotalDuration() {
+        return this.totalTravelTime + this.totalWaitTime;
+    }
+
+    // Number of visits simulated since the session started, including the initial simulation
+    public long getSimulatedVisits() {
+        return this.simulatedVisits;
+    }
+}
@@ -88,126 +88,41 @@ public class RBTree<K extends Comparable<K>, V> {
             }
         }
 
-        // Helper method returns position of the max element in array
-        private int maxOption(int[] options) {
-            int maxIdx = 0;
-            int max = options[0];
-
-            for (int i = 0; i < options.length; i++) {
-                if (options[i] > max) {
-                    maxIdx = i;
-                    max = options[i];
-                }
-            }
-
-            return maxIdx;
-        }
-
         // Method updates this Node's augmented attributes
         // when balancing the tree
         public void updateAugmentedAttrs() {
-            if (this.left == sentinel && this.right == sentinel) {
-                // Both of the children are sentinels
-                this.sumLeft = this.leftVal;
-                this.maxLeft = this.leftVal;
-                this.maxLeftEndpoint = this.key;
-                this.sumRight = this.rightVal;
-                this.maxRight = this.rightVal;
-                this.maxRightEndpoint = this.key;
+            boolean hasLeft = this.left != sentinel;
+            boolean hasRight = this.right != sentinel;
+            this.sumLeft = (hasLeft ? this.left.sumLeft : 0) + this.leftVal + (hasRight ? this.right.sumLeft : 0);
+            this.sumRight = (hasLeft ? this.left.sumRight : 0) + this.rightVal + (hasRight ? this.right.sumRight : 0);
+
+            // Maximum prefix sum of the left values in key order: it ends in the left subtree,
+            // at this Node or in the right subtree (the first of equal options is kept)
+            int prefix = (hasLeft ? this.left.sumLeft : 0) + this.leftVal;
+            if (hasLeft && this.left.maxLeft >= prefix) {
+                this.maxLeft = this.left.maxLeft;
+                this.maxLeftEndpoint = this.left.maxLeftEndpoint;
             } else {
-                int[] maxLeftOptions;
-                float[] maxLeftPosOptions;
-                int[] maxRightOptions;
-                float[] maxRightPosOptions;
-
-                if (this.left != sentinel && this.right == sentinel) {
-                    // Only right child is sentinel
-                    this.sumLeft = this.left.sumLeft + this.leftVal;
-                    this.sumRight = this.left.sumRight + this.rightVal;
-
-                    maxLeftOptions = new int[]{
-                            this.left.maxLeft,
-                            this.left.sumLeft + this.leftVal
-                    };
-
-                    maxLeftPosOptions = new float[]{
-                            this.left.maxLeftEndpoint,
-                            this.key
-                    };
-
-                    maxRightOptions = new int[]{
-                            this.rightVal + this.left.maxRight,
-                            this.rightVal
-                    };
-
-                    maxRightPosOptions = new float[]{
-                            this.left.maxRightEndpoint,
-                            this.key
-                    };
-
-                } else if (this.left == sentinel && this.right != sentinel) {
-                    // Only left child is sentinel
-                    this.sumLeft = this.leftVal + this.right.sumLeft;
-                    this.sumRight = this.rightVal + this.right.sumRight;
-
-                    maxLeftOptions = new int[]{
-                            this.leftVal,
-                            this.leftVal + this.right.maxLeft
-                    };
-
-                    maxLeftPosOptions = new float[]{
-                            this.key,
-                            this.right.maxLeftEndpoint
-                    };
-
-                    maxRightOptions = new int[]{
-                            this.right.sumRight + this.rightVal,
-                            this.right.maxRight
-                    };
-
-                    maxRightPosOptions = new float[]{
-                            this.key,
-                            this.right.maxRightEndpoint
-                    };
-
-                } else {
-                    // No sentinel children
-                    this.sumLeft = this.left.sumLeft + this.leftVal + this.right.sumLeft;
-                    this.sumRight = this.left.sumRight + this.rightVal + this.right.sumRight;
-
-                    maxLeftOptions = new int[]{
-                            this.left.maxLeft,
-                            this.left.sumLeft + this.leftVal,
-                            this.left.sumLeft + this.leftVal + this.right.maxLeft
-                    };
-
-                    maxLeftPosOptions = new float[]{
-                            this.left.maxLeftEndpoint,
-                            this.key,
-                            this.right.maxLeftEndpoint
-                    };
-
-                    maxRightOptions = new int[]{
-                            this.right.sumRight + this.rightVal + this.left.maxRight,
-                            this.right.sumRight + this.rightVal,
-                            this.right.maxRight
-                    };
-
-                    maxRightPosOptions = new float[]{
-                            this.left.maxRightEndpoint,
-                            this.key,
-                            this.right.maxRightEndpoint
-                    };
-
-                }
-
-                int optionLeft = maxOption(maxLeftOptions);
-                int optionRight = maxOption(maxRightOptions);
+                this.maxLeft = prefix;
+                this.maxLeftEndpoint = this.key;
+            }
+            if (hasRight && prefix + this.right.maxLeft > this.maxLeft) {
+                this.maxLeft = prefix + this.right.maxLeft;
+                this.maxLeftEndpoint = this.right.maxLeftEndpoint;
+            }
 
-                this.maxLeft = maxLeftOptions[optionLeft];
-                this.maxLeftEndpoint = maxLeftPosOptions[optionLeft];
-                this.maxRight = maxRightOptions[optionRight];
-                this.maxRightEndpoint = maxRightPosOptions[optionRight];
+            // Maximum suffix sum of the right values, the same from the other end
+            int suffix = (hasRight ? this.right.sumRight : 0) + this.rightVal;
+            if (hasLeft && this.left.maxRight >= 0) {
+                this.maxRight = suffix + this.left.maxRight;
+                this.maxRightEndpoint = this.left.maxRightEndpoint;
+            } else {
+                this.maxRight = suffix;
+                this.maxRightEndpoint = this.key;
+            }
+            if (hasRight && this.right.maxRight > this.maxRight) {
+                this.maxRight = this.right.maxRight;
+                this.maxRightEndpoint = this.right.maxRightEndpoint;
             }
         }
 
@@ -269,12 +184,13 @@ public class RBTree<K extends Comparable<K>, V> {
             else if (y == y.parent.right)
                 y.parent.right = x;
             else
-                x.parent.left = x;
+                y.parent.left = x;
             x.right = y;
             y.parent = x;
 
-            x.updateAugmentedAttrs();
+            // y is now x's child, so it is updated first
             y.updateAugmentedAttrs();
+            x.updateAugmentedAttrs();
         }
 
         // Fix the possible violation of the red-black properties
@@ -401,6 +317,13 @@ public class RBTree<K extends Comparable<K>, V> {
                     y.blacken();
                 else
                     y.redden();
+
+                // y got new children, so the augmented attributes from x's parent up are stale
+                Node w = x.parent;
+                while (w != sentinel) {
+                    w.updateAugmentedAttrs();
+                    w = w.parent;
+                }
             }
 
             // If we removed a black node, then must fix up the tree because
@@ -527,12 +450,38 @@ public class RBTree<K extends Comparable<K>, V> {
     }
 
     public void insertInterval(int[] interval) {
-        System.out.println("\n ----" + interval[0] + " - " + interval[1] + "----");
-        insert(interval[0],true);
-        System.out.println(this.toString());
-        insert(interval[1],false);
-        System.out.println(" ---------- ");
-        System.out.println(this.toString());
+        insert(interval[0], true);
+        insert(interval[1], false);
+    }
+
+    // Removes a node with the given key and type, returns false if there is none.
+    // Nodes with the same key and type are interchangeable, so any of them may be removed.
+    public boolean remove(float key, boolean isArrival) {
+        Node x = root;
+        while (x != sentinel) {
+            int cmp = compare(key, isArrival, x);
+            if (cmp == 0) {
+                x.remove();
+                return true;
+            }
+            x = cmp < 0 ? x.left : x.right;
+        }
+        return false;
+    }
+
+    public boolean isEmpty() {
+        return root == sentinel;
+    }
+
+    // Compares a key and type with a node, in the same order as Node.compareTo
+    private static int compare(float key, boolean isArrival, RBTree<?, ?>.Node node) {
+        if (key != node.key) {
+            return key < node.key ? -1 : 1;
+        }
+        if (isArrival == node.isArrival) {
+            return 0;
+        }
+        return isArrival ? 1 : -1;
     }
 
     public float[] findMaxOverlappingInterval() {
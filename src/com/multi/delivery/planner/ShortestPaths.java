@@ -0,0 +1,426 @@
+package com.multi.delivery.planner;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Replaces the edge costs of a test instance by shortest travel times over its graph, so that
+ * a missing edge costs the shortest detour and costs that violate the triangle inequality are
+ * lowered to the cheaper path. A vehicle passes the nodes of a detour without stopping, so they
+ * are not visits and take no capacity.
+ *
+ * Edge costs in the matrix are closed by Floyd-Warshall over blocks of BLOCK x BLOCK nodes: for
+ * every block of intermediate nodes k, the diagonal block is closed first, then the blocks in the
+ * row and column of k, which only depend on the diagonal block, and then all of the other blocks,
+ * which only depend on the row and column. The blocks of the last two phases are independent and
+ * closed in parallel, one task per block row or column.
+ *
+ * Sparse edge costs are closed by a Dijkstra search from every node that a route visits, in
+ * parallel. Only the costs the solver can ask for are kept: the edges of the graph and the pairs
+ * of nodes visited by the same route, which any ordering of the route may place one after the
+ * other. The searches stop once all of these targets are reached.
+ *
+ * Results are cached by a hash of the graph (and for sparse graphs of the node pairs of the
+ * routes), so that solving instances over the same graph again skips the computation for as
+ * long as the garbage collector keeps the result. A cached result keeps the graph it was
+ * computed from and is only used for an instance with an equal graph, never on a hash match
+ * alone. The cache holds the CACHE_ENTRIES graphs used last, and drops the entries whose
+ * results the garbage collector has cleared.
+ */
+public class ShortestPaths {
+
+    // Side of the blocks of the matrix, 64 x 64 ints of a block take 16 KB
+    static final int BLOCK = 64;
+    private static final int INFINITY = Integer.MAX_VALUE / 2;
+    // Graphs whose closed edge costs are cached
+    static final int CACHE_ENTRIES = 8;
+    // Closed edge costs by graph hash, least recently used first
+    private static final Map<Long, CacheReference> CACHE = new LinkedHashMap<>(16, 0.75f, true);
+    // References cleared by the garbage collector, whose entries are removed on the next access to the cache
+    private static final ReferenceQueue<CacheEntry> CLEARED = new ReferenceQueue<>();
+
+    // Soft reference to a cache entry that knows its key
+    private static class CacheReference extends SoftReference<CacheEntry> {
+        final long key;
+
+        CacheReference(long key, CacheEntry entry) {
+            super(entry, CLEARED);
+            this.key = key;
+        }
+    }
+
+    // Closed edge costs together with the graph they were computed from
+    private static class CacheEntry {
+        private final int[] nodeIDs;
+        // Edge cost matrix, or the sparse edge costs and the sorted node sets of the routes
+        private final int[] edgeCosts;
+        private final SparseEdgeCosts sparseEdgeCosts;
+        private final int[][] routeNodes;
+        // int[] matrix or SparseEdgeCosts
+        private final Object closed;
+
+        CacheEntry(TestInstance testInstance, Object closed) {
+            this.nodeIDs = testInstance.nodeIDs;
+            this.edgeCosts = testInstance.edgeCosts;
+            this.sparseEdgeCosts = testInstance.sparseEdgeCosts;
+            this.routeNodes = testInstance.isSparse() ? routeNodes(testInstance) : null;
+            this.closed = closed;
+        }
+
+        // Returns true if the closed edge costs are those of the test instance, whose graph hash is the same
+        boolean matches(TestInstance testInstance) {
+            if (testInstance.isSparse() != (this.routeNodes != null) || !Arrays.equals(this.nodeIDs, testInstance.nodeIDs)) {
+                return false;
+            }
+            if (!testInstance.isSparse()) {
+                return Arrays.equals(this.edgeCosts, testInstance.edgeCosts);
+            }
+            SparseEdgeCosts edgeCosts = testInstance.sparseEdgeCosts;
+            return Arrays.equals(this.sparseEdgeCosts.offsets, edgeCosts.offsets)
+                    && Arrays.equals(this.sparseEdgeCosts.targets, edgeCosts.targets)
+                    && Arrays.equals(this.sparseEdgeCosts.costs, edgeCosts.costs)
+                    && Arrays.deepEquals(this.routeNodes, routeNodes(testInstance));
+        }
+
+        // Distinct nodes of every route in ascending order, routes sorted; they decide the kept node pairs
+        private static int[][] routeNodes(TestInstance testInstance) {
+            int[][] routeNodes = new int[testInstance.routes.length][];
+            for (int i = 0; i < routeNodes.length; i++) {
+                int[] nodes = testInstance.routes[i].clone();
+                Arrays.sort(nodes);
+                int count = 0;
+                for (int j = 0; j < nodes.length; j++) {
+                    if (count == 0 || nodes[j] != nodes[count - 1]) {
+                        nodes[count++] = nodes[j];
+                    }
+                }
+                routeNodes[i] = Arrays.copyOf(nodes, count);
+            }
+            Arrays.sort(routeNodes, (a, b) -> {
+                for (int i = 0; i < Math.min(a.length, b.length); i++) {
+                    if (a[i] != b[i]) {
+                        return Integer.compare(a[i], b[i]);
+                    }
+                }
+                return Integer.compare(a.length, b.length);
+            });
+            return routeNodes;
+        }
+    }
+
+    // Test instance with the edge costs of the given one replaced by shortest travel times
+    public static TestInstance close(TestInstance testInstance, int threadCount) {
+        long key = graphHash(testInstance);
+        CacheEntry entry;
+        synchronized (CACHE) {
+            removeCleared();
+            CacheReference cached = CACHE.get(key);
+            entry = cached == null ? null : cached.get();
+        }
+        Object closed = entry != null && entry.matches(testInstance) ? entry.closed : null;
+        if (closed == null) {
+            ForkJoinPool pool = new ForkJoinPool(threadCount);
+            try {
+                closed = testInstance.isSparse() ? closeSparse(testInstance, pool) : closeMatrix(testInstance, pool);
+            } finally {
+                pool.shutdownNow();
+            }
+            CacheEntry newEntry = new CacheEntry(testInstance, closed);
+            synchronized (CACHE) {
+                removeCleared();
+                CACHE.put(key, new CacheReference(key, newEntry));
+                if (CACHE.size() > CACHE_ENTRIES) {
+                    CACHE.remove(CACHE.keySet().iterator().next());
+                }
+            }
+        }
+        if (closed instanceof SparseEdgeCosts) {
+            return new TestInstance(testInstance.nodeCount, testInstance.routeCount, testInstance.nodeIDs,
+                    testInstance.nodeCapacities, (SparseEdgeCosts) closed, testInstance.routes,
+                    testInstance.deliveryDurations, testInstance.routeStarts, testInstance.tspRoutes, testInstance.complexity);
+        }
+        return new TestInstance(testInstance.nodeCount, testInstance.routeCount, testInstance.nodeIDs,
+                testInstance.nodeCapacities, (int[]) closed, testInstance.routes, testInstance.deliveryDurations,
+                testInstance.routeStarts, testInstance.tspRoutes, testInstance.complexity);
+    }
+
+    // Removes the entries whose results have been cleared, unless their key has been cached again since
+    private static void removeCleared() {
+        Reference<? extends CacheEntry> cleared;
+        while ((cleared = CLEARED.poll()) != null) {
+            CACHE.remove(((CacheReference) cleared).key, cleared);
+        }
+    }
+
+    // Hash of the node IDs and edge costs, and for sparse graphs of the nodes of every route
+    static long graphHash(TestInstance testInstance) {
+        long hash = SolutionHash.mix(testInstance.nodeCount);
+        for (int nodeID : testInstance.nodeIDs) {
+            hash = SolutionHash.mix(hash ^ nodeID);
+        }
+        if (!testInstance.isSparse()) {
+            return hashInts(hash, testInstance.edgeCosts);
+        }
+        SparseEdgeCosts edgeCosts = testInstance.sparseEdgeCosts;
+        hash = hashInts(hashInts(hashInts(hash, edgeCosts.offsets), edgeCosts.targets), edgeCosts.costs);
+        // The kept node pairs depend on the routes, but not on their order
+        long routeHash = 0;
+        for (int[] route : testInstance.routes) {
+            long nodeHash = 0;
+            for (int node : route) {
+                nodeHash += SolutionHash.mix(node + 1);
+            }
+            routeHash += SolutionHash.mix(nodeHash);
+        }
+        return SolutionHash.mix(hash ^ routeHash);
+    }
+
+    private static long hashInts(long hash, int[] values) {
+        // Four independent lanes, combined at the end
+        long h0 = hash, h1 = ~hash, h2 = hash * 31, h3 = hash * 37;
+        int i = 0;
+        for (; i + 3 < values.length; i += 4) {
+            h0 = (h0 + values[i]) * 0x9e3779b97f4a7c15L;
+            h1 = (h1 + values[i + 1]) * 0xc2b2ae3d27d4eb4fL;
+            h2 = (h2 + values[i + 2]) * 0x165667b19e3779f9L;
+            h3 = (h3 + values[i + 3]) * 0x85ebca77c2b2ae63L;
+        }
+        for (; i < values.length; i++) {
+            h0 = (h0 + values[i]) * 0x9e3779b97f4a7c15L;
+        }
+        return SolutionHash.mix(SolutionHash.mix(h0 ^ Long.rotateLeft(h1, 17)) ^ Long.rotateLeft(h2, 31) ^ Long.rotateLeft(h3, 47));
+    }
+
+    // Blocked Floyd-Warshall over a copy of the edge cost matrix (see class comment)
+    static int[] closeMatrix(TestInstance testInstance, ForkJoinPool pool) {
+        int nodeCount = testInstance.nodeCount;
+        int[] distances = new int[nodeCount * nodeCount];
+        for (int i = 0; i < distances.length; i++) {
+            int cost = testInstance.edgeCosts[i];
+            distances[i] = cost < 0 ? INFINITY : cost;
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            distances[i * nodeCount + i] = Math.min(distances[i * nodeCount + i], 0);
+        }
+        int blockCount = (nodeCount + BLOCK - 1) / BLOCK;
+        for (int kb = 0; kb < blockCount; kb++) {
+            final int k = kb;
+            relaxBlock(distances, nodeCount, k, k, k);
+            // Row and column of the diagonal block
+            pool.invoke(new BlockTask(blockCount, kb2 -> {
+                if (kb2 != k) {
+                    relaxBlock(distances, nodeCount, k, k, kb2);
+                    relaxBlock(distances, nodeCount, k, kb2, k);
+                }
+            }));
+            // All of the other blocks, by block row
+            pool.invoke(new BlockTask(blockCount, ib -> {
+                if (ib != k) {
+                    for (int jb = 0; jb < blockCount; jb++) {
+                        if (jb != k) {
+                            relaxBlock(distances, nodeCount, k, ib, jb);
+                        }
+                    }
+                }
+            }));
+        }
+        for (int i = 0; i < distances.length; i++) {
+            if (distances[i] >= INFINITY) {
+                distances[i] = TestInstance.NO_EDGE;
+            }
+        }
+        return distances;
+    }
+
+    // Relaxes the paths from the nodes of block ib to the nodes of block jb over the nodes of block kb
+    private static void relaxBlock(int[] distances, int nodeCount, int kb, int ib, int jb) {
+        int kEnd = Math.min(nodeCount, (kb + 1) * BLOCK);
+        int iEnd = Math.min(nodeCount, (ib + 1) * BLOCK);
+        int jStart = jb * BLOCK;
+        int jEnd = Math.min(nodeCount, jStart + BLOCK);
+        for (int k = kb * BLOCK; k < kEnd; k++) {
+            int kRow = k * nodeCount;
+            for (int i = ib * BLOCK; i < iEnd; i++) {
+                int iRow = i * nodeCount;
+                int throughK = distances[iRow + k];
+                if (throughK >= INFINITY) {
+                    continue;
+                }
+                // Branch-free, so that the loop can be vectorized
+                for (int j = jStart; j < jEnd; j++) {
+                    distances[iRow + j] = Math.min(distances[iRow + j], throughK + distances[kRow + j]);
+                }
+            }
+        }
+    }
+
+    // Work on one block row or column
+    private interface BlockWork {
+        void run(int block);
+    }
+
+    // Runs the work for a range of blocks, splitting the range in halves down to single blocks
+    private static class BlockTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final BlockWork work;
+
+        BlockTask(int blockCount, BlockWork work) {
+            this(0, blockCount, work);
+        }
+
+        private BlockTask(int from, int to, BlockWork work) {
+            this.from = from;
+            this.to = to;
+            this.work = work;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from <= 1) {
+                if (this.to > this.from) {
+                    this.work.run(this.from);
+                }
+                return;
+            }
+            int mid = (this.from + this.to) >>> 1;
+            invokeAll(new BlockTask(this.from, mid, this.work), new BlockTask(mid, this.to, this.work));
+        }
+    }
+
+    // Dijkstra searches from every visited node to its edge targets and route neighbours (see class comment)
+    static SparseEdgeCosts closeSparse(TestInstance testInstance, ForkJoinPool pool) {
+        int nodeCount = testInstance.nodeCount;
+        SparseEdgeCosts edgeCosts = testInstance.sparseEdgeCosts;
+
+        // Targets of every source: its edge targets and the other nodes of its routes
+        int[] routeCounts = new int[nodeCount + 1];
+        for (int[] route : testInstance.routes) {
+            for (int node : route) {
+                routeCounts[node + 1] += route.length;
+            }
+        }
+        int[] offsets = new int[nodeCount + 1];
+        for (int i = 0; i < nodeCount; i++) {
+            offsets[i + 1] = offsets[i] + routeCounts[i + 1] + edgeCosts.offsets[i + 1] - edgeCosts.offsets[i];
+        }
+        int[] targets = new int[offsets[nodeCount]];
+        int[] filled = Arrays.copyOf(offsets, nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            for (int e = edgeCosts.offsets[i]; e < edgeCosts.offsets[i + 1]; e++) {
+                targets[filled[i]++] = edgeCosts.targets[e];
+            }
+        }
+        for (int[] route : testInstance.routes) {
+            for (int node : route) {
+                for (int other : route) {
+                    targets[filled[node]++] = other;
+                }
+            }
+        }
+
+        // Sources with any targets, searched in parallel
+        List<Integer> sources = new ArrayList<>();
+        for (int i = 0; i < nodeCount; i++) {
+            if (offsets[i + 1] > offsets[i]) {
+                sources.add(i);
+            }
+        }
+        int[] costs = new int[targets.length];
+        ThreadLocal<Dijkstra> searches = ThreadLocal.withInitial(() -> new Dijkstra(edgeCosts));
+        pool.invoke(new BlockTask(sources.size(), s -> {
+            int source = sources.get(s);
+            searches.get().search(source, targets, costs, offsets[source], offsets[source + 1]);
+        }));
+
+        // Drop the unreachable targets and the source itself, SparseEdgeCosts drops duplicate targets
+        int edgeCount = 0;
+        int[] fromNodes = new int[targets.length];
+        for (int i = 0; i < nodeCount; i++) {
+            for (int e = offsets[i]; e < offsets[i + 1]; e++) {
+                if (costs[e] != TestInstance.NO_EDGE && targets[e] != i) {
+                    fromNodes[edgeCount] = i;
+                    targets[edgeCount] = targets[e];
+                    costs[edgeCount++] = costs[e];
+                }
+            }
+        }
+        return SparseEdgeCosts.of(nodeCount, fromNodes, targets, costs, edgeCount);
+    }
+
+    // Dijkstra search over a sparse graph with reusable per-thread arrays
+    private static class Dijkstra {
+        private final SparseEdgeCosts edgeCosts;
+        private final int[] distances;
+        // Search in which a node's distance was last set and in which it was settled or targeted
+        private final int[] reached;
+        private final int[] settled;
+        private final int[] targeted;
+        private final EventHeap heap = new EventHeap(64);
+        private int search;
+
+        Dijkstra(SparseEdgeCosts edgeCosts) {
+            int nodeCount = edgeCosts.getNodeCount();
+            this.edgeCosts = edgeCosts;
+            this.distances = new int[nodeCount];
+            this.reached = new int[nodeCount];
+            this.settled = new int[nodeCount];
+            this.targeted = new int[nodeCount];
+        }
+
+        // Writes the distances from the source to targets[from..to) into costs, NO_EDGE if unreachable
+        void search(int source, int[] targets, int[] costs, int from, int to) {
+            int search = ++this.search;
+            int remaining = 0;
+            for (int e = from; e < to; e++) {
+                if (this.targeted[targets[e]] != search) {
+                    this.targeted[targets[e]] = search;
+                    remaining++;
+                }
+            }
+            this.heap.clear();
+            this.distances[source] = 0;
+            this.reached[source] = search;
+            this.heap.add(source);
+            while (!this.heap.isEmpty() && remaining > 0) {
+                long entry = this.heap.poll();
+                int node = (int) entry;
+                int distance = (int) (entry >>> 32);
+                if (this.settled[node] == search) {
+                    continue;
+                }
+                this.settled[node] = search;
+                if (this.targeted[node] == search) {
+                    remaining--;
+                }
+                for (int e = this.edgeCosts.offsets[node]; e < this.edgeCosts.offsets[node + 1]; e++) {
+                    int cost = this.edgeCosts.costs[e];
+                    int next = this.edgeCosts.targets[e];
+                    if (cost < 0 || this.settled[next] == search) {
+                        continue;
+                    }
+                    int nextDistance = distance + cost;
+                    if (this.reached[next] != search || nextDistance < this.distances[next]) {
+                        this.distances[next] = nextDistance;
+                        this.reached[next] = search;
+                        this.heap.add(((long) nextDistance << 32) | next);
+                    }
+                }
+            }
+            for (int e = from; e < to; e++) {
+                int target = targets[e];
+                costs[e] = this.settled[target] == search ? this.distances[target] : TestInstance.NO_EDGE;
+            }
+        }
+    }
+}
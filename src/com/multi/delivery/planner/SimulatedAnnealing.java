@@ -0,0 +1,564 @@
+package com.multi.delivery.planner;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Anytime simulated annealing over the stop orderings of the routes.
+ *
+ * The search starts from the better of the given routes and the TSP orderings of the test
+ * instance. Its first step, within the time budget like the rest of the search, tries the
+ * ordering of the other seed route by route. From there it makes random swap, 2-opt and or-opt
+ * moves (see LocalSearch.applyMove), accepting a move that makes the solution longer by delta
+ * with probability exp(-delta / T). The temperature T falls geometrically over the time
+ * budget, from a start that accepts an average uphill move half of the time. Moves are priced
+ * by a CapacityScreen when they cause no capacity conflict and by an IncrementalEvaluator
+ * otherwise, with an EvaluationCache in front of it since annealing revisits solutions often.
+ * Most moves are aimed at the stops involved in waiting: a BottleneckIndex of the current
+ * solution, rebuilt every BOTTLENECK_INTERVAL_MILLIS, draws the route and one stop of the move
+ * in proportion to their part in the congestion, and the other moves are drawn uniformly so
+ * that no ordering becomes unreachable. The search also ends when the best solution gets
+ * within the gap tolerance of its LowerBound.
+ *
+ * The search runs on the thread calling run. Other threads can stop it early with stop and read
+ * the best solution found so far with getBestSolution, which never blocks; the published best
+ * solution is refreshed every PUBLISH_INTERVAL_MILLIS while the search improves it, and when the
+ * search ends.
+ */
+public class SimulatedAnnealing {
+
+    // Best solution found, an immutable snapshot
+    public static class Solution {
+        final int[][] routes;
+        final int[][] durations;
+        final long totalDuration;
+        // Time from the start of the search until the solution was found
+        final long elapsedNanos;
+
+        Solution(int[][] routes, int[][] durations, long totalDuration, long elapsedNanos) {
+            this.routes = routes;
+            this.durations = durations;
+            this.totalDuration = totalDuration;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int[][] getRoutes() {
+            return this.routes;
+        }
+
+        public int[][] getDurations() {
+            return this.durations;
+        }
+
+        public long getTotalDuration() {
+            return this.totalDuration;
+        }
+
+        public long getElapsedNanos() {
+            return this.elapsedNanos;
+        }
+    }
+
+    // How often an improved best solution is published
+    static final long PUBLISH_INTERVAL_MILLIS = 50;
+    // Moves made between reading the clock
+    private static final int CLOCK_INTERVAL = 64;
+    // Random moves sampled to set the start temperature, and the acceptance of an average uphill move there
+    private static final int TEMPERATURE_SAMPLES = 200;
+    private static final double START_ACCEPTANCE = 0.5;
+    // Temperature at the end of the budget, relative to the start
+    private static final double END_TEMPERATURE_RATIO = 1e-3;
+    // Memory of the evaluation cache
+    static final long CACHE_MEMORY = 16L << 20;
+    // Share of the moves aimed at congested stops unless set otherwise, and how often their index is rebuilt
+    static final double DEFAULT_BOTTLENECK_BIAS = 0.9;
+    static final long BOTTLENECK_INTERVAL_MILLIS = 50;
+
+    // Test instance the solution belongs to
+    private final TestInstance testInstance;
+    // Time budget in nanoseconds
+    private final long timeBudget;
+    private final SplittableRandom random;
+
+    // Current solution and its hash (see SolutionHash)
+    private IncrementalEvaluator evaluator;
+    private CapacityScreen capacityScreen;
+    private final EvaluationCache cache;
+    private long currentHash;
+    // Seed the search did not start from, tried route by route at the start of run, or null
+    private int[][] otherRoutes;
+    private int[][] otherDurations;
+    // Routes that can be changed (see isMovable)
+    private int[] movableRoutes;
+    // Congestion of the current solution, and the share of the moves drawn from it
+    private final BottleneckIndex bottlenecks;
+    private double bottleneckBias = DEFAULT_BOTTLENECK_BIAS;
+    // Scratch arrays of the move being evaluated, and whether it was drawn from the bottleneck index
+    private int[] newRoute = new int[0];
+    private int[] newDurations = new int[0];
+    private boolean moveGuided;
+
+    // Best solution found by the search thread, and the routes changed since it was found
+    private int[][] bestRoutes;
+    private int[][] bestDurations;
+    private long bestTotal;
+    private long bestElapsed;
+    private int[] changedRoutes;
+    private boolean[] changed;
+    private int changedCount;
+    // Best solution as last published to other threads
+    private volatile Solution publishedSolution;
+    private volatile boolean stopped;
+    // Bound on the total duration of any reordering, and the relative gap to it at which the search stops
+    private final LowerBound lowerBound;
+    private double gapTolerance;
+
+    // Improvements of the best solution: time since the start and total duration
+    private long[] traceTimes = new long[64];
+    private long[] traceTotals = new long[64];
+    private int traceSize;
+
+    // Statistics
+    private long givenDuration;
+    private long tspDuration;
+    private long initialDuration;
+    private long movesEvaluated;
+    private long movesScreened;
+    private long movesAccepted;
+    private long movesGuided;
+    private long elapsedTime;
+
+    public SimulatedAnnealing(TestInstance testInstance, int[][] routes, int[][] durations, long timeBudgetMillis, long seed) {
+        this.testInstance = testInstance;
+        this.timeBudget = timeBudgetMillis * 1_000_000L;
+        this.random = new SplittableRandom(seed);
+        this.cache = new EvaluationCache(CACHE_MEMORY);
+        this.lowerBound = new LowerBound(testInstance, routes, durations);
+        this.bottlenecks = new BottleneckIndex(testInstance);
+        this.seed(routes, durations);
+    }
+
+    // Aligns the durations of a route with another ordering of its stops: the k-th visit of a node in
+    // the ordering gets the duration of the k-th visit of the node in the route. Returns null if the
+    // ordering does not visit the same nodes as the route.
+    static int[] alignDurations(int[] route, int[] durations, int[] ordering) {
+        if (ordering == null || ordering.length != route.length) {
+            return null;
+        }
+        int[] aligned = new int[route.length];
+        boolean[] used = new boolean[route.length];
+        for (int j = 0; j < ordering.length; j++) {
+            int k = 0;
+            while (k < route.length && (used[k] || route[k] != ordering[j])) {
+                k++;
+            }
+            if (k == route.length) {
+                return null;
+            }
+            used[k] = true;
+            aligned[j] = durations[k];
+        }
+        return aligned;
+    }
+
+    // Starts from the better of the given and the TSP routes, keeping the other one for run
+    private void seed(int[][] routes, int[][] durations) {
+        int routeCount = routes.length;
+        int[][] tspRoutes = new int[routeCount][];
+        int[][] tspDurations = new int[routeCount][];
+        int[][] instanceTspRoutes = this.testInstance.tspRoutes;
+        boolean tspDiffers = false;
+        for (int i = 0; i < routeCount; i++) {
+            int[] ordering = instanceTspRoutes != null && i < instanceTspRoutes.length ? instanceTspRoutes[i] : null;
+            tspDurations[i] = alignDurations(routes[i], durations[i], ordering);
+            // An ordering travelling a missing edge cannot be simulated
+            if (tspDurations[i] == null || !LocalSearch.hasEdges(this.testInstance, ordering)) {
+                tspRoutes[i] = routes[i];
+                tspDurations[i] = durations[i];
+            } else {
+                tspRoutes[i] = ordering;
+                tspDiffers |= !Arrays.equals(ordering, routes[i]) || !Arrays.equals(tspDurations[i], durations[i]);
+            }
+        }
+
+        IncrementalEvaluator given = new IncrementalEvaluator(this.testInstance, routes, durations);
+        IncrementalEvaluator tsp = tspDiffers ? new IncrementalEvaluator(this.testInstance, tspRoutes, tspDurations) : given;
+        this.givenDuration = given.getTotalDuration();
+        this.tspDuration = tsp.getTotalDuration();
+        boolean tspFirst = this.tspDuration < this.givenDuration;
+        this.evaluator = tspFirst ? tsp : given;
+        if (tspDiffers) {
+            this.otherRoutes = tspFirst ? routes : tspRoutes;
+            this.otherDurations = tspFirst ? durations : tspDurations;
+        }
+
+        int[][] currentRoutes = this.evaluator.getRoutes();
+        int[][] currentDurations = this.evaluator.getDurations();
+        this.capacityScreen = new CapacityScreen(this.testInstance, currentRoutes, currentDurations);
+        this.currentHash = SolutionHash.solutionHash(currentRoutes, currentDurations);
+        int movableCount = 0;
+        this.movableRoutes = new int[routeCount];
+        for (int i = 0; i < routeCount; i++) {
+            if (isMovable(currentRoutes[i])) {
+                this.movableRoutes[movableCount++] = i;
+            }
+        }
+        this.movableRoutes = Arrays.copyOf(this.movableRoutes, movableCount);
+
+        this.bestRoutes = deepCopy(currentRoutes);
+        this.bestDurations = deepCopy(currentDurations);
+        this.bestTotal = this.initialDuration = this.evaluator.getTotalDuration();
+        this.changedRoutes = new int[routeCount];
+        this.changed = new boolean[routeCount];
+        this.publishedSolution = new Solution(deepCopy(this.bestRoutes), deepCopy(this.bestDurations), this.bestTotal, 0);
+    }
+
+    // Sets the relative gap to the lower bound at which the search stops, 0 stops only at the bound
+    public void setGapTolerance(double gapTolerance) {
+        if (gapTolerance < 0) {
+            throw new IllegalArgumentException("Gap tolerance must not be negative: " + gapTolerance);
+        }
+        this.gapTolerance = gapTolerance;
+    }
+
+    // Sets the share of the moves aimed at congested stops, 0 draws all the moves uniformly
+    public void setBottleneckBias(double bottleneckBias) {
+        if (bottleneckBias < 0 || bottleneckBias > 1) {
+            throw new IllegalArgumentException("Bottleneck bias must be between 0 and 1: " + bottleneckBias);
+        }
+        this.bottleneckBias = bottleneckBias;
+    }
+
+    private boolean withinGap(long total) {
+        return total - this.lowerBound.getTotal() <= this.gapTolerance * total;
+    }
+
+    // Runs the search until the time budget is used up or the search is stopped
+    public void run() {
+        long startTime = System.nanoTime();
+        long deadline = startTime + this.timeBudget;
+        long nextPublish = startTime + PUBLISH_INTERVAL_MILLIS * 1_000_000L;
+        long nextRebuild = startTime;
+        long acceptedAtRebuild = -1;
+        this.record(0);
+
+        this.takeOtherSeed(startTime, deadline);
+        double startTemperature = this.movableRoutes.length == 0 ? 0 : this.startTemperature(deadline);
+        double temperature = startTemperature;
+        long now = System.nanoTime();
+        long currentTotal = this.evaluator.getTotalDuration();
+        long moves = 0;
+        while (this.movableRoutes.length > 0 && !this.stopped && !this.withinGap(this.bestTotal)) {
+            if (moves++ % CLOCK_INTERVAL == 0) {
+                now = System.nanoTime();
+                if (now >= deadline) {
+                    break;
+                }
+                temperature = startTemperature * Math.pow(END_TEMPERATURE_RATIO, (double) (now - startTime) / this.timeBudget);
+                if (now >= nextPublish && this.publishedSolution.totalDuration > this.bestTotal) {
+                    this.publish();
+                    nextPublish = now + PUBLISH_INTERVAL_MILLIS * 1_000_000L;
+                }
+                if (this.bottleneckBias > 0 && now >= nextRebuild && this.movesAccepted != acceptedAtRebuild) {
+                    this.bottlenecks.rebuild(this.evaluator, this.lowerBound);
+                    acceptedAtRebuild = this.movesAccepted;
+                    nextRebuild = System.nanoTime() + BOTTLENECK_INTERVAL_MILLIS * 1_000_000L;
+                }
+            }
+
+            long drawn = this.drawMove();
+            int routeID = (int) (drawn >>> 32);
+            int move = (int) drawn;
+            long total = this.evaluate(routeID, move);
+            if (this.moveGuided && total != Long.MAX_VALUE) {
+                this.movesGuided++;
+            }
+            long delta = total - currentTotal;
+            if (delta > 0 && (temperature <= 0 || this.random.nextDouble() >= Math.exp(-delta / temperature))) {
+                continue;
+            }
+
+            this.currentHash ^= LocalSearch.moveHashDelta(routeID, move, this.evaluator.getRoutes()[routeID],
+                    this.evaluator.getDurations()[routeID], this.newRoute, this.newDurations);
+            this.evaluator.applyRouteChange(routeID, this.newRoute, this.newDurations);
+            this.capacityScreen.applyRouteChange(routeID, this.newRoute, this.newDurations);
+            currentTotal = total;
+            this.movesAccepted++;
+            if (!this.changed[routeID]) {
+                this.changed[routeID] = true;
+                this.changedRoutes[this.changedCount++] = routeID;
+            }
+            if (total < this.bestTotal) {
+                this.bestTotal = total;
+                this.saveBest();
+                this.record(System.nanoTime() - startTime);
+            }
+        }
+        this.elapsedTime = System.nanoTime() - startTime;
+        this.publish();
+    }
+
+    // Replaces routes by those of the other seed where that shortens the solution, until the deadline.
+    // Every route costs a full evaluation, so on large instances only part of them may be tried.
+    private void takeOtherSeed(long startTime, long deadline) {
+        if (this.otherRoutes == null) {
+            return;
+        }
+        long total = this.evaluator.getTotalDuration();
+        for (int i = 0; i < this.otherRoutes.length && !this.stopped && System.nanoTime() < deadline; i++) {
+            int[] route = this.evaluator.getRoutes()[i];
+            int[] durations = this.evaluator.getDurations()[i];
+            int[] otherRoute = this.otherRoutes[i];
+            int[] otherDurations = this.otherDurations[i];
+            if (Arrays.equals(route, otherRoute) && Arrays.equals(durations, otherDurations)) {
+                continue;
+            }
+            long otherTotal = this.evaluator.evaluateRouteChange(i, otherRoute, otherDurations);
+            if (otherTotal < total) {
+                this.currentHash ^= SolutionHash.routeHash(i, route, durations)
+                        ^ SolutionHash.routeHash(i, otherRoute, otherDurations);
+                this.evaluator.applyRouteChange(i, otherRoute, otherDurations);
+                this.capacityScreen.applyRouteChange(i, otherRoute, otherDurations);
+                this.changed[i] = true;
+                this.changedRoutes[this.changedCount++] = i;
+                total = otherTotal;
+            }
+        }
+        this.otherRoutes = null;
+        this.otherDurations = null;
+        if (total < this.bestTotal) {
+            this.bestTotal = total;
+            this.saveBest();
+            this.record(System.nanoTime() - startTime);
+        }
+    }
+
+    // Stops the search; it returns from run after finishing the current move
+    public void stop() {
+        this.stopped = true;
+    }
+
+    // Best solution found so far, safe to call from any thread while the search runs
+    public Solution getBestSolution() {
+        return this.publishedSolution;
+    }
+
+    // Draws a route and a move of it, packed as route ID and move (see LocalSearch.encodeMove).
+    // Guided moves involve a stop drawn from the bottleneck index, the others are uniform.
+    private long drawMove() {
+        this.moveGuided = false;
+        if (this.bottleneckBias > 0 && this.bottlenecks.getTotalWeight() > 0 && this.random.nextDouble() < this.bottleneckBias) {
+            int routeID = this.bottlenecks.sampleRoute(this.random);
+            if (isMovable(this.evaluator.getRoutes()[routeID])) {
+                this.moveGuided = true;
+                int move = this.randomMove(routeID, this.bottlenecks.sampleStop(routeID, this.random));
+                return ((long) routeID << 32) | (move & 0xffffffffL);
+            }
+        }
+        int routeID = this.movableRoutes[this.random.nextInt(this.movableRoutes.length)];
+        return ((long) routeID << 32) | (this.randomMove(routeID) & 0xffffffffL);
+    }
+
+    // Whether moves can change the route: it has at least two stops, and its stop positions fit into a move
+    // (longer routes are left as they are)
+    private static boolean isMovable(int[] route) {
+        return route.length >= 2 && route.length <= LocalSearch.MAX_ROUTE_LENGTH;
+    }
+
+    // Draws a random move of the route that moves the stop at the given position: a swap with another
+    // stop, a reversal from or to it, or a relocation of the segment starting at it
+    private int randomMove(int routeID, int position) {
+        int length = this.evaluator.getRoutes()[routeID].length;
+        int type = this.random.nextInt(3);
+        if (type == LocalSearch.OR_OPT && length > 2) {
+            int third = 1 + this.random.nextInt(Math.min(LocalSearch.MAX_OR_OPT_LENGTH, length - 2));
+            int first = Math.min(position, length - third);
+            int second = this.random.nextInt(length - third);
+            if (second >= first) {
+                second++;
+            }
+            return LocalSearch.encodeMove(type, first, second, third);
+        }
+        int other = this.random.nextInt(length - 1);
+        if (other >= position) {
+            other++;
+        }
+        return LocalSearch.encodeMove(type == LocalSearch.TWO_OPT ? type : LocalSearch.SWAP,
+                Math.min(position, other), Math.max(position, other), 0);
+    }
+
+    // Draws a random move of the route (see LocalSearch.encodeMove)
+    private int randomMove(int routeID) {
+        int length = this.evaluator.getRoutes()[routeID].length;
+        int type = this.random.nextInt(3);
+        if (type == LocalSearch.OR_OPT && length > 2) {
+            int third = 1 + this.random.nextInt(Math.min(LocalSearch.MAX_OR_OPT_LENGTH, length - 2));
+            int first = this.random.nextInt(length - third + 1);
+            int second = this.random.nextInt(length - third);
+            // Any position but first
+            if (second >= first) {
+                second++;
+            }
+            return LocalSearch.encodeMove(type, first, second, third);
+        }
+        int first = this.random.nextInt(length - 1);
+        int second = first + 1 + this.random.nextInt(length - first - 1);
+        return LocalSearch.encodeMove(type == LocalSearch.TWO_OPT ? type : LocalSearch.SWAP, first, second, 0);
+    }
+
+    // Total duration of the solution after the move, which is left in the scratch arrays, or
+    // Long.MAX_VALUE if the move uses a missing edge
+    private long evaluate(int routeID, int move) {
+        int[] route = this.evaluator.getRoutes()[routeID];
+        int[] durations = this.evaluator.getDurations()[routeID];
+        if (this.newRoute.length != route.length) {
+            this.newRoute = new int[route.length];
+            this.newDurations = new int[route.length];
+        }
+        LocalSearch.applyMove(move, route, durations, this.newRoute, this.newDurations);
+        if (!LocalSearch.moveHasEdges(this.testInstance, move, this.newRoute)) {
+            return Long.MAX_VALUE;
+        }
+        this.movesEvaluated++;
+        long total = this.capacityScreen.screenRouteChange(routeID, this.newRoute, this.newDurations);
+        if (total >= 0) {
+            this.movesScreened++;
+            return total;
+        }
+        long hash = this.currentHash ^ LocalSearch.moveHashDelta(routeID, move, route, durations, this.newRoute, this.newDurations);
+        int entry = this.cache.find(hash);
+        if (entry >= 0) {
+            return this.cache.getTotalDuration(entry);
+        }
+        total = this.evaluator.evaluateRouteChange(routeID, this.newRoute, this.newDurations);
+        long travelTime = this.evaluator.getTotalTravelTime() - this.evaluator.getRouteTravelTimes()[routeID];
+        for (int j = 0; j + 1 < this.newRoute.length; j++) {
+            travelTime += this.testInstance.edgeCost(this.newRoute[j], this.newRoute[j + 1]);
+        }
+        this.cache.put(hash, travelTime, total - travelTime);
+        return total;
+    }
+
+    // Start temperature at which a random uphill move of average size is accepted with START_ACCEPTANCE,
+    // from the moves sampled before the deadline
+    private double startTemperature(long deadline) {
+        long currentTotal = this.evaluator.getTotalDuration();
+        double uphill = 0;
+        int uphillCount = 0;
+        for (int i = 0; i < TEMPERATURE_SAMPLES && !this.stopped && System.nanoTime() < deadline; i++) {
+            int routeID = this.movableRoutes[this.random.nextInt(this.movableRoutes.length)];
+            long total = this.evaluate(routeID, this.randomMove(routeID));
+            long delta = total - currentTotal;
+            if (delta > 0 && total != Long.MAX_VALUE) {
+                uphill += delta;
+                uphillCount++;
+            }
+        }
+        return uphillCount == 0 ? 1 : -(uphill / uphillCount) / Math.log(START_ACCEPTANCE);
+    }
+
+    // Copies the routes changed since the last best solution into it
+    private void saveBest() {
+        int[][] routes = this.evaluator.getRoutes();
+        int[][] durations = this.evaluator.getDurations();
+        for (int k = 0; k < this.changedCount; k++) {
+            int routeID = this.changedRoutes[k];
+            System.arraycopy(routes[routeID], 0, this.bestRoutes[routeID], 0, routes[routeID].length);
+            System.arraycopy(durations[routeID], 0, this.bestDurations[routeID], 0, durations[routeID].length);
+            this.changed[routeID] = false;
+        }
+        this.changedCount = 0;
+    }
+
+    private void record(long elapsed) {
+        if (this.traceSize == this.traceTimes.length) {
+            this.traceTimes = Arrays.copyOf(this.traceTimes, this.traceSize << 1);
+            this.traceTotals = Arrays.copyOf(this.traceTotals, this.traceSize << 1);
+        }
+        this.traceTimes[this.traceSize] = elapsed;
+        this.traceTotals[this.traceSize++] = this.bestTotal;
+        this.bestElapsed = elapsed;
+    }
+
+    private void publish() {
+        this.publishedSolution = new Solution(deepCopy(this.bestRoutes), deepCopy(this.bestDurations), this.bestTotal,
+                this.bestElapsed);
+    }
+
+    private static int[][] deepCopy(int[][] arrays) {
+        int[][] copy = new int[arrays.length][];
+        for (int i = 0; i < arrays.length; i++) {
+            copy[i] = arrays[i].clone();
+        }
+        return copy;
+    }
+
+    // Time in nanoseconds until the best solution was first at most targetDuration, or -1 if it never was.
+    // Read after run has returned.
+    public long getTimeToTarget(long targetDuration) {
+        for (int i = 0; i < this.traceSize; i++) {
+            if (this.traceTotals[i] <= targetDuration) {
+                return this.traceTimes[i];
+            }
+        }
+        return -1;
+    }
+
+    // Total duration of the given routes and of the TSP orderings (given routes where they cannot be aligned)
+    public long getGivenDuration() {
+        return this.givenDuration;
+    }
+
+    public long getTspDuration() {
+        return this.tspDuration;
+    }
+
+    public long getInitialDuration() {
+        return this.initialDuration;
+    }
+
+    public long getMovesEvaluated() {
+        return this.movesEvaluated;
+    }
+
+    public long getMovesScreened() {
+        return this.movesScreened;
+    }
+
+    public long getMovesAccepted() {
+        return this.movesAccepted;
+    }
+
+    // Moves drawn from the bottleneck index, counted among the moves evaluated
+    public long getMovesGuided() {
+        return this.movesGuided;
+    }
+
+    public BottleneckIndex getBottlenecks() {
+        return this.bottlenecks;
+    }
+
+    public LowerBound getLowerBound() {
+        return this.lowerBound;
+    }
+
+    public EvaluationCache getCache() {
+        return this.cache;
+    }
+
+    public double getMovesPerSecond() {
+        return this.elapsedTime == 0 ? 0 : this.movesEvaluated * 1e9 / this.elapsedTime;
+    }
+
+    @Override
+    public String toString() {
+        Solution best = this.publishedSolution;
+        // Time to get within 1% of the best solution found
+        long target = best.totalDuration + (best.totalDuration - 1) / 100;
+        return String.format("annealing: seeds given = %d, tsp = %d, moves evaluated = %d (%.0f/s, %d screened, %d cached, %d guided), "
+                        + "moves accepted = %d, total duration %d -> %d (gap %.2f%%), time to 1%% of best = %d ms",
+                this.givenDuration, this.tspDuration, this.movesEvaluated, this.getMovesPerSecond(), this.movesScreened,
+                this.cache.getHits(), this.movesGuided, this.movesAccepted, this.initialDuration, best.totalDuration,
+                100 * this.lowerBound.gap(best.totalDuration), this.getTimeToTarget(target) / 1_000_000);
+    }
+}
@@ -0,0 +1,57 @@
+package com.multi.delivery.planner;
+
+/**
+ * Zobrist hashing of solutions.
+ *
+ * Every stop of a solution, a node visited with some duration at some position of some
+ * route, has a pseudo-random 64-bit key, and the hash of a solution is the XOR of the keys
+ * of all its stops. Changing stops therefore updates the hash by XOR-ing out the old keys and
+ * XOR-ing in the new ones, so a swap of two stops costs four keys whatever the size of the
+ * solution. Keys are computed from the stop by mixing instead of being looked up in a table,
+ * which would need an entry per route, position, node and duration.
+ */
+public final class SolutionHash {
+
+    private SolutionHash() {
+    }
+
+    // Key of a stop
+    public static long stopKey(int routeID, int position, int node, int duration) {
+        long key = mix(((long) routeID << 32) | (position & 0xffffffffL));
+        return mix(key ^ (((long) node << 32) | (duration & 0xffffffffL)));
+    }
+
+    public static long routeHash(int routeID, int[] route, int[] durations) {
+        return rangeHash(routeID, route, durations, 0, route.length);
+    }
+
+    public static long solutionHash(int[][] routes, int[][] durations) {
+        long hash = 0;
+        for (int i = 0; i < routes.length; i++) {
+            hash ^= routeHash(i, routes[i], durations[i]);
+        }
+        return hash;
+    }
+
+    // Hash of the stops of a route at positions [from, to)
+    public static long rangeHash(int routeID, int[] route, int[] durations, int from, int to) {
+        long hash = 0;
+        for (int j = from; j < to; j++) {
+            hash ^= stopKey(routeID, j, route[j], durations[j]);
+        }
+        return hash;
+    }
+
+    // Change of the hash when the stops at positions i and j of a route are swapped
+    public static long swapDelta(int routeID, int[] route, int[] durations, int i, int j) {
+        return stopKey(routeID, i, route[i], durations[i]) ^ stopKey(routeID, j, route[j], durations[j])
+                ^ stopKey(routeID, i, route[j], durations[j]) ^ stopKey(routeID, j, route[i], durations[i]);
+    }
+
+    // SplitMix64 finalizer
+    static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -0,0 +1,255 @@
+package com.multi.delivery.planner;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes the timeline of a solution: for every route, its stops in order with the arrival,
+ * the start of the visit, the wait and the departure.
+ *
+ * Routes are written one at a time through a fixed buffer into the channel, so the report
+ * is never held in memory. A Solver's routes are written from its per-stop wait times, the
+ * other times following from the route start, stop durations and edge costs; routes of a
+ * StreamingSimulation are written as they finish, with the writer as its listener.
+ *
+ * CSV: a header line, then one line per stop "route,stop,node,arrival,service start,wait,
+ * departure" with the node ID, times as HH:mm:ss (hours go past 23 after midnight) and the
+ * wait in seconds. Binary: little-endian ints, a header (magic, version), then for every
+ * route its ID and stop count followed by node ID, arrival, service start and departure of
+ * each stop, with times in seconds since midnight.
+ */
+public class SolutionWriter implements StreamingSimulation.RouteListener, Closeable {
+
+    // Formats
+    public static final int CSV = 0;
+    public static final int BINARY = 1;
+
+    // "MDPS" in ASCII
+    private static final int MAGIC = 0x4D445053;
+    private static final int VERSION = 1;
+    private static final String CSV_EXTENSION = ".solution.csv";
+    private static final String BINARY_EXTENSION = ".solution.bin";
+    private static final byte[] CSV_HEADER = "route,stop,node,arrival,service_start,wait,departure\n"
+            .getBytes(StandardCharsets.US_ASCII);
+    // Size of the buffer used for writing
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+    // Longest CSV line: three HH:mm:ss times of up to 14 characters, four ints and the separators
+    private static final int MAX_LINE_LENGTH = 3 * 14 + 4 * 11 + 7;
+
+    private final WritableByteChannel channel;
+    private final int format;
+    // Original node IDs (node index -> node ID)
+    private final int[] nodeIDs;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    // Times of the route being written from a Solver, grown to the longest route
+    private int[] arrivals = new int[0];
+    private int[] serviceStarts = new int[0];
+
+    // Writes the header; nodes are written by their IDs in the test instance
+    public SolutionWriter(WritableByteChannel channel, int format, TestInstance testInstance) throws IOException {
+        if (format != CSV && format != BINARY) {
+            throw new IllegalArgumentException("Unknown solution format: " + format);
+        }
+        this.channel = channel;
+        this.format = format;
+        this.nodeIDs = testInstance.nodeIDs;
+        if (format == CSV) {
+            this.buffer.put(CSV_HEADER);
+        } else {
+            this.buffer.putInt(MAGIC);
+            this.buffer.putInt(VERSION);
+        }
+    }
+
+    // Writes the current solution of a solver to a file, through a temporary file of its own so readers
+    // never see a partial file and concurrent writers do not mix
+    public static void write(Solver solver, Path filePath, int format) throws IOException {
+        Path absolutePath = filePath.toAbsolutePath();
+        // Not Files.createTempFile, whose owner-only permissions would carry over to the solution file
+        FileChannel channel = null;
+        Path tempPath = null;
+        while (channel == null) {
+            tempPath = absolutePath.resolveSibling(absolutePath.getFileName() + "."
+                    + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+            try {
+                channel = FileChannel.open(tempPath, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+            } catch (FileAlreadyExistsException e) {
+                // Taken by another writer, draw another name
+            }
+        }
+        try {
+            try (SolutionWriter writer = new SolutionWriter(channel, format, solver.testInstance)) {
+                writer.writeSolution(solver);
+            }
+            Files.move(tempPath, absolutePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+    }
+
+    // Solution file of a test instance file, given by its path relative to the directory of the instances
+    // so that instances of the same name in different subdirectories get their own solution files. Only a
+    // .csv or .bin extension is dropped, so a.csv and a.txt do not share a solution file either.
+    static Path solutionPath(Path directory, Path instancePath, int format) {
+        String fileName = instancePath.getFileName().toString();
+        if (fileName.endsWith(".csv") || fileName.endsWith(".bin")) {
+            fileName = fileName.substring(0, fileName.lastIndexOf('.'));
+        }
+        return directory.resolve(instancePath).resolveSibling(fileName + (format == CSV ? CSV_EXTENSION : BINARY_EXTENSION));
+    }
+
+    // Returns true for a file written by write, which is no test instance
+    static boolean isSolutionFile(Path filePath) {
+        String fileName = filePath.getFileName().toString();
+        return fileName.endsWith(CSV_EXTENSION) || fileName.endsWith(BINARY_EXTENSION);
+    }
+
+    // Writes all of the routes of the current solution of a solver, whose per-stop wait times
+    // must be up to date
+    public void writeSolution(Solver solver) throws IOException {
+        TestInstance testInstance = solver.testInstance;
+        for (int i = 0; i < solver.currentSolutionRoutes.length; i++) {
+            int[] route = solver.currentSolutionRoutes[i];
+            int[] durations = solver.currentSolutionDurations[i];
+            int[] waitTimes = solver.routeWaitTimesForNodes[i];
+            if (route.length > this.arrivals.length) {
+                this.arrivals = new int[route.length];
+                this.serviceStarts = new int[route.length];
+            }
+            int arrival = testInstance.routeStarts[i];
+            for (int j = 0; j < route.length; j++) {
+                this.arrivals[j] = arrival;
+                this.serviceStarts[j] = arrival + waitTimes[j];
+                if (j + 1 < route.length) {
+                    arrival = this.serviceStarts[j] + durations[j] + testInstance.edgeCost(route[j], route[j + 1]);
+                }
+            }
+            this.writeRoute(i, route, durations, this.arrivals, this.serviceStarts);
+        }
+    }
+
+    @Override
+    public void routeFinished(int routeID, int[] route, int[] durations, int[] arrivals, int[] serviceStarts) {
+        try {
+            this.writeRoute(routeID, route, durations, arrivals, serviceStarts);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Writes a route whose stops were admitted at the given times; arrivals and serviceStarts may be
+    // longer than the route
+    public void writeRoute(int routeID, int[] route, int[] durations, int[] arrivals, int[] serviceStarts)
+            throws IOException {
+        ByteBuffer buffer = this.buffer;
+        int stopCount = route.length;
+        if (this.format == BINARY) {
+            this.reserve(2 * Integer.BYTES);
+            buffer.putInt(routeID);
+            buffer.putInt(stopCount);
+            for (int i = 0; i < stopCount; i++) {
+                this.reserve(4 * Integer.BYTES);
+                buffer.putInt(this.nodeIDs[route[i]]);
+                buffer.putInt(arrivals[i]);
+                buffer.putInt(serviceStarts[i]);
+                buffer.putInt(serviceStarts[i] + durations[i]);
+            }
+            return;
+        }
+        for (int i = 0; i < stopCount; i++) {
+            this.reserve(MAX_LINE_LENGTH);
+            this.putDecimal(routeID);
+            buffer.put((byte) ',');
+            this.putDecimal(i);
+            buffer.put((byte) ',');
+            this.putDecimal(this.nodeIDs[route[i]]);
+            buffer.put((byte) ',');
+            this.putTime(arrivals[i]);
+            buffer.put((byte) ',');
+            this.putTime(serviceStarts[i]);
+            buffer.put((byte) ',');
+            this.putDecimal(serviceStarts[i] - arrivals[i]);
+            buffer.put((byte) ',');
+            this.putTime(serviceStarts[i] + durations[i]);
+            buffer.put((byte) '\n');
+        }
+    }
+
+    // Makes room for the given number of bytes in the buffer
+    private void reserve(int byteCount) throws IOException {
+        if (this.buffer.remaining() < byteCount) {
+            this.flush();
+        }
+    }
+
+    // Writes an int as decimal digits, without creating a string
+    private void putDecimal(int value) {
+        ByteBuffer buffer = this.buffer;
+        long magnitude = value;
+        if (magnitude < 0) {
+            buffer.put((byte) '-');
+            magnitude = -magnitude;
+        }
+        int start = buffer.position();
+        do {
+            buffer.put((byte) ('0' + magnitude % 10));
+            magnitude /= 10;
+        } while (magnitude != 0);
+        // The digits went in least significant first
+        for (int i = start, j = buffer.position() - 1; i < j; i++, j--) {
+            byte digit = buffer.get(i);
+            buffer.put(i, buffer.get(j));
+            buffer.put(j, digit);
+        }
+    }
+
+    // Writes seconds since midnight as HH:mm:ss
+    private void putTime(int seconds) {
+        int hours = seconds / 3600;
+        if (hours < 10) {
+            this.buffer.put((byte) '0');
+        }
+        this.putDecimal(hours);
+        this.putTwoDigits(':', seconds / 60 % 60);
+        this.putTwoDigits(':', seconds % 60);
+    }
+
+    private void putTwoDigits(char separator, int value) {
+        this.buffer.put((byte) separator);
+        this.buffer.put((byte) ('0' + value / 10));
+        this.buffer.put((byte) ('0' + value % 10));
+    }
+
+    // Writes the buffered bytes to the channel
+    public void flush() throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining()) {
+            this.channel.write(this.buffer);
+        }
+        this.buffer.clear();
+    }
+
+    // Flushes the buffer and closes the channel
+    @Override
+    public void close() throws IOException {
+        try {
+            this.flush();
+        } finally {
+            this.channel.close();
+        }
+    }
+}
@@ -1,36 +1,16 @@
 package com.multi.delivery.planner;
 
-import java.time.LocalTime;
-import java.time.temporal.ChronoUnit;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.PriorityQueue;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Created by pero on 05/12/2016.
  */
 public class Solver {
 
-    // Event class (represents arrivals/departures at/from node)
-    public class Event implements Comparable<Event> {
-        int routeID;
-        int nodeRouteIdx;
-        String type;
-        LocalTime time;
-
-        public Event(int routeID, int nodeRouteIdx, String type, LocalTime time) {
-            this.routeID = routeID;
-            this.nodeRouteIdx = nodeRouteIdx;
-            this.type = type;
-            this.time = time;
-        }
-
-        @Override
-        public int compareTo(Event other){
-            return time.compareTo(other.time);
-        }
-    }
+    // Smallest number of routes simulated with the calendar event queue by default
+    static final int CALENDAR_MIN_ROUTES = 128;
 
     // Test instance that needs to be solved
     TestInstance testInstance;
@@ -43,10 +23,28 @@ public class Solver {
     // wait times for nodes
 	int[][] routeWaitTimesForNodes;
 
+    // Stop durations aligned with the current solution
+    int[][] currentSolutionDurations;
+
+    // Reusable simulation buffers
+    // Event queue of packed events (see Events)
+    private EventQueue eventQueue;
+    // Event queue implementation (see EventQueue.create)
+    private final int eventQueueType;
+    // Occupancy of the nodes' parking slots
+    private NodeOccupancy nodeOccupancy;
 
+
+    // Simulates with the calendar queue, which polls events in the same order as the heap and is faster
+    // from about a hundred routes on (see EventQueueBenchmark). Below that, the heap is cheaper to set up.
     public Solver(TestInstance testInstance) {
+        this(testInstance, testInstance.routeCount < CALENDAR_MIN_ROUTES ? EventQueue.HEAP : EventQueue.CALENDAR);
+    }
+
+    public Solver(TestInstance testInstance, int eventQueueType) {
         // Assigning test instance
         this.testInstance = testInstance;
+        this.eventQueueType = eventQueueType;
         this.currentSolutionRoutes = testInstance.routes;
         this.currentRouteTravelTimes = new int[this.testInstance.routeCount];
         this.currentRouteWaitTimes = new int[this.testInstance.routeCount];
@@ -54,75 +52,142 @@ public class Solver {
 		for (int i = 0; i < testInstance.routeCount; i++) {
 			routeWaitTimesForNodes[i] = new int[currentSolutionRoutes[i].length];
 		}
-		
+
+        this.buildSimulationTables();
         this.computeTotalDuration();
     }
 
-    // Computes the total duration (travel + wait time) of all the routes in the current solution
-    private void computeTotalDuration() {
-        // Initialize the event queue with arrivals at the first node of each route
-        // Sorted event queue
-        PriorityQueue<Event> eventQueue = new PriorityQueue<Event>();
-        for (int i = 0; i < this.currentSolutionRoutes.length; i++) {
-            Event newEvent = new Event(i,0,"ARRIVAL",this.testInstance.routeStarts[i]);
-            eventQueue.add(newEvent);
+    // Prepares the primitive tables and buffers used by the event simulation
+    private void buildSimulationTables() {
+        int routeCount = this.currentSolutionRoutes.length;
+        if (routeCount - 1 > Events.MAX_ROUTE_ID) {
+            throw new IllegalArgumentException("Too many routes: " + routeCount);
         }
 
-        // Node queue contains departure times of both parked and waiting vehicles
-        HashMap<Integer, ArrayList<LocalTime>> nodeQueues = new HashMap<>();
+        this.currentSolutionDurations = this.testInstance.deliveryDurations;
+        for (int i = 0; i < routeCount; i++) {
+            if (this.currentSolutionRoutes[i].length - 1 > Events.MAX_STOP_IDX) {
+                throw new IllegalArgumentException("Too many stops in route " + i + ": " + this.currentSolutionRoutes[i].length);
+            }
+        }
 
-        // We process events (arrivals and departures) until the event queue is not empty
-        while (eventQueue.size() > 0) {
-            Event currentEvent = eventQueue.poll();
+        this.eventQueue = EventQueue.create(this.eventQueueType, routeCount);
+        this.nodeOccupancy = new NodeOccupancy(this.testInstance.nodeCapacities);
+    }
+
+    // Improves the current solution by local search within the routes and recomputes its durations
+    public LocalSearch improve(int threadCount, long timeBudgetMillis) {
+        LocalSearch localSearch = new LocalSearch(this.testInstance, this.currentSolutionRoutes,
+                this.currentSolutionDurations, threadCount, timeBudgetMillis);
+        localSearch.run();
+        this.currentSolutionRoutes = localSearch.getRoutes();
+        this.currentSolutionDurations = localSearch.getDurations();
+        this.computeTotalDuration();
+        return localSearch;
+    }
 
-            // Create node queue for the current node if one does not exist
-            int currentNodeID = this.currentSolutionRoutes[currentEvent.routeID][currentEvent.nodeRouteIdx];
-            if (!nodeQueues.containsKey(currentNodeID)) {
-                // All of the nodes are empty at the beginning (no parked vehicles, no waiting line)
-                nodeQueues.put(currentNodeID, new ArrayList<>());
+    // Improves the current solution by simulated annealing, seeded with it and the TSP orderings,
+    // and recomputes its durations
+    public SimulatedAnnealing anneal(long timeBudgetMillis, long seed) {
+        SimulatedAnnealing annealing = new SimulatedAnnealing(this.testInstance, this.currentSolutionRoutes,
+                this.currentSolutionDurations, timeBudgetMillis, seed);
+        annealing.run();
+        SimulatedAnnealing.Solution best = annealing.getBestSolution();
+        this.currentSolutionRoutes = best.getRoutes();
+        this.currentSolutionDurations = best.getDurations();
+        this.computeTotalDuration();
+        return annealing;
+    }
+
+    // Replaces the current solution by the best ordering found by branch and bound within the time budget,
+    // an optimal one unless the budget runs out, and recomputes its durations
+    public BranchAndBound solveExact(int threadCount, long timeBudgetMillis) {
+        BranchAndBound branchAndBound = new BranchAndBound(this.testInstance, this.currentSolutionRoutes,
+                this.currentSolutionDurations, threadCount, timeBudgetMillis);
+        branchAndBound.run();
+        this.currentSolutionRoutes = branchAndBound.getRoutes();
+        this.currentSolutionDurations = branchAndBound.getDurations();
+        this.computeTotalDuration();
+        return branchAndBound;
+    }
+
+    // Simulates the current solution split into independent components on threadCount threads, after
+    // improving every component on its own by annealing and local search unless their budgets are 0.
+    // The improved components are only adopted if the merged solution is better than the current one
+    // (see Decomposition.improve).
+    public Decomposition solveByComponents(int threadCount, long annealingTimeBudgetMillis, long localSearchTimeBudgetMillis) {
+        Decomposition decomposition = new Decomposition(this.testInstance, this.currentSolutionRoutes,
+                this.currentSolutionDurations);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            if (annealingTimeBudgetMillis > 0 || localSearchTimeBudgetMillis > 0) {
+                decomposition.improve(executor, threadCount, annealingTimeBudgetMillis, localSearchTimeBudgetMillis);
+            } else {
+                decomposition.simulate(executor);
             }
+        } finally {
+            executor.shutdownNow();
+        }
+        this.currentSolutionRoutes = decomposition.getRoutes();
+        this.currentSolutionDurations = decomposition.getDurations();
+        System.arraycopy(decomposition.getRouteTravelTimes(), 0, this.currentRouteTravelTimes, 0, this.currentRouteTravelTimes.length);
+        System.arraycopy(decomposition.getRouteWaitTimes(), 0, this.currentRouteWaitTimes, 0, this.currentRouteWaitTimes.length);
+        for (int i = 0; i < this.routeWaitTimesForNodes.length; i++) {
+            System.arraycopy(decomposition.getRouteWaitTimesForNodes()[i], 0, this.routeWaitTimesForNodes[i], 0,
+                    this.routeWaitTimesForNodes[i].length);
+        }
+        return decomposition;
+    }
 
-            // Processing arrival and departure events until event queue is not empty
-            if (currentEvent.type == "ARRIVAL") {
-                // For arrival events we compute departure events using nodes' waiting queues and duration of the visits
-
-                LocalTime newEventTime = null;
-                if (nodeQueues.get(currentNodeID).size() < this.testInstance.nodeCapacities.get(currentNodeID)) {
-                    // Node is not full
-                    newEventTime = currentEvent.time.plusSeconds(this.testInstance.deliveryDurations.get(currentEvent.routeID).get(currentNodeID));
-                    routeWaitTimesForNodes[currentEvent.routeID][currentEvent.nodeRouteIdx] = 0;
-                } else {
-                    // Node is full and waiting line is not empty
-                    int waitingInLine = nodeQueues.get(currentNodeID).size() - this.testInstance.nodeCapacities.get(currentNodeID);
-                    LocalTime waitUntil = nodeQueues.get(currentNodeID).get(waitingInLine);
-                    newEventTime = waitUntil.plusSeconds(this.testInstance.deliveryDurations.get(currentEvent.routeID).get(currentNodeID));
-                    this.currentRouteWaitTimes[currentEvent.routeID] += ChronoUnit.SECONDS.between(currentEvent.time, waitUntil);
-                    routeWaitTimesForNodes[currentEvent.routeID][currentEvent.nodeRouteIdx] = (int) ChronoUnit.SECONDS
-							.between(currentEvent.time, waitUntil);
+    // Computes the total duration (travel + wait time) of all the routes in the current solution
+    void computeTotalDuration() {
+        Arrays.fill(this.currentRouteTravelTimes, 0);
+        Arrays.fill(this.currentRouteWaitTimes, 0);
+        // All of the nodes are empty at the beginning (no parked vehicles, no waiting line)
+        NodeOccupancy nodeOccupancy = this.nodeOccupancy;
+        nodeOccupancy.reset();
+
+        // Initialize the event queue with arrivals at the first node of each route
+        EventQueue eventQueue = this.eventQueue;
+        eventQueue.clear();
+        for (int i = 0; i < this.currentSolutionRoutes.length; i++) {
+            eventQueue.add(Events.pack(this.testInstance.routeStarts[i], Events.ARRIVAL, i, 0));
+        }
+
+        TestInstance testInstance = this.testInstance;
+
+        // We process arrivals in time order until the event queue is not empty. The node occupancy
+        // releases slots implicitly, so the departure from a node directly yields the arrival at
+        // the next node of the route.
+        while (!eventQueue.isEmpty()) {
+            long currentEvent = eventQueue.poll();
+            int currentTime = Events.time(currentEvent);
+            int routeID = Events.routeID(currentEvent);
+            int nodeRouteIdx = Events.stopIdx(currentEvent);
+            int[] route = this.currentSolutionRoutes[routeID];
+            int currentNode = route[nodeRouteIdx];
+
+            // The visit starts as soon as the node has a free slot
+            int startTime = nodeOccupancy.admit(currentNode, currentTime, this.currentSolutionDurations[routeID][nodeRouteIdx]);
+            int waitTime = startTime - currentTime;
+            this.currentRouteWaitTimes[routeID] += waitTime;
+            this.routeWaitTimesForNodes[routeID][nodeRouteIdx] = waitTime;
+
+            // If the current node is not the last in the route, create new arrival event
+            if (route.length > nodeRouteIdx + 1) {
+                int travelTime = testInstance.edgeCost(currentNode, route[nodeRouteIdx + 1]);
+                if (travelTime == TestInstance.NO_EDGE) {
+                    throw new IllegalStateException("No edge between nodes " + this.testInstance.nodeIDs[currentNode]
+                            + " and " + this.testInstance.nodeIDs[route[nodeRouteIdx + 1]]);
                 }
-                // Adding new departure time to the node's queue
-                nodeQueues.get(currentNodeID).add(newEventTime);
-                Collections.sort(nodeQueues.get(currentNodeID));
-                // Adding new departure event to the event queue
-                Event newEvent = new Event(currentEvent.routeID, currentEvent.nodeRouteIdx, "DEPARTURE", newEventTime);
-                eventQueue.add(newEvent);
-
-            } else if (currentEvent.type == "DEPARTURE") {
-                // For departure events we compute arrival events at the next node by adding travel time to the current time point
-
-                nodeQueues.get(currentNodeID).remove(currentEvent.time);
-                // If the current node is not the last in the route, create new arrival event
-                if (this.currentSolutionRoutes[currentEvent.routeID].length > currentEvent.nodeRouteIdx + 1) {
-                    int travelTime = this.testInstance.edgeCosts.get(currentNodeID).get(this.currentSolutionRoutes[currentEvent.routeID][currentEvent.nodeRouteIdx + 1]);
-                    LocalTime newEventTime = currentEvent.time.plusSeconds(travelTime);
-                    Event newEvent = new Event(currentEvent.routeID, currentEvent.nodeRouteIdx + 1, "ARRIVAL", newEventTime);
-                    eventQueue.add(newEvent);
-                    this.currentRouteTravelTimes[currentEvent.routeID] += travelTime;
+                int newEventTime = startTime + this.currentSolutionDurations[routeID][nodeRouteIdx] + travelTime;
+                if (newEventTime > Events.MAX_TIME) {
+                    throw new IllegalStateException("Simulation time out of range: " + newEventTime);
                 }
+                eventQueue.add(Events.pack(newEventTime, Events.ARRIVAL, routeID, nodeRouteIdx + 1));
+                this.currentRouteTravelTimes[routeID] += travelTime;
             }
         }
     }
 
-
-
 }
@@ -0,0 +1,169 @@
+package com.multi.delivery.planner;
+
+import java.util.Arrays;
+
+/**
+ * Edge costs of a sparse graph in compressed sparse row form.
+ *
+ * The edges leaving node i are at positions offsets[i] to offsets[i + 1] - 1 of targets and
+ * costs, sorted by target node, so an edge is found by binary search among the edges of its
+ * source node. This takes 8 bytes per edge instead of the 4 bytes per node pair of the dense
+ * matrix in TestInstance.edgeCosts. A node reaches itself at no cost unless an edge says otherwise.
+ */
+public class SparseEdgeCosts {
+
+    // Start of the edges of every node, and one past the last edge
+    final int[] offsets;
+    // Target node and cost of every edge, by source node and then by target node
+    final int[] targets;
+    final int[] costs;
+
+    SparseEdgeCosts(int[] offsets, int[] targets, int[] costs) {
+        if (offsets.length == 0 || offsets[offsets.length - 1] != targets.length || targets.length != costs.length) {
+            throw new IllegalArgumentException("Edge offsets do not match the edges");
+        }
+        this.offsets = offsets;
+        this.targets = targets;
+        this.costs = costs;
+    }
+
+    // Builds the table from a list of edges in any order. Of several edges between the same two
+    // nodes the one listed last counts, as when they are written into the dense matrix.
+    public static SparseEdgeCosts of(int nodeCount, int[] fromNodes, int[] toNodes, int[] edgeCosts, int edgeCount) {
+        // Counting sort by source node keeps the order of the list within every node
+        int[] offsets = new int[nodeCount + 1];
+        for (int e = 0; e < edgeCount; e++) {
+            offsets[fromNodes[e] + 1]++;
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] filled = Arrays.copyOf(offsets, nodeCount);
+        int[] targets = new int[edgeCount];
+        int[] costs = new int[edgeCount];
+        for (int e = 0; e < edgeCount; e++) {
+            int idx = filled[fromNodes[e]]++;
+            targets[idx] = toNodes[e];
+            costs[idx] = edgeCosts[e];
+        }
+
+        // Sort every node's edges by target and drop all but the last of duplicate edges
+        long[] keys = new long[0];
+        int size = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            int from = offsets[i];
+            int to = offsets[i + 1];
+            offsets[i] = size;
+            if (!isStrictlySorted(targets, from, to)) {
+                if (keys.length < to - from) {
+                    keys = new long[to - from];
+                }
+                // Target and position in the list, so equal targets stay in list order
+                for (int e = from; e < to; e++) {
+                    keys[e - from] = ((long) targets[e] << 32) | (e - from);
+                }
+                Arrays.sort(keys, 0, to - from);
+                int[] rowCosts = Arrays.copyOfRange(costs, from, to);
+                for (int k = 0; k < to - from; k++) {
+                    targets[from + k] = (int) (keys[k] >>> 32);
+                    costs[from + k] = rowCosts[(int) keys[k]];
+                }
+            }
+            for (int e = from; e < to; e++) {
+                if (e + 1 < to && targets[e + 1] == targets[e]) {
+                    continue;
+                }
+                targets[size] = targets[e];
+                costs[size++] = costs[e];
+            }
+        }
+        offsets[nodeCount] = size;
+        return new SparseEdgeCosts(offsets, Arrays.copyOf(targets, size), Arrays.copyOf(costs, size));
+    }
+
+    private static boolean isStrictlySorted(int[] values, int from, int to) {
+        for (int e = from + 1; e < to; e++) {
+            if (values[e] <= values[e - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the travel time between two nodes, or TestInstance.NO_EDGE
+    public int get(int fromNode, int toNode) {
+        int[] targets = this.targets;
+        int base = this.offsets[fromNode];
+        int count = this.offsets[fromNode + 1] - base;
+        if (count > 0) {
+            // Halving the range without a data-dependent branch, which mispredicts half of the time
+            while (count > 1) {
+                int half = count >>> 1;
+                base = targets[base + half] <= toNode ? base + half : base;
+                count -= half;
+            }
+            if (targets[base] == toNode) {
+                return this.costs[base];
+            }
+        }
+        return fromNode == toNode ? 0 : TestInstance.NO_EDGE;
+    }
+
+    // Edges among the given nodes, renumbered by their position in nodes; localNodes maps
+    // every node to its position, or to -1 for nodes left out
+    SparseEdgeCosts subgraph(int[] nodes, int[] localNodes) {
+        int[] offsets = new int[nodes.length + 1];
+        int edgeCount = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            for (int e = this.offsets[nodes[i]]; e < this.offsets[nodes[i] + 1]; e++) {
+                if (localNodes[this.targets[e]] >= 0) {
+                    edgeCount++;
+                }
+            }
+        }
+        int[] targets = new int[edgeCount];
+        int[] costs = new int[edgeCount];
+        long[] keys = new long[0];
+        int size = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            offsets[i] = size;
+            for (int e = this.offsets[nodes[i]]; e < this.offsets[nodes[i] + 1]; e++) {
+                int target = localNodes[this.targets[e]];
+                if (target >= 0) {
+                    targets[size] = target;
+                    costs[size++] = this.costs[e];
+                }
+            }
+            // Local indices follow the order of nodes, which need not be the order of the node indices
+            if (!isStrictlySorted(targets, offsets[i], size)) {
+                int count = size - offsets[i];
+                if (keys.length < count) {
+                    keys = new long[count];
+                }
+                for (int k = 0; k < count; k++) {
+                    keys[k] = ((long) targets[offsets[i] + k] << 32) | costs[offsets[i] + k] & 0xFFFFFFFFL;
+                }
+                Arrays.sort(keys, 0, count);
+                for (int k = 0; k < count; k++) {
+                    targets[offsets[i] + k] = (int) (keys[k] >>> 32);
+                    costs[offsets[i] + k] = (int) keys[k];
+                }
+            }
+        }
+        offsets[nodes.length] = size;
+        return new SparseEdgeCosts(offsets, targets, costs);
+    }
+
+    public int getNodeCount() {
+        return this.offsets.length - 1;
+    }
+
+    public int getEdgeCount() {
+        return this.targets.length;
+    }
+
+    // Bytes taken by the arrays of the table
+    public long memoryBytes() {
+        return 4L * (this.offsets.length + this.targets.length + this.costs.length);
+    }
+}
@@ -0,0 +1,256 @@
+package com.multi.delivery.planner;
+
+/**
+ * Event simulation of routes that arrive as a stream through the day, instead of all being
+ * known up front as in the Solver.
+ *
+ * The simulation runs behind a clock: every event before the clock has been simulated, and
+ * a route may only be added if it starts at the clock or later. Adding a route moves the
+ * clock to its start minus the horizon, so routes may arrive out of start order by up to
+ * horizonSeconds; with a horizon of 0 they must arrive in start order. A route is finished
+ * as soon as the vehicle has been admitted to its last stop. Its outcome is then final: it
+ * is handed to the listener and the simulation forgets it.
+ *
+ * Memory is bounded by the active window rather than by the number of routes streamed:
+ * the event queue holds one event per active route, the occupancy of the nodes takes their
+ * total capacity, and the state of a route is only kept from when it is added until it is
+ * finished, apart from one reference per route ID between the oldest active route and the
+ * latest one. Route IDs number the routes in the order they are added and break ties between
+ * events at the same second, as route IDs do in the Solver. With a horizon of at least the
+ * latest start, routes added in the order of a test instance get the same results as from
+ * the Solver.
+ */
+public class StreamingSimulation {
+
+    /**
+     * Receives the outcome of every route as soon as it is final. The arrays belong to the
+     * listener once passed.
+     */
+    public interface RouteListener {
+
+        // Arrival and start of the visit at every stop (aligned with route); the vehicle waits
+        // serviceStarts[i] - arrivals[i] and leaves at serviceStarts[i] + durations[i]
+        void routeFinished(int routeID, int[] route, int[] durations, int[] arrivals, int[] serviceStarts);
+    }
+
+    // Test instance giving the nodes, capacities and edges; its routes are not used
+    private final TestInstance testInstance;
+    // Routes may arrive this many seconds after the start of the latest route added
+    private final int horizonSeconds;
+    private final RouteListener listener;
+
+    // Every event before the clock has been simulated
+    private int clock;
+    // Arrivals at the next stop of every active route
+    private final EventHeap eventQueue;
+    private final NodeOccupancy nodeOccupancy;
+
+    // Active routes by route ID & (routes.length - 1), for the IDs in [oldestRouteID, nextRouteID);
+    // a finished route has no entry
+    private int[][] routes;
+    private int[][] durations;
+    private int[][] arrivals;
+    private int[][] serviceStarts;
+    private int oldestRouteID;
+    private int nextRouteID;
+    private int activeRouteCount;
+    private int maxActiveRouteCount;
+
+    // Totals of the events simulated so far
+    private long totalTravelTime;
+    private long totalWaitTime;
+
+    public StreamingSimulation(TestInstance testInstance, int horizonSeconds, RouteListener listener) {
+        if (horizonSeconds < 0) {
+            throw new IllegalArgumentException("Negative horizon: " + horizonSeconds);
+        }
+        this.testInstance = testInstance;
+        this.horizonSeconds = horizonSeconds;
+        this.listener = listener;
+        this.eventQueue = new EventHeap(256);
+        this.nodeOccupancy = new NodeOccupancy(testInstance.nodeCapacities);
+        this.routes = new int[256][];
+        this.durations = new int[256][];
+        this.arrivals = new int[256][];
+        this.serviceStarts = new int[256][];
+    }
+
+    // Adds a route starting at the given time (seconds since midnight), simulates the events that
+    // are now behind the clock and returns the ID of the route
+    public int addRoute(int[] route, int[] durations, int startSeconds) {
+        this.checkRoute(route, durations, startSeconds);
+        if (startSeconds < this.clock) {
+            throw new IllegalArgumentException("Route starts at " + startSeconds + ", before the clock at " + this.clock);
+        }
+        int routeID = this.nextRouteID;
+        if (routeID > Events.MAX_ROUTE_ID) {
+            throw new IllegalStateException("Too many routes: " + (routeID + 1));
+        }
+        if (routeID - this.oldestRouteID == this.routes.length) {
+            this.growRoutes();
+        }
+        int slot = routeID & (this.routes.length - 1);
+        this.routes[slot] = route.clone();
+        this.durations[slot] = durations.clone();
+        this.arrivals[slot] = new int[route.length];
+        this.serviceStarts[slot] = new int[route.length];
+        this.nextRouteID++;
+        this.activeRouteCount++;
+        this.maxActiveRouteCount = Math.max(this.maxActiveRouteCount, this.activeRouteCount);
+        this.eventQueue.add(Events.pack(startSeconds, Events.ARRIVAL, routeID, 0));
+
+        this.advanceTo(startSeconds - this.horizonSeconds);
+        return routeID;
+    }
+
+    // Moves the clock forward to the given time, simulating all of the events before it
+    public void advanceTo(int time) {
+        if (time <= this.clock) {
+            return;
+        }
+        this.clock = time;
+        EventHeap eventQueue = this.eventQueue;
+        long end = time > Events.MAX_TIME ? Long.MAX_VALUE : Events.pack(time, Events.DEPARTURE, 0, 0);
+        while (!eventQueue.isEmpty() && eventQueue.peek() < end) {
+            this.simulateArrival(eventQueue.poll());
+        }
+    }
+
+    // Simulates all of the remaining events; no routes can be added afterwards
+    public void finish() {
+        this.advanceTo(Events.MAX_TIME + 1);
+    }
+
+    private void simulateArrival(long event) {
+        int currentTime = Events.time(event);
+        int routeID = Events.routeID(event);
+        int stopIdx = Events.stopIdx(event);
+        int slot = routeID & (this.routes.length - 1);
+        int[] route = this.routes[slot];
+        int[] durations = this.durations[slot];
+        int currentNode = route[stopIdx];
+
+        // The visit starts as soon as the node has a free slot
+        int startTime = this.nodeOccupancy.admit(currentNode, currentTime, durations[stopIdx]);
+        this.arrivals[slot][stopIdx] = currentTime;
+        this.serviceStarts[slot][stopIdx] = startTime;
+        this.totalWaitTime += startTime - currentTime;
+
+        if (stopIdx + 1 < route.length) {
+            int travelTime = this.testInstance.edgeCost(currentNode, route[stopIdx + 1]);
+            int newEventTime = startTime + durations[stopIdx] + travelTime;
+            if (newEventTime > Events.MAX_TIME) {
+                throw new IllegalStateException("Simulation time out of range: " + newEventTime);
+            }
+            this.eventQueue.add(Events.pack(newEventTime, Events.ARRIVAL, routeID, stopIdx + 1));
+            this.totalTravelTime += travelTime;
+        } else {
+            this.finishRoute(routeID, slot);
+        }
+    }
+
+    // Hands a route over to the listener and frees its entry
+    private void finishRoute(int routeID, int slot) {
+        int[] route = this.routes[slot];
+        int[] durations = this.durations[slot];
+        int[] arrivals = this.arrivals[slot];
+        int[] serviceStarts = this.serviceStarts[slot];
+        this.routes[slot] = null;
+        this.durations[slot] = null;
+        this.arrivals[slot] = null;
+        this.serviceStarts[slot] = null;
+        this.activeRouteCount--;
+        int mask = this.routes.length - 1;
+        while (this.oldestRouteID < this.nextRouteID && this.routes[this.oldestRouteID & mask] == null) {
+            this.oldestRouteID++;
+        }
+        if (this.listener != null) {
+            this.listener.routeFinished(routeID, route, durations, arrivals, serviceStarts);
+        }
+    }
+
+    // Doubles the number of entries, which only happens while the window of route IDs grows
+    private void growRoutes() {
+        int oldMask = this.routes.length - 1;
+        int capacity = this.routes.length * 2;
+        int[][] routes = new int[capacity][];
+        int[][] durations = new int[capacity][];
+        int[][] arrivals = new int[capacity][];
+        int[][] serviceStarts = new int[capacity][];
+        for (int routeID = this.oldestRouteID; routeID < this.nextRouteID; routeID++) {
+            int oldSlot = routeID & oldMask;
+            int slot = routeID & (capacity - 1);
+            routes[slot] = this.routes[oldSlot];
+            durations[slot] = this.durations[oldSlot];
+            arrivals[slot] = this.arrivals[oldSlot];
+            serviceStarts[slot] = this.serviceStarts[oldSlot];
+        }
+        this.routes = routes;
+        this.durations = durations;
+        this.arrivals = arrivals;
+        this.serviceStarts = serviceStarts;
+    }
+
+    private void checkRoute(int[] route, int[] durations, int startSeconds) {
+        if (route.length == 0 || route.length != durations.length) {
+            throw new IllegalArgumentException("A route needs at least one stop and a duration for each stop");
+        }
+        if (route.length - 1 > Events.MAX_STOP_IDX) {
+            throw new IllegalArgumentException("Too many stops: " + route.length);
+        }
+        if (startSeconds < 0 || startSeconds > Events.MAX_TIME) {
+            throw new IllegalArgumentException("Start time out of range: " + startSeconds);
+        }
+        for (int i = 0; i < route.length; i++) {
+            if (route[i] < 0 || route[i] >= this.testInstance.nodeCount) {
+                throw new IllegalArgumentException("Unknown node index: " + route[i]);
+            }
+            if (durations[i] < 0) {
+                throw new IllegalArgumentException("Negative stop duration: " + durations[i]);
+            }
+        }
+        // A missing edge would only show up once the route is halfway done
+        if (!LocalSearch.hasEdges(this.testInstance, route)) {
+            throw new IllegalArgumentException("Route travels between nodes without an edge");
+        }
+    }
+
+    public int getClock() {
+        return this.clock;
+    }
+
+    public int getHorizonSeconds() {
+        return this.horizonSeconds;
+    }
+
+    // Number of routes added so far, which is also the ID of the next one
+    public int getRouteCount() {
+        return this.nextRouteID;
+    }
+
+    public int getActiveRouteCount() {
+        return this.activeRouteCount;
+    }
+
+    // Largest number of routes that were active at the same time
+    public int getMaxActiveRouteCount() {
+        return this.maxActiveRouteCount;
+    }
+
+    public int getFinishedRouteCount() {
+        return this.nextRouteID - this.activeRouteCount;
+    }
+
+    // Totals of the events simulated so far, which are those of all routes after finish
+    public long getTotalTravelTime() {
+        return this.totalTravelTime;
+    }
+
+    public long getTotalWaitTime() {
+        return this.totalWaitTime;
+    }
+
+    public long getTotalDuration() {
+        return this.totalTravelTime + this.totalWaitTime;
+    }
+}
@@ -1,46 +1,94 @@
 package com.multi.delivery.planner;
 
-import java.time.LocalTime;
-import java.util.Arrays;
 import java.util.HashMap;
 
 /**
  * Created by pero on 05/12/2016.
+ *
+ * Nodes are referred to by dense indices 0..nodeCount-1 everywhere except
+ * for I/O, where nodeIDs maps an index back to the original node ID.
  */
 public class TestInstance {
+    // Edge cost of node pairs that have no edge in the instance
+    public static final int NO_EDGE = -1;
+
     // Total number of nodes
     int nodeCount;
     // Total number of routes
     int routeCount;
-    // Original node IDs
+    // Original node IDs (node index -> node ID)
     int[] nodeIDs;
-    // Nodes' capacities
-    HashMap<Integer, Integer> nodeCapacities;
-    // Edge costs
-    HashMap<Integer, HashMap<Integer, Integer>> edgeCosts;
-    // Routes' set of nodes
+    // Node indices (node ID -> node index)
+    HashMap<Integer, Integer> nodeIndices;
+    // Nodes' capacities (by node index)
+    int[] nodeCapacities;
+    // Edge costs (row-major nodeCount x nodeCount matrix of node indices), null for a sparse graph
+    int[] edgeCosts;
+    // Edge costs of a sparse graph, null if they are in the matrix
+    SparseEdgeCosts sparseEdgeCosts;
+    // Routes' set of nodes (node indices)
     int[][] routes;
-    // Stop durations
-    HashMap<Integer, HashMap<Integer,Integer>> deliveryDurations;
-    // Routes' start times
-    LocalTime[] routeStarts;
-    // TSP ordering
+    // Stop durations (aligned with routes)
+    int[][] deliveryDurations;
+    // Routes' start times (seconds since midnight)
+    int[] routeStarts;
+    // TSP ordering (node indices)
     int[][] tspRoutes;
     // Complexity of test instance (Jaccard distance)
     float complexity;
 
-    public TestInstance(int nodeCount, int routeCount, int[] nodeIDs, HashMap<Integer, Integer> nodeCapacities,
-                        HashMap<Integer, HashMap<Integer, Integer>> edgeCosts, int[][] routes, HashMap<Integer, HashMap<Integer,Integer>> deliveryDurations,
-                        LocalTime[] routeStarts, int[][] tspRoutes, float complexity) {
+    public TestInstance(int nodeCount, int routeCount, int[] nodeIDs, int[] nodeCapacities, int[] edgeCosts,
+                        int[][] routes, int[][] deliveryDurations, int[] routeStarts, int[][] tspRoutes,
+                        float complexity) {
+        this(nodeCount, routeCount, nodeIDs, nodeCapacities, edgeCosts, null, routes, deliveryDurations, routeStarts,
+                tspRoutes, complexity);
+    }
+
+    public TestInstance(int nodeCount, int routeCount, int[] nodeIDs, int[] nodeCapacities,
+                        SparseEdgeCosts sparseEdgeCosts, int[][] routes, int[][] deliveryDurations, int[] routeStarts,
+                        int[][] tspRoutes, float complexity) {
+        this(nodeCount, routeCount, nodeIDs, nodeCapacities, null, sparseEdgeCosts, routes, deliveryDurations,
+                routeStarts, tspRoutes, complexity);
+    }
+
+    private TestInstance(int nodeCount, int routeCount, int[] nodeIDs, int[] nodeCapacities, int[] edgeCosts,
+                         SparseEdgeCosts sparseEdgeCosts, int[][] routes, int[][] deliveryDurations,
+                         int[] routeStarts, int[][] tspRoutes, float complexity) {
         this.nodeCount = nodeCount;
         this.routeCount = routeCount;
         this.nodeIDs = nodeIDs;
+        this.nodeIndices = new HashMap<>(nodeCount * 2);
+        for (int i = 0; i < nodeCount; i++) {
+            this.nodeIndices.put(nodeIDs[i], i);
+        }
         this.nodeCapacities = nodeCapacities;
         this.edgeCosts = edgeCosts;
+        this.sparseEdgeCosts = sparseEdgeCosts;
         this.routes = routes;
         this.deliveryDurations = deliveryDurations;
         this.routeStarts = routeStarts;
         this.tspRoutes = tspRoutes;
         this.complexity = complexity;
     }
+
+    // Returns the travel time between two nodes given by their indices, or NO_EDGE
+    public int edgeCost(int fromNode, int toNode) {
+        int[] edgeCosts = this.edgeCosts;
+        return edgeCosts != null ? edgeCosts[fromNode * this.nodeCount + toNode] : this.sparseEdgeCosts.get(fromNode, toNode);
+    }
+
+    public boolean isSparse() {
+        return this.edgeCosts == null;
+    }
+
+    // Bytes taken by the edge costs
+    public long edgeMemoryBytes() {
+        return this.edgeCosts != null ? 4L * this.edgeCosts.length : this.sparseEdgeCosts.memoryBytes();
+    }
+
+    // Returns the dense index of an original node ID, or -1 if the node is unknown
+    public int nodeIndex(int nodeID) {
+        Integer nodeIndex = this.nodeIndices.get(nodeID);
+        return nodeIndex == null ? -1 : nodeIndex;
+    }
 }
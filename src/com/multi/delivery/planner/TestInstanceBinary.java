@@ -0,0 +1,325 @@
+package com.multi.delivery.planner;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+
+/**
+ * Compact binary form of a test instance.
+ *
+ * The file is a sequence of little-endian ints: a header (magic, version, node count,
+ * route count, complexity bits, total stop count, total TSP stop count, edge count or -1
+ * for the edge cost matrix) followed by node IDs, node capacities, the edge cost matrix or
+ * the edge offsets, targets and costs of a sparse graph, route start times, route lengths,
+ * route stops, stop durations, TSP route lengths (-1 for a missing TSP route) and TSP stops.
+ * Version 1 files have no edge count and always hold the matrix.
+ * Loading maps the file and copies each array out in bulk, without parsing any fields.
+ */
+public class TestInstanceBinary {
+
+    // "MDPI" in ASCII
+    private static final int MAGIC = 0x4D445049;
+    private static final int VERSION = 2;
+    private static final int MATRIX_VERSION = 1;
+    // Ints in the header, one less in version 1
+    private static final int HEADER_INTS = 8;
+    static final String BINARY_EXTENSION = ".bin";
+    private static final String CSV_EXTENSION = ".csv";
+    // Size of the buffer used for writing
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+    // Loads a test instance, preferring its binary file if that is newer than the CSV file
+    public static TestInstance load(Path filePath) {
+        if (filePath.toString().endsWith(BINARY_EXTENSION)) {
+            return read(filePath);
+        }
+        Path binaryPath = binaryPath(filePath);
+        try {
+            if (Files.isRegularFile(binaryPath)
+                    && Files.getLastModifiedTime(binaryPath).compareTo(Files.getLastModifiedTime(filePath)) > 0) {
+                TestInstance testInstance = read(binaryPath);
+                if (testInstance != null) {
+                    return testInstance;
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Binary test instance file \"" + binaryPath + "\" is not usable, parsing \"" + filePath + "\"");
+        }
+        return TestInstanceParser.parse(filePath);
+    }
+
+    // Binary file that belongs to a CSV test instance file
+    static Path binaryPath(Path csvPath) {
+        String fileName = csvPath.getFileName().toString();
+        if (fileName.endsWith(CSV_EXTENSION)) {
+            fileName = fileName.substring(0, fileName.length() - CSV_EXTENSION.length());
+        }
+        return csvPath.resolveSibling(fileName + BINARY_EXTENSION);
+    }
+
+    // Returns true for a binary file next to the CSV file it was converted from
+    static boolean isConvertedCopy(Path filePath) {
+        String fileName = filePath.getFileName().toString();
+        if (!fileName.endsWith(BINARY_EXTENSION)) {
+            return false;
+        }
+        String baseName = fileName.substring(0, fileName.length() - BINARY_EXTENSION.length());
+        return Files.exists(filePath.resolveSibling(baseName + CSV_EXTENSION));
+    }
+
+    public static TestInstance read(Path filePath) {
+        TestInstance newTestInstance = null;
+
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            newTestInstance = read(buffer.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer());
+        } catch (IOException e) {
+            System.err.println("An error has occurred while reading test instance file \"" + filePath.toString() + "\"!");
+            e.printStackTrace();
+        } catch (IllegalArgumentException e) {
+            // A corrupt file is not usable, load falls back to the CSV file
+            System.err.println("Binary test instance file \"" + filePath + "\" is not usable: " + e.getMessage());
+        }
+
+        return newTestInstance;
+    }
+
+    private static TestInstance read(IntBuffer buffer) {
+        try {
+            if (buffer.remaining() < HEADER_INTS - 1 || buffer.get() != MAGIC) {
+                throw new IllegalArgumentException("Not a binary test instance");
+            }
+            int version = buffer.get();
+            if (version != VERSION && version != MATRIX_VERSION) {
+                throw new IllegalArgumentException("Unsupported binary test instance version " + version);
+            }
+            int nodeCount = buffer.get();
+            int routeCount = buffer.get();
+            float complexity = Float.intBitsToFloat(buffer.get());
+            int stopCount = buffer.get();
+            int tspStopCount = buffer.get();
+            int edgeCount = version == MATRIX_VERSION ? -1 : buffer.get();
+            long edgeInts = edgeCount < 0 ? (long) nodeCount * nodeCount : nodeCount + 1 + 2L * edgeCount;
+            long expectedInts = 2L * nodeCount + edgeInts + 3L * routeCount + 2L * stopCount + tspStopCount;
+            if (nodeCount < 0 || routeCount < 0 || stopCount < 0 || tspStopCount < 0 || edgeCount < -1
+                    || buffer.remaining() != expectedInts) {
+                throw new IllegalArgumentException("Binary test instance is truncated or corrupt");
+            }
+
+            int[] nodeIDs = get(buffer, nodeCount);
+            int[] nodeCapacities = get(buffer, nodeCount);
+            int[] edgeCosts = null;
+            SparseEdgeCosts sparseEdgeCosts = null;
+            if (edgeCount < 0) {
+                edgeCosts = get(buffer, nodeCount * nodeCount);
+            } else {
+                int[] offsets = get(buffer, nodeCount + 1);
+                int[] targets = get(buffer, edgeCount);
+                if (offsets[0] != 0 || offsets[nodeCount] != edgeCount) {
+                    throw new IllegalArgumentException("Binary test instance has corrupt edge offsets");
+                }
+                for (int i = 0; i < nodeCount; i++) {
+                    if (offsets[i + 1] < offsets[i]) {
+                        throw new IllegalArgumentException("Binary test instance has corrupt edge offsets");
+                    }
+                }
+                checkNodes(targets, nodeCount);
+                // SparseEdgeCosts.get searches the targets of a row, so they must be strictly increasing
+                for (int i = 0; i < nodeCount; i++) {
+                    for (int e = offsets[i] + 1; e < offsets[i + 1]; e++) {
+                        if (targets[e] <= targets[e - 1]) {
+                            throw new IllegalArgumentException("Binary test instance has unsorted edge targets");
+                        }
+                    }
+                }
+                sparseEdgeCosts = new SparseEdgeCosts(offsets, targets, get(buffer, edgeCount));
+            }
+            int[] routeStarts = get(buffer, routeCount);
+
+            int[] routeLengths = get(buffer, routeCount);
+            checkLengths(routeLengths, 0, stopCount);
+            int[][] routes = new int[routeCount][];
+            for (int i = 0; i < routeCount; i++) {
+                routes[i] = get(buffer, routeLengths[i]);
+                checkNodes(routes[i], nodeCount);
+            }
+            int[][] deliveryDurations = new int[routeCount][];
+            for (int i = 0; i < routeCount; i++) {
+                deliveryDurations[i] = get(buffer, routeLengths[i]);
+            }
+
+            int[] tspLengths = get(buffer, routeCount);
+            checkLengths(tspLengths, -1, tspStopCount);
+            int[][] tspRoutes = new int[routeCount][];
+            for (int i = 0; i < routeCount; i++) {
+                if (tspLengths[i] >= 0) {
+                    tspRoutes[i] = get(buffer, tspLengths[i]);
+                    checkNodes(tspRoutes[i], nodeCount);
+                }
+            }
+
+            if (sparseEdgeCosts != null) {
+                return new TestInstance(nodeCount, routeCount, nodeIDs, nodeCapacities, sparseEdgeCosts,
+                        routes, deliveryDurations, routeStarts, tspRoutes, complexity);
+            }
+            return new TestInstance(nodeCount, routeCount, nodeIDs, nodeCapacities, edgeCosts,
+                    routes, deliveryDurations, routeStarts, tspRoutes, complexity);
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new IllegalArgumentException("Binary test instance is truncated or corrupt");
+        }
+    }
+
+    // Route lengths of at least minLength (-1 for a missing TSP route) must add up to the stop count of the
+    // header, which the file size has been checked against
+    private static void checkLengths(int[] lengths, int minLength, int stopCount) {
+        long total = 0;
+        for (int length : lengths) {
+            if (length < minLength) {
+                throw new IllegalArgumentException("Binary test instance has a negative route length");
+            }
+            total += Math.max(length, 0);
+        }
+        if (total != stopCount) {
+            throw new IllegalArgumentException("Binary test instance route lengths do not match its stop count");
+        }
+    }
+
+    private static void checkNodes(int[] nodes, int nodeCount) {
+        for (int node : nodes) {
+            if (node < 0 || node >= nodeCount) {
+                throw new IllegalArgumentException("Binary test instance has an unknown node index: " + node);
+            }
+        }
+    }
+
+    private static int[] get(IntBuffer buffer, int length) {
+        int[] values = new int[length];
+        buffer.get(values);
+        return values;
+    }
+
+    // Writes the binary file through a temporary file, so readers never see a partial file
+    public static void write(TestInstance testInstance, Path filePath) throws IOException {
+        Path tempPath = filePath.resolveSibling(filePath.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            IntWriter writer = new IntWriter(channel);
+
+            int stopCount = 0, tspStopCount = 0;
+            for (int i = 0; i < testInstance.routeCount; i++) {
+                stopCount += testInstance.routes[i].length;
+                if (testInstance.tspRoutes[i] != null) {
+                    tspStopCount += testInstance.tspRoutes[i].length;
+                }
+            }
+            writer.put(MAGIC);
+            writer.put(VERSION);
+            writer.put(testInstance.nodeCount);
+            writer.put(testInstance.routeCount);
+            writer.put(Float.floatToIntBits(testInstance.complexity));
+            writer.put(stopCount);
+            writer.put(tspStopCount);
+            writer.put(testInstance.isSparse() ? testInstance.sparseEdgeCosts.getEdgeCount() : -1);
+
+            writer.put(testInstance.nodeIDs);
+            writer.put(testInstance.nodeCapacities);
+            if (testInstance.isSparse()) {
+                writer.put(testInstance.sparseEdgeCosts.offsets);
+                writer.put(testInstance.sparseEdgeCosts.targets);
+                writer.put(testInstance.sparseEdgeCosts.costs);
+            } else {
+                writer.put(testInstance.edgeCosts);
+            }
+            writer.put(testInstance.routeStarts);
+            for (int i = 0; i < testInstance.routeCount; i++) {
+                writer.put(testInstance.routes[i].length);
+            }
+            for (int i = 0; i < testInstance.routeCount; i++) {
+                writer.put(testInstance.routes[i]);
+            }
+            for (int i = 0; i < testInstance.routeCount; i++) {
+                writer.put(testInstance.deliveryDurations[i]);
+            }
+            for (int i = 0; i < testInstance.routeCount; i++) {
+                writer.put(testInstance.tspRoutes[i] == null ? -1 : testInstance.tspRoutes[i].length);
+            }
+            for (int i = 0; i < testInstance.routeCount; i++) {
+                if (testInstance.tspRoutes[i] != null) {
+                    writer.put(testInstance.tspRoutes[i]);
+                }
+            }
+            writer.flush();
+        }
+        Files.move(tempPath, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Converts a CSV test instance file into its binary file
+    public static void convert(Path csvPath) throws IOException {
+        TestInstance testInstance = TestInstanceParser.parse(csvPath);
+        if (testInstance == null) {
+            throw new IOException("Test instance file \"" + csvPath + "\" could not be parsed");
+        }
+        write(testInstance, binaryPath(csvPath));
+    }
+
+    // Converts the given CSV files, or all of the CSV files in the given directories
+    public static void main(String[] args) throws IOException {
+        for (String arg : args) {
+            try (Stream<Path> paths = Files.walk(Paths.get(arg))) {
+                for (Path csvPath : (Iterable<Path>) paths
+                        .filter(path -> Files.isRegularFile(path) && path.toString().endsWith(CSV_EXTENSION))
+                        .sorted()::iterator) {
+                    convert(csvPath);
+                    System.out.println(csvPath + " -> " + binaryPath(csvPath));
+                }
+            }
+        }
+    }
+
+    // Buffered writer of little-endian ints
+    private static class IntWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        IntWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void put(int value) throws IOException {
+            if (this.buffer.remaining() < Integer.BYTES) {
+                this.flush();
+            }
+            this.buffer.putInt(value);
+        }
+
+        void put(int[] values) throws IOException {
+            int offset = 0;
+            while (offset < values.length) {
+                if (this.buffer.remaining() < Integer.BYTES) {
+                    this.flush();
+                }
+                int count = Math.min(values.length - offset, this.buffer.remaining() / Integer.BYTES);
+                this.buffer.asIntBuffer().put(values, offset, count);
+                this.buffer.position(this.buffer.position() + count * Integer.BYTES);
+                offset += count;
+            }
+        }
+
+        void flush() throws IOException {
+            this.buffer.flip();
+            while (this.buffer.hasRemaining()) {
+                this.channel.write(this.buffer);
+            }
+            this.buffer.clear();
+        }
+    }
+}
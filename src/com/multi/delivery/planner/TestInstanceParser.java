@@ -1,118 +1,435 @@
 package com.multi.delivery.planner;
 
-import com.sun.tools.javac.util.ArrayUtils;
-
-import java.awt.*;
-import java.awt.geom.Point2D;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
-import java.time.LocalTime;
-import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
-import java.util.List;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 /**
  * Created by pero on 05/12/2016.
+ *
+ * Test instance files are parsed in a single pass over their bytes: section headers
+ * switch the line format, and integers and HH:mm:ss times are read directly from the
+ * bytes without creating intermediate strings.
+ *
+ * Edge costs go into a nodeCount x nodeCount matrix unless the EDGES section lists fewer than
+ * one in SPARSE_MAX_DENSITY_INVERSE of the node pairs, or the matrix would not fit in an array;
+ * then they are kept in compressed sparse rows (see SparseEdgeCosts).
  */
 public class TestInstanceParser {
 
+    // Sections in the order they appear in a test instance file
+    private static final String[] SECTION_HEADERS = {"ROUTES", "NODES", "EDGES", "COMPLEXITY", "TSP SOLUTION"};
+    private static final int ROUTES = 0;
+    private static final int NODES = 1;
+    private static final int EDGES = 2;
+    private static final int COMPLEXITY = 3;
+    private static final int TSP_SOLUTION = 4;
+    // Graphs with fewer edges than nodeCount^2 / SPARSE_MAX_DENSITY_INVERSE are stored sparse
+    static final int SPARSE_MAX_DENSITY_INVERSE = 4;
+    // Largest node count whose edge cost matrix fits in an array
+    private static final int MAX_DENSE_NODES = 46340;
+
     public static TestInstance parse(Path filePath) {
         TestInstance newTestInstance = null;
 
-        try {
-            // Reading all lines at once
-            List<String> fileLines = Files.readAllLines(filePath, Charset.defaultCharset());
-
-            // Searching for reference lines
-            int startIdxRoutes = fileLines.indexOf("ROUTES");
-            int startIdxNodes = fileLines.indexOf("NODES");
-            int startIdxEdges = fileLines.indexOf("EDGES");
-            int startIdxComplexity = fileLines.indexOf("COMPLEXITY");
-            int startIdxTspSolution = fileLines.indexOf("TSP SOLUTION");
-
-            // Splitting lines based on positions of the reference lines
-            List<String> routeLines = fileLines.subList(startIdxRoutes+1, startIdxNodes);
-            List<String> nodeLines = fileLines.subList(startIdxNodes+1, startIdxEdges);
-            List<String> edgeLines = fileLines.subList(startIdxEdges+1, startIdxComplexity);
-            List<String> complexityLines = fileLines.subList(startIdxComplexity+1,startIdxTspSolution);
-            List<String> tspSolutionLines = fileLines.subList(startIdxTspSolution+1,fileLines.size());
-
-            // Parsing nodes
-            // Node IDs are stored in arrays, and capacities in hash
-            int nodeCount = nodeLines.size();
-            int[] nodeIDs = new int[nodeCount];
-            HashMap<Integer, Integer> nodeCapacities = new HashMap<>();
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            // Mapping the file, the parser reads it straight from the page cache
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            newTestInstance = parse(buffer);
+        } catch (IOException e) {
+            System.err.println("An error has occurred while reading test instance file \"" + filePath.toString() + "\"!");
+            e.printStackTrace();
+        }
+
+        return newTestInstance;
+    }
+
+    // Parses a test instance from the bytes between the buffer's position and limit
+    public static TestInstance parse(ByteBuffer buffer) {
+        return new Scanner(buffer).parse();
+    }
+
+    // Cursor over the bytes of a test instance
+    private static class Scanner {
+        private final ByteBuffer buffer;
+        private final int limit;
+        private int pos;
+        private int lineNumber = 1;
+
+        // Routes with original node IDs, flattened
+        private final IntList routeStarts = new IntList();
+        private final IntList routeOffsets = new IntList();
+        private final IntList stopNodeIDs = new IntList();
+        private final IntList stopDurations = new IntList();
+        // Nodes
+        private final IntList nodeIDs = new IntList();
+        private final IntList nodeCapacities = new IntList();
+        private NodeIndexMap nodeIndices;
+        // Edge costs, allocated once all of the nodes are known: the matrix, or the list of edges
+        // of a sparse graph
+        private int[] edgeCosts;
+        private int[] edgeFromNodes;
+        private int[] edgeToNodes;
+        private int edgeCount;
+        // Complexity
+        private float complexity;
+        private boolean hasComplexity;
+        // Whether the ROUTES section header was read
+        private boolean hasRoutes;
+        // TSP ordering with original node IDs, flattened
+        private final IntList tspOffsets = new IntList();
+        private final IntList tspNodeIDs = new IntList();
 
+        Scanner(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.pos = buffer.position();
+            this.limit = buffer.limit();
+        }
+
+        TestInstance parse() {
+            int section = -1;
+            while (this.pos < this.limit) {
+                byte b = this.buffer.get(this.pos);
+                if (b == '\n' || b == '\r') {
+                    // Empty line
+                    this.endLine();
+                    continue;
+                }
+                if (b >= 'A' && b <= 'Z') {
+                    int nextSection = this.readSectionHeader();
+                    if (nextSection <= section) {
+                        throw this.error("section " + SECTION_HEADERS[nextSection] + " out of order");
+                    }
+                    section = nextSection;
+                    if (section == ROUTES) {
+                        this.hasRoutes = true;
+                    } else if (section == EDGES) {
+                        this.startEdges();
+                    }
+                    continue;
+                }
+
+                switch (section) {
+                    case ROUTES:
+                        this.routeStarts.add(this.readTime());
+                        this.routeOffsets.add(this.stopNodeIDs.size());
+                        while (this.pos < this.limit && this.buffer.get(this.pos) == ',') {
+                            this.pos++;
+                            this.stopNodeIDs.add(this.readInt());
+                            this.expect('|');
+                            this.stopDurations.add(this.readInt());
+                        }
+                        break;
+                    case NODES:
+                        this.nodeIDs.add(this.readInt());
+                        this.expect(',');
+                        this.nodeCapacities.add(this.readInt());
+                        break;
+                    case EDGES:
+                        int fromNode = this.nodeIndex(this.readInt());
+                        this.expect(',');
+                        int toNode = this.nodeIndex(this.readInt());
+                        this.expect(',');
+                        if (this.edgeFromNodes == null) {
+                            this.edgeCosts[fromNode * this.nodeIDs.size() + toNode] = this.readInt();
+                        } else {
+                            this.edgeFromNodes[this.edgeCount] = fromNode;
+                            this.edgeToNodes[this.edgeCount] = toNode;
+                            this.edgeCosts[this.edgeCount++] = this.readInt();
+                        }
+                        break;
+                    case COMPLEXITY:
+                        if (this.hasComplexity) {
+                            throw this.error("more than one complexity value");
+                        }
+                        this.complexity = this.readFloat();
+                        this.hasComplexity = true;
+                        break;
+                    case TSP_SOLUTION:
+                        this.tspOffsets.add(this.tspNodeIDs.size());
+                        this.tspNodeIDs.add(this.readInt());
+                        while (this.pos < this.limit && this.buffer.get(this.pos) == ',') {
+                            this.pos++;
+                            this.tspNodeIDs.add(this.readInt());
+                        }
+                        break;
+                    default:
+                        throw this.error("data before the ROUTES section");
+                }
+                this.endLine();
+            }
+
+            if (!this.hasRoutes || this.edgeCosts == null || !this.hasComplexity) {
+                throw new IllegalArgumentException("Test instance is missing the ROUTES, EDGES or COMPLEXITY section");
+            }
+            return this.build();
+        }
+
+        // All of the nodes are known once the EDGES section starts
+        private void startEdges() {
+            int nodeCount = this.nodeIDs.size();
+            this.nodeIndices = new NodeIndexMap(nodeCount);
             for (int i = 0; i < nodeCount; i++) {
-                String[] nodeLineElements = nodeLines.get(i).split(",");
-                nodeIDs[i] = Integer.parseInt(nodeLineElements[0]);
-                nodeCapacities.put(nodeIDs[i], Integer.parseInt(nodeLineElements[1]));
-            }
-
-            // Parsing edges
-            // Edge costs are stored in hash
-            HashMap<Integer, HashMap<Integer, Integer>> edgeCosts = new HashMap<>();
-            for (int i = 0; i < edgeLines.size(); i++) {
-                String[] edgeLineElements = edgeLines.get(i).split(",");
-                Integer fromNodeID = Integer.parseInt(edgeLineElements[0]);
-                Integer toNodeID = Integer.parseInt(edgeLineElements[1]);
-                int cost = Integer.parseInt(edgeLineElements[2]);
-
-                if (edgeCosts.containsKey(fromNodeID)) {
-                    edgeCosts.get(fromNodeID).put(toNodeID,cost);
-                } else {
-                    edgeCosts.put(fromNodeID, new HashMap<Integer, Integer>());
-                    edgeCosts.get(fromNodeID).put(toNodeID,cost);
+                if (!this.nodeIndices.put(this.nodeIDs.get(i), i)) {
+                    throw this.error("duplicate node " + this.nodeIDs.get(i));
                 }
             }
+            int edgeLines = this.countEdgeLines();
+            if (nodeCount > MAX_DENSE_NODES || (long) edgeLines * SPARSE_MAX_DENSITY_INVERSE < (long) nodeCount * nodeCount) {
+                this.edgeFromNodes = new int[edgeLines];
+                this.edgeToNodes = new int[edgeLines];
+                this.edgeCosts = new int[edgeLines];
+                return;
+            }
+            this.edgeCosts = new int[nodeCount * nodeCount];
+            Arrays.fill(this.edgeCosts, TestInstance.NO_EDGE);
+            for (int i = 0; i < nodeCount; i++) {
+                this.edgeCosts[i * nodeCount + i] = 0;
+            }
+        }
 
-            // Parsing routes
-            // Routes are stored in 2dim array
-            int routeCount = routeLines.size();
-            int[][] routes = new int[routeCount][];
-            HashMap<Integer, HashMap<Integer,Integer>> delivery_durations = new HashMap<>();
-            LocalTime[] routeStarts = new LocalTime[routeCount];
-            DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("HH:mm:ss");
-            for (int i = 0; i < routeLines.size(); i++) {
-                String[] routeLineElements = routeLines.get(i).split(",");
-                routeStarts[i] = LocalTime.parse(routeLineElements[0],timeFormatter);
-                int[] stops = new int[routeLineElements.length-1];
-                if (!delivery_durations.containsKey(i)) {
-                    delivery_durations.put(i, new HashMap<>());
+        // Lines up to the next section header, an upper bound on the edges
+        private int countEdgeLines() {
+            int lines = 0;
+            boolean lineStart = true;
+            for (int p = this.pos; p < this.limit; p++) {
+                byte b = this.buffer.get(p);
+                if (lineStart && b >= 'A' && b <= 'Z') {
+                    break;
                 }
-                for (int j = 1; j < routeLineElements.length; j++) {
-                    String[] stopElements = routeLineElements[j].split("\\|");
-                    stops[j-1] = Integer.parseInt(stopElements[0]);
-                    delivery_durations.get(i).put(stops[j-1], Integer.parseInt(stopElements[1]));
+                if (lineStart && b != '\n' && b != '\r') {
+                    lines++;
                 }
-                routes[i] = stops;
+                lineStart = b == '\n';
+            }
+            return lines;
+        }
+
+        private TestInstance build() {
+            int nodeCount = this.nodeIDs.size();
+            int routeCount = this.routeStarts.size();
+            this.routeOffsets.add(this.stopNodeIDs.size());
+            this.tspOffsets.add(this.tspNodeIDs.size());
+            if (this.tspOffsets.size() - 1 > routeCount) {
+                throw new IllegalArgumentException("Test instance has more TSP routes than routes");
             }
 
-            // Parsing complexity information
-            float instanceComplexity = Float.parseFloat(complexityLines.get(0));
+            // Routes and their stop durations are stored in aligned 2dim arrays of node indices
+            int[][] routes = new int[routeCount][];
+            int[][] deliveryDurations = new int[routeCount][];
+            for (int i = 0; i < routeCount; i++) {
+                int from = this.routeOffsets.get(i);
+                int to = this.routeOffsets.get(i + 1);
+                routes[i] = new int[to - from];
+                deliveryDurations[i] = new int[to - from];
+                for (int j = from; j < to; j++) {
+                    routes[i][j - from] = this.nodeIndex(this.stopNodeIDs.get(j));
+                    deliveryDurations[i][j - from] = this.stopDurations.get(j);
+                }
+            }
 
-            // Parsing TSP ordering
             int[][] tspRoutes = new int[routeCount][];
-            for (int i = 0; i < tspSolutionLines.size(); i++) {
-                String[] tspLineElements = tspSolutionLines.get(i).split(",");
-                int[] stops = new int[tspLineElements.length];
-                for (int j = 0; j < tspLineElements.length; j++) {
-                    stops[j] = Integer.parseInt(tspLineElements[j]);
+            for (int i = 0; i + 1 < this.tspOffsets.size(); i++) {
+                int from = this.tspOffsets.get(i);
+                int to = this.tspOffsets.get(i + 1);
+                tspRoutes[i] = new int[to - from];
+                for (int j = from; j < to; j++) {
+                    tspRoutes[i][j - from] = this.nodeIndex(this.tspNodeIDs.get(j));
                 }
-                tspRoutes[i] = stops;
             }
 
-            // Creating a new test instance with parsed settings
-            newTestInstance = new TestInstance(nodeCount,routeCount,nodeIDs,nodeCapacities,edgeCosts,routes,delivery_durations,routeStarts,tspRoutes,instanceComplexity);
+            if (this.edgeFromNodes != null) {
+                SparseEdgeCosts sparseEdgeCosts = SparseEdgeCosts.of(nodeCount, this.edgeFromNodes, this.edgeToNodes,
+                        this.edgeCosts, this.edgeCount);
+                return new TestInstance(nodeCount, routeCount, this.nodeIDs.toArray(), this.nodeCapacities.toArray(),
+                        sparseEdgeCosts, routes, deliveryDurations, this.routeStarts.toArray(), tspRoutes, this.complexity);
+            }
+            return new TestInstance(nodeCount, routeCount, this.nodeIDs.toArray(), this.nodeCapacities.toArray(),
+                    this.edgeCosts, routes, deliveryDurations, this.routeStarts.toArray(), tspRoutes, this.complexity);
+        }
 
-        } catch (IOException e) {
-            System.out.println("An error has occurred while reading test instance file \"" + filePath.toString() + "\"!");
-            e.printStackTrace();
+        private int nodeIndex(int nodeID) {
+            int nodeIndex = this.nodeIndices.get(nodeID);
+            if (nodeIndex < 0) {
+                throw this.error("unknown node " + nodeID);
+            }
+            return nodeIndex;
         }
 
-        return newTestInstance;
+        // Reads a section header line and returns its section
+        private int readSectionHeader() {
+            int start = this.pos;
+            int end = start;
+            while (end < this.limit && this.buffer.get(end) != '\n' && this.buffer.get(end) != '\r') {
+                end++;
+            }
+            for (int section = 0; section < SECTION_HEADERS.length; section++) {
+                String header = SECTION_HEADERS[section];
+                if (header.length() != end - start) {
+                    continue;
+                }
+                int i = 0;
+                while (i < header.length() && this.buffer.get(start + i) == header.charAt(i)) {
+                    i++;
+                }
+                if (i == header.length()) {
+                    this.pos = end;
+                    this.endLine();
+                    return section;
+                }
+            }
+            throw this.error("unknown section header");
+        }
+
+        private int readInt() {
+            boolean negative = false;
+            if (this.pos < this.limit && this.buffer.get(this.pos) == '-') {
+                negative = true;
+                this.pos++;
+            }
+            int start = this.pos;
+            // Accumulated as a long and checked per digit, as values out of the int range would wrap
+            long max = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+            long value = 0;
+            while (this.pos < this.limit) {
+                int digit = this.buffer.get(this.pos) - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                value = value * 10 + digit;
+                if (value > max) {
+                    throw this.error("number out of range");
+                }
+                this.pos++;
+            }
+            if (this.pos == start) {
+                throw this.error("number expected");
+            }
+            return (int) (negative ? -value : value);
+        }
+
+        // Reads a HH:mm:ss time as seconds since midnight
+        private int readTime() {
+            int hours = this.readInt();
+            this.expect(':');
+            int minutes = this.readInt();
+            this.expect(':');
+            int seconds = this.readInt();
+            if (hours > 23 || minutes > 59 || seconds > 59) {
+                throw this.error("invalid time");
+            }
+            return hours * 3600 + minutes * 60 + seconds;
+        }
+
+        // The only value that is not an integer, read as a string
+        private float readFloat() {
+            int start = this.pos;
+            while (this.pos < this.limit && this.buffer.get(this.pos) != '\n' && this.buffer.get(this.pos) != '\r') {
+                this.pos++;
+            }
+            byte[] bytes = new byte[this.pos - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = this.buffer.get(start + i);
+            }
+            try {
+                return Float.parseFloat(new String(bytes, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException e) {
+                throw this.error("number expected");
+            }
+        }
+
+        private void expect(char c) {
+            if (this.pos >= this.limit || this.buffer.get(this.pos) != c) {
+                throw this.error("'" + c + "' expected");
+            }
+            this.pos++;
+        }
+
+        // Skips the end of the current line (\n or \r\n)
+        private void endLine() {
+            if (this.pos < this.limit && this.buffer.get(this.pos) == '\r') {
+                this.pos++;
+            }
+            if (this.pos < this.limit) {
+                if (this.buffer.get(this.pos) != '\n') {
+                    throw this.error("end of line expected");
+                }
+                this.pos++;
+            }
+            this.lineNumber++;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Line " + this.lineNumber + ": " + message);
+        }
+    }
+
+    // Growable array of ints
+    private static class IntList {
+        private int[] data = new int[64];
+        private int size;
+
+        void add(int value) {
+            if (this.size == this.data.length) {
+                this.data = Arrays.copyOf(this.data, this.size << 1);
+            }
+            this.data[this.size++] = value;
+        }
+
+        int get(int idx) {
+            return this.data[idx];
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(this.data, this.size);
+        }
     }
 
+    // Open-addressing map from node IDs to node indices
+    private static class NodeIndexMap {
+        private final int[] keys;
+        private final int[] values;
+        private final int mask;
+
+        NodeIndexMap(int nodeCount) {
+            int capacity = Integer.highestOneBit(Math.max(nodeCount, 1) * 2 - 1) << 1;
+            this.keys = new int[capacity];
+            this.values = new int[capacity];
+            Arrays.fill(this.values, -1);
+            this.mask = capacity - 1;
+        }
+
+        // Returns false if the key is already in the map
+        boolean put(int key, int value) {
+            int slot = this.slot(key);
+            if (this.values[slot] >= 0) {
+                return false;
+            }
+            this.keys[slot] = key;
+            this.values[slot] = value;
+            return true;
+        }
+
+        // Returns -1 if the key is not in the map
+        int get(int key) {
+            return this.values[this.slot(key)];
+        }
+
+        private int slot(int key) {
+            int hash = key * 0x9e3779b9;
+            int slot = (hash ^ (hash >>> 16)) & this.mask;
+            while (this.values[slot] >= 0 && this.keys[slot] != key) {
+                slot = (slot + 1) & this.mask;
+            }
+            return slot;
+        }
+    }
 }